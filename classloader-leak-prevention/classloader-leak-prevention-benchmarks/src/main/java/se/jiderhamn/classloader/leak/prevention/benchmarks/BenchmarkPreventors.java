@@ -0,0 +1,43 @@
+package se.jiderhamn.classloader.leak.prevention.benchmarks;
+
+import java.util.Collections;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+/**
+ * Factory of {@link ClassLoaderLeakPreventor}s for benchmarks, that only log warnings and errors so that logging 
+ * does not skew the results.
+ */
+class BenchmarkPreventors {
+
+  private BenchmarkPreventors() {
+  }
+
+  /** Create {@link ClassLoaderLeakPreventor} protecting the provided {@link ClassLoader}, without any initiators/cleanups */
+  static ClassLoaderLeakPreventor newPreventor(ClassLoader classLoader) {
+    return new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(), classLoader, new StdLogger() {
+      @Override
+      public void debug(String msg) {
+        // Silent
+      }
+
+      @Override
+      public void info(String s) {
+        // Silent
+      }
+
+      @Override
+      public boolean isDebugEnabled() {
+        return false;
+      }
+
+      @Override
+      public boolean isInfoEnabled() {
+        return false;
+      }
+    }, Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+  }
+}
@@ -0,0 +1,91 @@
+package se.jiderhamn.classloader.leak.prevention.benchmarks;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+
+/**
+ * Benchmark of {@link ClassLoaderLeakPreventor#isClassLoaderOrChild(ClassLoader)} and 
+ * {@link ClassLoaderLeakPreventor#isLoadedInClassLoader(Object)}, which are invoked for about every object inspected 
+ * by the cleanups. Verdicts are cached by the preventor, so the {@code cold} benchmarks use a new preventor for each
+ * iteration while the others measure the cached path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoaderAncestryBenchmark {
+
+  /** No of classloaders between the protected classloader and the child being tested */
+  @Param({"1", "5", "20"})
+  public int depth;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  /** Child of the protected classloader, {@link #depth} levels down */
+  private ClassLoader child;
+
+  /** Classloader chain of {@link #depth} levels that is not related to the protected classloader */
+  private ClassLoader unrelated;
+
+  /** Object of class loaded by the protected classloader */
+  private Object protectedObject;
+
+  /** Object of class loaded by the bootstrap classloader */
+  private Object jdkObject;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final ClassLoader protectedClassLoader = getClass().getClassLoader();
+    child = createChain(protectedClassLoader, depth);
+    unrelated = createChain(null, depth);
+    protectedObject = new Object() { }; // Anonymous class loaded by the protected classloader
+    jdkObject = "foo";
+    preventor = BenchmarkPreventors.newPreventor(protectedClassLoader);
+  }
+
+  private static ClassLoader createChain(ClassLoader parent, int depth) {
+    ClassLoader output = parent;
+    for(int i = 0; i < depth; i++) {
+      output = new URLClassLoader(new URL[0], output);
+    }
+    return output;
+  }
+
+  @Benchmark
+  public boolean isClassLoaderOrChild_child() {
+    return preventor.isClassLoaderOrChild(child);
+  }
+
+  @Benchmark
+  public boolean isClassLoaderOrChild_unrelated() {
+    return preventor.isClassLoaderOrChild(unrelated);
+  }
+
+  @Benchmark
+  public boolean isLoadedInClassLoader_protected() {
+    return preventor.isLoadedInClassLoader(protectedObject);
+  }
+
+  @Benchmark
+  public boolean isLoadedInClassLoader_jdk() {
+    return preventor.isLoadedInClassLoader(jdkObject);
+  }
+
+  /** Uncached verdicts, by using a new preventor each time (which includes the cost of creating the preventor) */
+  @Benchmark
+  public boolean cold_isClassLoaderOrChild_unrelated() {
+    return BenchmarkPreventors.newPreventor(getClass().getClassLoader()).isClassLoaderOrChild(unrelated);
+  }
+
+  /** Cost of creating a new preventor, to be subtracted from the {@code cold} benchmarks */
+  @Benchmark
+  public ClassLoaderLeakPreventor cold_baseline() {
+    return BenchmarkPreventors.newPreventor(getClass().getClassLoader());
+  }
+}
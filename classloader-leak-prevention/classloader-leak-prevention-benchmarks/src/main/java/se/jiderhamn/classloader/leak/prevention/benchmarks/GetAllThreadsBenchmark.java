@@ -0,0 +1,75 @@
+package se.jiderhamn.classloader.leak.prevention.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ThreadSnapshot;
+
+/**
+ * Benchmark of enumerating the threads of the JVM, via {@link ClassLoaderLeakPreventor#getAllThreads()} and
+ * {@link ClassLoaderLeakPreventor#getThreadSnapshot()}, with a varying number of live threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class GetAllThreadsBenchmark {
+
+  /** No of extra threads to start */
+  @Param({"100", "1000", "10000"})
+  public int threads;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  private final CountDownLatch stop = new CountDownLatch(1);
+
+  private final List<Thread> startedThreads = new ArrayList<Thread>();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    preventor = BenchmarkPreventors.newPreventor(getClass().getClassLoader());
+    final Runnable waiter = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          stop.await();
+        }
+        catch (InterruptedException e) {
+          // Terminate
+        }
+      }
+    };
+    for(int i = 0; i < threads; i++) {
+      final Thread thread = new Thread(waiter, "benchmark-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      startedThreads.add(thread);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    stop.countDown();
+    for(Thread thread : startedThreads) {
+      thread.join();
+    }
+  }
+
+  @Benchmark
+  public Collection<Thread> getAllThreads() {
+    return preventor.getAllThreads();
+  }
+
+  /** Enumerate threads and compute their relation to the protected classloader */
+  @Benchmark
+  public ThreadSnapshot getThreadSnapshot() {
+    return preventor.getThreadSnapshot();
+  }
+}
@@ -0,0 +1,74 @@
+package se.jiderhamn.classloader.leak.prevention.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.*;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp;
+
+/**
+ * Benchmark of {@link MBeanCleanUp} with a large number of MBeans registered in the platform {@link MBeanServer}.
+ * None of the MBeans are loaded by the protected classloader, so nothing is unregistered and each invocation does 
+ * the same amount of work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MBeanCleanUpBenchmark {
+
+  /** No of MBeans to register, in addition to the ones of the JVM */
+  @Param({"50000"})
+  public int mBeans;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  private final MBeanCleanUp mBeanCleanUp = new MBeanCleanUp();
+
+  private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+
+  @Setup(Level.Trial)
+  public void setUp() throws JMException {
+    preventor = BenchmarkPreventors.newPreventor(new URLClassLoader(new URL[0])); // Nothing is loaded by this
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for(int i = 0; i < mBeans; i++) {
+      final ObjectName objectName = new ObjectName("se.jiderhamn.benchmark:type=Dummy,name=" + i);
+      mBeanServer.registerMBean(new Dummy(), objectName);
+      objectNames.add(objectName);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws JMException {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for(ObjectName objectName : objectNames) {
+      mBeanServer.unregisterMBean(objectName);
+    }
+  }
+
+  @Benchmark
+  public void cleanUp() {
+    mBeanCleanUp.cleanUp(preventor);
+  }
+
+  public interface DummyMBean {
+    int getValue();
+  }
+
+  public static class Dummy implements DummyMBean {
+    @Override
+    public int getValue() {
+      return 0;
+    }
+  }
+}
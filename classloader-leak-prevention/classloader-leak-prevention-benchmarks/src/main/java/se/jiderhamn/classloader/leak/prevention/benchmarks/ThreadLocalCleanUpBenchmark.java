@@ -0,0 +1,83 @@
+package se.jiderhamn.classloader.leak.prevention.benchmarks;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+
+/**
+ * Benchmark of {@link ThreadLocalCleanUp} scanning the {@code ThreadLocalMap} of a thread with a varying number of 
+ * {@link ThreadLocal}s. None of the values are loaded by the protected classloader, so nothing is cleared and each
+ * invocation does the same amount of work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadLocalCleanUpBenchmark {
+
+  /** No of {@link ThreadLocal}s set in the benchmark thread */
+  @Param({"100", "10000", "100000"})
+  public int threadLocals;
+
+  private ClassLoaderLeakPreventor preventor;
+
+  private ExposingThreadLocalCleanUp threadLocalCleanUp;
+
+  /** The {@code java.lang.ThreadLocal.ThreadLocalMap} of the benchmark thread */
+  private Object threadLocalMap;
+
+  /** Keep strong references, so that entries are not stale */
+  private final List<ThreadLocal<Object>> threadLocalList = new ArrayList<ThreadLocal<Object>>();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IllegalAccessException {
+    preventor = BenchmarkPreventors.newPreventor(new URLClassLoader(new URL[0])); // Nothing is loaded by this
+    for(int i = 0; i < threadLocals; i++) {
+      final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+      threadLocal.set(i);
+      threadLocalList.add(threadLocal);
+    }
+    threadLocalCleanUp = new ExposingThreadLocalCleanUp(preventor);
+    threadLocalMap = threadLocalCleanUp.getThreadLocalMap(Thread.currentThread());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for(ThreadLocal<Object> threadLocal : threadLocalList) {
+      threadLocal.remove();
+    }
+  }
+
+  @Benchmark
+  public void processThreadLocalMap() throws IllegalAccessException {
+    threadLocalCleanUp.processThreadLocalMap(preventor, Thread.currentThread(), threadLocalMap);
+  }
+
+  /** {@link ThreadLocalCleanUp} that exposes the scanning of a single map */
+  private static class ExposingThreadLocalCleanUp extends ThreadLocalCleanUp {
+
+    ExposingThreadLocalCleanUp(ClassLoaderLeakPreventor preventor) {
+      java_lang_Thread_threadLocals = preventor.findField(Thread.class, "threadLocals");
+      java_lang_ThreadLocal$ThreadLocalMap_table = preventor.findFieldOfClass("java.lang.ThreadLocal$ThreadLocalMap", "table");
+    }
+
+    Object getThreadLocalMap(Thread thread) throws IllegalAccessException {
+      return java_lang_Thread_threadLocals.get(thread);
+    }
+
+    /** Change visibility */
+    @Override
+    public void processThreadLocalMap(ClassLoaderLeakPreventor preventor, Thread thread, Object threadLocalMap) 
+        throws IllegalAccessException {
+      super.processThreadLocalMap(preventor, thread, threadLocalMap);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Cache of verdicts from {@link ClassLoaderLeakPreventor#isClassLoaderOrChild(ClassLoader)}, so that the same
+ * {@link ClassLoader} does not have to be tested over and over again during cleanup. {@link ClassLoader}s are
+ * compared by identity and only weakly referenced, so the cache itself will not cause any leaks. Thread safe.
+ */
+class ClassLoaderAncestryCache {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Queue of entries whose {@link ClassLoader} has been garbage collected */
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+  private Entry[] table = new Entry[INITIAL_CAPACITY];
+
+  private int size;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Get cached verdict for provided {@link ClassLoader}, or {@code null} if not cached. Updates hit/miss counters.
+   */
+  synchronized Boolean get(ClassLoader classLoader) {
+    expungeStaleEntries();
+    final int hash = System.identityHashCode(classLoader);
+    for(Entry e = table[indexFor(hash, table.length)]; e != null; e = e.next) {
+      if(e.hash == hash && e.get() == classLoader) {
+        hits++;
+        return e.verdict;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  /** Cache verdict for provided {@link ClassLoader} */
+  synchronized void put(ClassLoader classLoader, boolean verdict) {
+    expungeStaleEntries();
+    final int hash = System.identityHashCode(classLoader);
+    int index = indexFor(hash, table.length);
+    for(Entry e = table[index]; e != null; e = e.next) {
+      if(e.hash == hash && e.get() == classLoader) {
+        e.verdict = verdict;
+        return;
+      }
+    }
+
+    if(size >= table.length * 3 / 4) {
+      resize();
+      index = indexFor(hash, table.length);
+    }
+    table[index] = new Entry(classLoader, hash, verdict, queue, table[index]);
+    size++;
+  }
+
+  /** Remove all cached verdicts, but keep the counters */
+  synchronized void clear() {
+    while(queue.poll() != null) {
+      // Drain queue; entries are discarded together with the table anyway
+    }
+    table = new Entry[INITIAL_CAPACITY];
+    size = 0;
+  }
+
+  /** Reset hit/miss counters */
+  synchronized void resetCounters() {
+    hits = 0;
+    misses = 0;
+  }
+
+  /** Get the number of lookups answered by the cache since last {@link #resetCounters()} */
+  synchronized long getHits() {
+    return hits;
+  }
+
+  /** Get the number of lookups not answered by the cache since last {@link #resetCounters()} */
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Get the number of {@link ClassLoader}s currently in the cache (including any not yet expunged) */
+  synchronized int size() {
+    return size;
+  }
+
+  private void resize() {
+    final Entry[] newTable = new Entry[table.length * 2];
+    for(Entry e : table) {
+      while(e != null) {
+        final Entry next = e.next;
+        final int index = indexFor(e.hash, newTable.length);
+        e.next = newTable[index];
+        newTable[index] = e;
+        e = next;
+      }
+    }
+    table = newTable;
+  }
+
+  /** Remove entries for {@link ClassLoader}s that have been garbage collected */
+  private void expungeStaleEntries() {
+    for(Object stale; (stale = queue.poll()) != null; ) {
+      final Entry entry = (Entry) stale;
+      final int index = indexFor(entry.hash, table.length);
+      Entry prev = null;
+      for(Entry e = table[index]; e != null; prev = e, e = e.next) {
+        if(e == entry) {
+          if(prev == null)
+            table[index] = e.next;
+          else
+            prev.next = e.next;
+          size--;
+          break;
+        }
+      }
+    }
+  }
+
+  private static int indexFor(int hash, int length) {
+    return (hash ^ (hash >>> 16)) & (length - 1);
+  }
+
+  /** Hash table entry, weakly referencing the {@link ClassLoader} */
+  private static class Entry extends WeakReference<ClassLoader> {
+
+    private final int hash;
+
+    private boolean verdict;
+
+    private Entry next;
+
+    private Entry(ClassLoader classLoader, int hash, boolean verdict, ReferenceQueue<ClassLoader> queue, Entry next) {
+      super(classLoader, queue);
+      this.hash = hash;
+      this.verdict = verdict;
+      this.next = next;
+    }
+  }
+}
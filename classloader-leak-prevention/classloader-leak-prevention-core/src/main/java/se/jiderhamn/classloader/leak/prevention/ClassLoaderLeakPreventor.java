@@ -1,7 +1,14 @@
 package se.jiderhamn.classloader.leak.prevention;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -10,7 +17,14 @@ import java.lang.reflect.Modifier;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class helps prevent classloader leaks.
@@ -22,6 +36,15 @@ public class ClassLoaderLeakPreventor {
   /** Default no of milliseconds to wait for threads to finish execution */
   public static final int THREAD_WAIT_MS_DEFAULT = 5 * 1000; // 5 seconds
   
+  /** Default max no of milliseconds for {@link #gc()} to wait for garbage collection; see {@link #gcAndWait(long, int)} */
+  public static final long GC_TIMEOUT_MS_DEFAULT = 10 * 1000; // 10 seconds
+  
+  /** Default max no of times for {@link #gc()} to request garbage collection; see {@link #gcAndWait(long, int)} */
+  public static final int GC_MAX_ATTEMPTS_DEFAULT = 10;
+  
+  /** Cached result of {@link #isDisableExplicitGCEnabled()}, since the JVM arguments do not change */
+  private static volatile Boolean disableExplicitGC;
+  
   private static final ProtectionDomain[] NO_DOMAINS = new ProtectionDomain[0];
 
   private static final AccessControlContext NO_DOMAINS_ACCESS_CONTROL_CONTEXT = new AccessControlContext(NO_DOMAINS);
@@ -42,8 +65,14 @@ public class ClassLoaderLeakPreventor {
    */
   private final ClassLoader leakSafeClassLoader;
   
-  /** The {@link ClassLoader} we want to avoid leaking */
-  private final ClassLoader classLoader;
+  /** 
+   * The {@link ClassLoader} we want to avoid leaking. Cleared by {@link #releaseClassLoader()}, for example in
+   * {@link #runCleanUpsAsync()}, after which only {@link #classLoaderReference} refers to the {@link ClassLoader}.
+   */
+  private volatile ClassLoader classLoader;
+  
+  /** Weak reference to {@link #classLoader} */
+  private final WeakReference<ClassLoader> classLoaderReference;
   
   private final Logger logger;
   
@@ -53,15 +82,125 @@ public class ClassLoaderLeakPreventor {
   
   /** {@link DomainCombiner} that filters any {@link ProtectionDomain}s loaded by our classloader */
   private final DomainCombiner domainCombiner;
+  
+  /** JVM wide cache of {@link #findClass(String)}, {@link #findField(Class, String)} and {@link #findMethod(Class, String, Class[])} */
+  private static final ReflectionCache reflectionCache = new ReflectionCache();
+  
+  /** Cache of {@link #isClassLoaderOrChild(ClassLoader)} verdicts, built up during {@link #runCleanUps()} */
+  private final ClassLoaderAncestryCache ancestryCache = new ClassLoaderAncestryCache();
+  
+  /** 
+   * Max no of threads to use for running {@link ClassLoaderPreMortemCleanUp}s in parallel. Default is 1, meaning
+   * all cleanups are run in order in the thread invoking {@link #runCleanUps()}.
+   */
+  private int cleanUpThreads = 1;
+  
+  /** 
+   * No of milliseconds to wait for helper threads, such as those running {@link ClassLoaderPreMortemCleanUp}s in 
+   * parallel, to terminate.
+   */
+  private int threadWaitMs = THREAD_WAIT_MS_DEFAULT;
+  
+  /** 
+   * Max no of threads to use for running {@link PreClassLoaderInitiator}s in parallel. Default is 1, meaning
+   * all initiators are run in order in the thread invoking {@link #runPreClassLoaderInitiators()}.
+   */
+  private int preInitiatorThreads = 1;
+  
+  /** The {@link Thread} currently executing {@link #runCleanUps()}, if any */
+  private volatile Thread cleanUpThread;
+  
+  /** Threads started by {@link PreClassLoaderInitiator}s to work on behalf of this preventor, see {@link #addHelperThread(Thread)} */
+  private final Set<Thread> helperThreads = Collections.synchronizedSet(new HashSet<Thread>());
+  
+  /** {@link ThreadSnapshot} shared by all {@link ClassLoaderPreMortemCleanUp}s during {@link #runCleanUps()} */
+  private ThreadSnapshot threadSnapshot;
+  
+  /** Lock guarding {@link #threadSnapshot} */
+  private final Object threadSnapshotLock = new Object();
+  
+  /** Metrics of the {@link PreClassLoaderInitiator}s and {@link ClassLoaderPreMortemCleanUp}s invoked */
+  private final LeakPreventionMetrics metrics;
+  
+  /** 
+   * {@link StepMetrics} of the {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} run by each 
+   * thread. Not a {@link ThreadLocal}, since that could be cleared by 
+   * {@link se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp} if this library is loaded by the
+   * protected ClassLoader.
+   */
+  private final Map<Thread, StepMetrics> currentSteps = new ConcurrentHashMap<Thread, StepMetrics>();
+  
+  /** 
+   * Max no of deploy/undeploy cycles to keep in the JVM wide metrics MBean. Default is 0, meaning the metrics of this
+   * preventor will not be published in JMX.
+   */
+  private int metricsHistorySize = 0;
+
+  /** Findings of the {@link ClassLoaderPreMortemCleanUp}s */
+  private final LeakReport leakReport;
+  
+  /** Directory to write {@link #leakReport} to after {@link #runCleanUps()}, or null to not write report */
+  private File leakReportDirectory;
+  
+  /** Write {@link #leakReport} in binary format, rather than JSON? */
+  private boolean binaryLeakReport;
+  
+  /** 
+   * No of major garbage collections the protected {@link ClassLoader} may survive after {@link #runCleanUps()} before
+   * being reported as leaking by {@link LeakVerifier}. 0 means no limit.
+   */
+  private int leakVerificationGcCycles;
+  
+  /** 
+   * No of milliseconds the protected {@link ClassLoader} may survive after {@link #runCleanUps()} before being 
+   * reported as leaking by {@link LeakVerifier}. 0 means no limit.
+   */
+  private long leakVerificationTimeoutMs;
+  
+  /** 
+   * Max no of milliseconds {@link #runPreClassLoaderInitiators()} may spend on {@link LazyPreClassLoaderInitiator}s
+   * before deferring the rest to a background thread. 0 means all {@link PreClassLoaderInitiator}s are run eagerly.
+   */
+  private long preInitiatorBudgetMs;
+  
+  /** Thread running {@link LazyPreClassLoaderInitiator}s deferred by {@link #runPreClassLoaderInitiators()}, if any */
+  private volatile Thread deferredPreInitiatorThread;
+  
+  /** 
+   * JVM wide wall time in nanoseconds of the last invocation of each {@link PreClassLoaderInitiator} class, used for 
+   * reporting the time saved by skipping it
+   */
+  private static final Map<String, Long> preInitiatorWallTimes = new ConcurrentHashMap<String, Long>();
+
+  /** 
+   * Prefix of the system properties making up the JVM wide registry of completed 
+   * {@link OncePerJvmPreClassLoaderInitiator}s, keyed by class name. System properties are used since they are held 
+   * by the bootstrap classloader, and shared by all copies of this library, regardless of which classloader loaded it.
+   */
+  static final String COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX = 
+      "se.jiderhamn.classloader.leak.prevention.completed.";
+  
+  /** Should {@link OncePerJvmPreClassLoaderInitiator}s already completed in this JVM be skipped? */
+  private boolean skipCompletedPreInitiators = true;
 
   public ClassLoaderLeakPreventor(ClassLoader leakSafeClassLoader, ClassLoader classLoader, Logger logger,
                            Collection<PreClassLoaderInitiator> preClassLoaderInitiators,
                            Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    this(leakSafeClassLoader, classLoader, String.valueOf(classLoader), logger, preClassLoaderInitiators, cleanUps);
+  }
+
+  /** @param name Name of the protected {@link ClassLoader}(s) in metrics and leak report */
+  protected ClassLoaderLeakPreventor(ClassLoader leakSafeClassLoader, ClassLoader classLoader, String name, 
+                                     Logger logger, Collection<PreClassLoaderInitiator> preClassLoaderInitiators,
+                                     Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
     this.leakSafeClassLoader = leakSafeClassLoader;
     this.classLoader = classLoader;
+    this.classLoaderReference = new WeakReference<ClassLoader>(classLoader);
     this.logger = logger;
     this.preClassLoaderInitiators = preClassLoaderInitiators;
     this.cleanUps = cleanUps;
+    this.metrics = new LeakPreventionMetrics(name);
+    this.leakReport = new LeakReport(name);
 
     java_lang_classLoader_isAncestor = findMethod(ClassLoader.class, "isAncestor", ClassLoader.class);
     NestedProtectionDomainCombinerException.class.getName(); // Should be loaded before switching to leak safe classloader
@@ -75,20 +214,188 @@ public class ClassLoaderLeakPreventor {
 
   }
   
-  /** Invoke all the registered {@link PreClassLoaderInitiator}s in the {@link #leakSafeClassLoader} */
+  /** 
+   * Invoke all the registered {@link PreClassLoaderInitiator}s in the {@link #leakSafeClassLoader}, in parallel if 
+   * {@link #preInitiatorThreads} > 1. If a {@link #setPreInitiatorBudgetMs(long) budget} is set, 
+   * {@link LazyPreClassLoaderInitiator}s are skipped if their subsystem is not present, and deferred to a background 
+   * thread once the budget is used up. {@link OncePerJvmPreClassLoaderInitiator}s already completed in this JVM are
+   * skipped, unless {@link #setSkipCompletedPreInitiators(boolean) disabled}.
+   */
   public void runPreClassLoaderInitiators() {
     info("Initializing by loading some known offenders with leak safe classloader"); 
     
+    final long deadline = System.nanoTime() + preInitiatorBudgetMs * 1000000;
+    final List<PreClassLoaderInitiator> deferred = 
+        Collections.synchronizedList(new ArrayList<PreClassLoaderInitiator>());
     doInLeakSafeClassLoader(new Runnable() {
       @Override
       public void run() {
-        for(PreClassLoaderInitiator preClassLoaderInitiator : preClassLoaderInitiators) {
-          preClassLoaderInitiator.doOutsideClassLoader(ClassLoaderLeakPreventor.this);
+        final List<PreClassLoaderInitiator> initiators = new ArrayList<PreClassLoaderInitiator>();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        for(final PreClassLoaderInitiator preClassLoaderInitiator : preClassLoaderInitiators) {
+          if(skipCompletedPreInitiators && isCompletedInJvm(preClassLoaderInitiator))
+            continue;
+          
+          final boolean lazy = preInitiatorBudgetMs > 0 && preClassLoaderInitiator instanceof LazyPreClassLoaderInitiator;
+          if(lazy && ! isSubsystemPresent((LazyPreClassLoaderInitiator) preClassLoaderInitiator))
+            continue;
+          
+          initiators.add(preClassLoaderInitiator);
+          tasks.add(new Runnable() {
+            @Override
+            public void run() {
+              if(lazy && System.nanoTime() - deadline >= 0)
+                deferred.add(preClassLoaderInitiator);
+              else
+                runPreClassLoaderInitiator(preClassLoaderInitiator, null);
+            }
+          });
+        }
+        
+        if(preInitiatorThreads > 1 && tasks.size() > 1)
+          runPreClassLoaderInitiatorsInParallel(initiators, tasks);
+        else {
+          for(Runnable task : tasks) {
+            task.run();
+          }
         }
+        
+        if(! deferred.isEmpty())
+          startDeferredPreClassLoaderInitiators(new ArrayList<PreClassLoaderInitiator>(deferred));
       }
     });
   }
   
+  /** 
+   * Run the tasks of the {@link PreClassLoaderInitiator}s using up to {@link #preInitiatorThreads} threads, respecting
+   * {@link MustBeAfter}. Each task is run via {@link #doInLeakSafeClassLoader(Runnable)}, since the stack of the worker
+   * thread includes this class, that may have been loaded by the protected {@link ClassLoader}.
+   */
+  private void runPreClassLoaderInitiatorsInParallel(List<PreClassLoaderInitiator> initiators, List<Runnable> tasks) {
+    final List<Runnable> leakSafeTasks = new ArrayList<Runnable>(tasks.size());
+    for(final Runnable task : tasks) {
+      leakSafeTasks.add(new Runnable() {
+        @Override
+        public void run() {
+          doInLeakSafeClassLoader(task);
+        }
+      });
+    }
+    
+    new ParallelRunner(this, preInitiatorThreads, "ClassLoaderLeakPreventor-preinit", threadWaitMs)
+        .run(leakSafeTasks, ParallelRunner.getDependencies(initiators));
+  }
+  
+  /** 
+   * Has the {@link PreClassLoaderInitiator} already completed in this JVM, so that it can be skipped? Only applies to 
+   * {@link OncePerJvmPreClassLoaderInitiator}s. Records {@link StepMetrics} if skipped.
+   */
+  private boolean isCompletedInJvm(PreClassLoaderInitiator preClassLoaderInitiator) {
+    if(! (preClassLoaderInitiator instanceof OncePerJvmPreClassLoaderInitiator))
+      return false;
+    
+    try {
+      if(System.getProperty(COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX + preClassLoaderInitiator.getClass().getName()) == null)
+        return false;
+    }
+    catch (SecurityException e) {
+      return false;
+    }
+    
+    addSkippedPreClassLoaderInitiator(preClassLoaderInitiator, "alreadyCompleted");
+    debug("Skipped " + preClassLoaderInitiator.getClass().getName() + " since already completed in this JVM");
+    return true;
+  }
+  
+  /** Record {@link OncePerJvmPreClassLoaderInitiator} as completed in the JVM wide registry */
+  private void markCompletedInJvm(PreClassLoaderInitiator preClassLoaderInitiator) {
+    try {
+      System.setProperty(COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX + preClassLoaderInitiator.getClass().getName(), 
+          Long.toString(System.currentTimeMillis()));
+    }
+    catch (SecurityException e) {
+      debug("Unable to record " + preClassLoaderInitiator.getClass().getName() + " as completed: " + e);
+    }
+  }
+  
+  /** Add {@link StepMetrics} for a {@link PreClassLoaderInitiator} that was not run, with the reason as action */
+  private void addSkippedPreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator, String action) {
+    final StepMetrics stepMetrics = metrics.addPreClassLoaderInitiator(preClassLoaderInitiator);
+    stepMetrics.start();
+    stepMetrics.recordAction(action);
+    stepMetrics.stop(true);
+  }
+  
+  /** Probe for the subsystem of the {@link LazyPreClassLoaderInitiator}, recording its {@link StepMetrics} if skipped */
+  private boolean isSubsystemPresent(LazyPreClassLoaderInitiator preClassLoaderInitiator) {
+    final long start = System.nanoTime();
+    if(preClassLoaderInitiator.isSubsystemPresent(this))
+      return true;
+    
+    final long probeNanos = System.nanoTime() - start;
+    addSkippedPreClassLoaderInitiator(preClassLoaderInitiator, "skipped");
+    final Long lastWallTime = preInitiatorWallTimes.get(preClassLoaderInitiator.getClass().getName());
+    info("Skipped " + preClassLoaderInitiator.getClass().getName() + " since subsystem is not present (probe took " + 
+        probeNanos / 1000 + " microseconds" + 
+        ((lastWallTime != null) ? ", saving " + lastWallTime / 1000000 + " ms as last run in this JVM)" : ")"));
+    return false;
+  }
+  
+  /** 
+   * Invoke the deferred {@link PreClassLoaderInitiator}s in a background thread, that is expected to be started in 
+   * the {@link #leakSafeClassLoader} so that it does not inherit context ClassLoader nor AccessControlContext
+   */
+  private void startDeferredPreClassLoaderInitiators(final List<PreClassLoaderInitiator> deferred) {
+    final Thread worker = new Thread("ClassLoaderLeakPreventor deferred pre-initiators") {
+      @Override
+      public void run() {
+        try {
+          for(PreClassLoaderInitiator preClassLoaderInitiator : deferred) {
+            final StepMetrics stepMetrics = runPreClassLoaderInitiator(preClassLoaderInitiator, "deferred");
+            info("Deferred " + preClassLoaderInitiator.getClass().getName() + ", saving " + 
+                stepMetrics.getWallTimeNanos() / 1000000 + " ms of startup");
+          }
+        }
+        catch (Throwable t) {
+          error(t);
+        }
+        finally {
+          removeHelperThread(this);
+          deferredPreInitiatorThread = null;
+        }
+      }
+    };
+    worker.setDaemon(true);
+    addHelperThread(worker);
+    deferredPreInitiatorThread = worker;
+    worker.start();
+  }
+  
+  /** 
+   * Invoke {@link PreClassLoaderInitiator}, recording its {@link StepMetrics} 
+   * @param action Action to record in the {@link StepMetrics}, or null
+   */
+  private StepMetrics runPreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator, String action) {
+    final StepMetrics stepMetrics = metrics.addPreClassLoaderInitiator(preClassLoaderInitiator);
+    boolean completed = false;
+    if(action != null)
+      stepMetrics.recordAction(action);
+    currentSteps.put(Thread.currentThread(), stepMetrics);
+    stepMetrics.start();
+    try {
+      preClassLoaderInitiator.doOutsideClassLoader(this);
+      completed = true;
+      if(preClassLoaderInitiator instanceof OncePerJvmPreClassLoaderInitiator)
+        markCompletedInJvm(preClassLoaderInitiator);
+    }
+    finally {
+      stepMetrics.stop(completed);
+      currentSteps.remove(Thread.currentThread());
+      preInitiatorWallTimes.put(preClassLoaderInitiator.getClass().getName(), stepMetrics.getWallTimeNanos());
+    }
+    return stepMetrics;
+  }
+  
   /**
    * Perform action in the provided ClassLoader (normally system ClassLoader, that may retain references to the 
    * {@link Thread#contextClassLoader}. 
@@ -205,6 +512,29 @@ public class ClassLoaderLeakPreventor {
     }
   }
   
+  /** 
+   * Unset our custom {@link DomainCombiner} from the {@link AccessControlContext} inherited by a helper thread created
+   * in {@link #doInLeakSafeClassLoader(Runnable)}. The {@link ProtectionDomain}s of the protected classloader have 
+   * already been filtered out, but the combiner would otherwise be invoked for any privileged action of the thread.
+   * Does not recurse, since the privileged context is shared with any other threads created in the same 
+   * {@link #doInLeakSafeClassLoader(Runnable)} call, and would no longer filter their {@link ProtectionDomain}s.
+   */
+  void removeInheritedDomainCombiner(Thread thread) {
+    final Field inheritedAccessControlContext = this.findField(Thread.class, "inheritedAccessControlContext");
+    if(inheritedAccessControlContext != null && java_security_AccessControlContext$combiner != null) {
+      final AccessControlContext accessControlContext = getFieldValue(inheritedAccessControlContext, thread);
+      if(accessControlContext != null && 
+          getFieldValue(java_security_AccessControlContext$combiner, accessControlContext) == this.domainCombiner) {
+        try {
+          java_security_AccessControlContext$combiner.set(accessControlContext, null);
+        }
+        catch (Exception e) {
+          error(e);
+        }
+      }
+    }
+  }
+  
   
   /** Invoke all the registered {@link ClassLoaderPreMortemCleanUp}s */
   public void runCleanUps() {
@@ -213,26 +543,360 @@ public class ClassLoaderLeakPreventor {
       // Don't do anything more
     }
     else {
-      final Field inheritedAccessControlContext = this.findField(Thread.class, "inheritedAccessControlContext");
-      if(inheritedAccessControlContext != null) {
-        // Check if threads have been started in doInLeakSafeClassLoader() and need fixed ACC
-        for(Thread thread : getAllThreads()) { // (We actually only need to do this for threads not running in web app, as per StopThreadsCleanUp) 
-          final AccessControlContext accessControlContext = getFieldValue(inheritedAccessControlContext, thread);
-          removeDomainCombiner(thread, accessControlContext);
-        }
+      startCleanUps();
+      try {
+        runCleanUps(cleanUps);
       }
+      finally {
+        completeCleanUps();
+      }
+    }
+  }
+
+  /**
+   * Invoke the registered {@link ClassLoaderPreMortemCleanUp}s preceding the first {@link DeferrableCleanUp} in the 
+   * current thread, and then return while that and all the following cleanups continue, in the original order, in a 
+   * background thread started in the {@link #leakSafeClassLoader}. From here on, this preventor only holds a weak 
+   * reference to the protected {@link ClassLoader}, and the background thread skips any remaining cleanups once the 
+   * {@link ClassLoader} has been garbage collected.
+   * 
+   * This requires this library to be loaded outside the protected {@link ClassLoader}, since otherwise the background
+   * thread running its code would keep the {@link ClassLoader} from being garbage collected. If it is not, all the 
+   * cleanups are run synchronously, and the returned {@link Future} is already done.
+   * @return {@link Future} that completes with the {@link LeakReport} when all cleanups are done, or fails with the 
+   *   error thrown by a cleanup. Errors thrown by deferred cleanups are also logged, as they happen.
+   */
+  public Future<LeakReport> runCleanUpsAsync() {
+    FutureTask<LeakReport> output;
+    final boolean loadedByClassLoader = isLoadedByClassLoader(getClass());
+    if(loadedByClassLoader)
+      info("Asynchronous cleanup requires " + getClass().getName() + 
+          " to be loaded outside the protected ClassLoader; running cleanups synchronously");
+    if(loadedByClassLoader || isJvmShuttingDown()) { // runCleanUps() skips cleanup if JVM is shutting down
+      output = new FutureTask<LeakReport>(new Runnable() {
+        @Override
+        public void run() {
+          runCleanUps();
+        }
+      }, leakReport);
+      output.run();
+      return output;
+    }
+    
+    final List<ClassLoaderPreMortemCleanUp> inline = new ArrayList<ClassLoaderPreMortemCleanUp>();
+    final List<ClassLoaderPreMortemCleanUp> deferred = new ArrayList<ClassLoaderPreMortemCleanUp>();
+    for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
+      if(cleanUp instanceof DeferrableCleanUp || ! deferred.isEmpty()) // Keep the original order
+        deferred.add(cleanUp);
+      else
+        inline.add(cleanUp);
+    }
+    
+    startCleanUps();
+    boolean started = false;
+    try {
+      runCleanUps(inline);
+      invalidateThreadSnapshot(); // Threads may have changed before the deferred cleanups run 
       
+      output = new FutureTask<LeakReport>(new DeferredCleanUps(this, deferred), leakReport);
+      final FutureTask<LeakReport> task = output;
+      doInLeakSafeClassLoader(new Runnable() {
+        @Override
+        public void run() { // Create thread here, so it does not inherit context ClassLoader nor AccessControlContext 
+          final Thread worker = new Thread(task, "ClassLoaderLeakPreventor deferred cleanup");
+          worker.setDaemon(true);
+          worker.start();
+        }
+      });
+      started = true;
+    }
+    finally {
+      if(! started)
+        completeCleanUps();
+    }
+    
+    releaseClassLoader();
+    return output;
+  }
+
+  /** Drop the strong reference to the protected {@link ClassLoader}, only keeping {@link #classLoaderReference} */
+  protected void releaseClassLoader() {
+    classLoader = null;
+  }
+
+  /** 
+   * Runs the {@link ClassLoaderPreMortemCleanUp}s deferred by {@link #runCleanUpsAsync()}, and then the completion 
+   * of {@link #runCleanUps()}. References to the preventor and cleanups are dropped once done. Any error is logged,
+   * and then rethrown to fail the {@link Future}.
+   */
+  private static class DeferredCleanUps implements Runnable {
+    
+    private ClassLoaderLeakPreventor preventor;
+    
+    private List<ClassLoaderPreMortemCleanUp> cleanUps;
+
+    DeferredCleanUps(ClassLoaderLeakPreventor preventor, List<ClassLoaderPreMortemCleanUp> cleanUps) {
+      this.preventor = preventor;
+      this.cleanUps = cleanUps;
+    }
+
+    @Override
+    public void run() {
+      final long start = System.nanoTime();
+      preventor.cleanUpThread = Thread.currentThread();
+      try {
+        for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
+          if(preventor.getProtectedClassLoaders().isEmpty()) {
+            preventor.info("ClassLoader garbage collected; skipping remaining deferred cleanups");
+            break;
+          }
+          preventor.runCleanUp(cleanUp);
+        }
+        preventor.info("Deferred cleanups completed in " + (System.nanoTime() - start) / 1000000 + " ms");
+      }
+      catch (RuntimeException e) {
+        preventor.error(e);
+        throw e;
+      }
+      catch (Error e) {
+        preventor.error(e);
+        throw e;
+      }
+      finally {
+        preventor.completeCleanUps();
+        preventor = null;
+        cleanUps = null;
+      }
+    }
+  }
+
+  /** Prepare for invoking the {@link ClassLoaderPreMortemCleanUp}s from the current thread */
+  private void startCleanUps() {
+    ancestryCache.resetCounters();
+    cleanUpThread = Thread.currentThread();
+    final Thread deferredPreInitiatorThread = this.deferredPreInitiatorThread;
+    if(deferredPreInitiatorThread != null) { // Application stopped before deferred pre-initiators completed
+      waitForThread(deferredPreInitiatorThread, threadWaitMs, false);
+      removeHelperThread(deferredPreInitiatorThread);
+    }
+    final Field inheritedAccessControlContext = this.findField(Thread.class, "inheritedAccessControlContext");
+    if(inheritedAccessControlContext != null) {
+      // Check if threads have been started in doInLeakSafeClassLoader() and need fixed ACC
+      for(Thread thread : getThreadSnapshot().getThreads()) { // (We actually only need to do this for threads not running in web app, as per StopThreadsCleanUp) 
+        final AccessControlContext accessControlContext = getFieldValue(inheritedAccessControlContext, thread);
+        removeDomainCombiner(thread, accessControlContext);
+      }
+    }
+  }
+  
+  /** Invoke the provided {@link ClassLoaderPreMortemCleanUp}s, in parallel if {@link #cleanUpThreads} > 1 */
+  private void runCleanUps(Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    if(cleanUpThreads > 1 && cleanUps.size() > 1) {
+      runCleanUpsInParallel(cleanUps);
+    }
+    else {
       for(ClassLoaderPreMortemCleanUp cleanUp : cleanUps) {
-        cleanUp.cleanUp(this);
+        runCleanUp(cleanUp);
+      }
+    }
+  }
+  
+  /** Release resources held during cleanup, and publish the results */
+  private void completeCleanUps() {
+    cleanUpThread = null;
+    invalidateThreadSnapshot(); // Do not keep references to the threads
+    debug("ClassLoader ancestry cache: " + ancestryCache.getHits() + " hits, " + ancestryCache.getMisses() + " misses");
+    ancestryCache.clear(); // Verdicts are only needed during the cleanup pass
+    publishMetrics();
+    writeLeakReport();
+    startLeakVerification();
+  }
+  
+  /** Let {@link LeakVerifier} watch the protected {@link ClassLoader}(s), if enabled */
+  private void startLeakVerification() {
+    if(leakVerificationGcCycles > 0 || leakVerificationTimeoutMs > 0) {
+      final Collection<ClassLoader> classLoaders = getProtectedClassLoaders();
+      if(classLoaders.isEmpty()) {
+        debug("ClassLoader already garbage collected; no leak verification needed");
+      }
+      else if(isLoadedByClassLoader(LeakVerifier.class)) {
+        info("Leak verification requires " + getClass().getName() + " to be loaded outside the protected ClassLoader");
+      }
+      else if(isLoadedInClassLoader(logger)) {
+        info("Leak verification requires the " + Logger.class.getSimpleName() + 
+            " to be loaded outside the protected ClassLoader");
       }
+      else {
+        for(ClassLoader classLoader : classLoaders) {
+          LeakVerifier.getInstance().watch(classLoader, logger, leakVerificationGcCycles, leakVerificationTimeoutMs);
+        }
+      }
+    }
+  }
+  
+  /** Write {@link #leakReport} to file in {@link #leakReportDirectory}, if set */
+  private void writeLeakReport() {
+    if(leakReportDirectory != null) {
+      doInLeakSafeClassLoader(new Runnable() {
+        @Override
+        public void run() {
+          final File file = new File(leakReportDirectory, "leak-report-" + leakReport.getStartTime() + "-" + 
+              Integer.toHexString(System.identityHashCode(leakReport)) + (binaryLeakReport ? ".bin" : ".json"));
+          OutputStream out = null;
+          try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            if(binaryLeakReport)
+              new LeakReportBinaryWriter(out).write(leakReport);
+            else
+              new LeakReportJsonWriter(new OutputStreamWriter(out, "UTF-8")).write(leakReport);
+            info("Leak report written to " + file);
+          }
+          catch (IOException e) {
+            warn(e);
+          }
+          finally {
+            if(out != null) {
+              try {
+                out.close();
+              }
+              catch (IOException e) {
+                warn(e);
+              }
+            }
+          }
+        }
+      });
+    }
+  }
+  
+  /** Invoke {@link ClassLoaderPreMortemCleanUp}, recording its {@link StepMetrics} */
+  private void runCleanUp(ClassLoaderPreMortemCleanUp cleanUp) {
+    final StepMetrics stepMetrics = metrics.addCleanUp(cleanUp);
+    boolean completed = false;
+    currentSteps.put(Thread.currentThread(), stepMetrics);
+    stepMetrics.start();
+    try {
+      invokeCleanUp(cleanUp);
+      completed = true;
+    }
+    finally {
+      stepMetrics.stop(completed);
+      currentSteps.remove(Thread.currentThread());
     }
   }
   
+  /** Invoke the provided {@link ClassLoaderPreMortemCleanUp} on this preventor */
+  protected void invokeCleanUp(ClassLoaderPreMortemCleanUp cleanUp) {
+    cleanUp.cleanUp(this);
+  }
+  
+  /** Log metrics, and publish them in JMX unless {@link #metricsHistorySize} is 0 */
+  private void publishMetrics() {
+    for(StepMetrics stepMetrics : metrics.getCleanUps()) {
+      debug(stepMetrics.toString());
+    }
+    
+    if(metricsHistorySize > 0) {
+      doInLeakSafeClassLoader(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            MetricsMBeanPublisher.publish(metrics, metricsHistorySize);
+          }
+          catch (Exception e) {
+            warn(e);
+          }
+        }
+      });
+    }
+  }
+  
+  /** 
+   * Invoke the registered {@link ClassLoaderPreMortemCleanUp}s using up to {@link #cleanUpThreads} threads.
+   * {@link ClassLoaderPreMortemCleanUp}s implementing {@link MustBeAfter} are not started until the cleanups they 
+   * depend on have completed. 
+   */
+  private void runCleanUpsInParallel(Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    final List<ClassLoaderPreMortemCleanUp> cleanUpList = new ArrayList<ClassLoaderPreMortemCleanUp>(cleanUps);
+    final List<Runnable> tasks = new ArrayList<Runnable>(cleanUpList.size());
+    for(final ClassLoaderPreMortemCleanUp cleanUp : cleanUpList) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          runCleanUp(cleanUp);
+        }
+      });
+    }
+    
+    new ParallelRunner(this, cleanUpThreads, "ClassLoaderLeakPreventor-cleanup", threadWaitMs)
+        .run(tasks, ParallelRunner.getDependencies(cleanUpList));
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   // Utility methods
 
+  /** 
+   * Get the protected {@link ClassLoader}. May return null after {@link #runCleanUpsAsync()}, if the 
+   * {@link ClassLoader} has been garbage collected.
+   */
   public ClassLoader getClassLoader() {
-    return classLoader;
+    final ClassLoader classLoader = this.classLoader;
+    return (classLoader != null) ? classLoader : classLoaderReference.get();
+  }
+
+  /** Get all {@link ClassLoader}s protected by this preventor, except any that have been garbage collected */
+  public Collection<ClassLoader> getProtectedClassLoaders() {
+    final ClassLoader classLoader = getClassLoader();
+    return (classLoader != null) ? Collections.singletonList(classLoader) : Collections.<ClassLoader>emptyList();
+  }
+
+  /** 
+   * Set the max no of threads to use for running {@link ClassLoaderPreMortemCleanUp}s in {@link #runCleanUps()}.
+   * If greater than 1, cleanups will be run in parallel in threads started in the {@link #leakSafeClassLoader}, only 
+   * respecting the order imposed by {@link MustBeAfter}. This requires the {@link Logger} to be thread safe.
+   */
+  public void setCleanUpThreads(int cleanUpThreads) {
+    this.cleanUpThreads = cleanUpThreads;
+  }
+
+  /** 
+   * Set the max no of threads to use for running {@link PreClassLoaderInitiator}s in 
+   * {@link #runPreClassLoaderInitiators()}. If greater than 1, initiators will be run in parallel in threads started in
+   * the {@link #leakSafeClassLoader}, only respecting the order imposed by {@link MustBeAfter}. This requires the 
+   * {@link Logger} to be thread safe.
+   */
+  public void setPreInitiatorThreads(int preInitiatorThreads) {
+    this.preInitiatorThreads = preInitiatorThreads;
+  }
+
+  /** 
+   * Set the no of milliseconds to wait for helper threads, such as those running {@link PreClassLoaderInitiator}s or
+   * {@link ClassLoaderPreMortemCleanUp}s in parallel, to terminate. Default is {@link #THREAD_WAIT_MS_DEFAULT}.
+   */
+  public void setThreadWaitMs(int threadWaitMs) {
+    this.threadWaitMs = threadWaitMs;
+  }
+
+  /** 
+   * Is the provided {@link Thread} the one running the cleanup, i.e. the current thread or the thread that invoked
+   * {@link #runCleanUps()}? Such threads should not be stopped, even if {@link ClassLoaderPreMortemCleanUp}s are
+   * run in parallel.
+   */
+  public boolean isCleanUpThread(Thread thread) {
+    return thread == Thread.currentThread() || thread == cleanUpThread || helperThreads.contains(thread);
+  }
+
+  /** 
+   * Register a {@link Thread} working on behalf of this preventor, that should be considered a 
+   * {@link #isCleanUpThread(Thread) cleanup thread} and thereby not be stopped. The thread must terminate, and be
+   * {@link #removeHelperThread(Thread) removed}, no later than during {@link #runCleanUps()}.
+   */
+  public void addHelperThread(Thread thread) {
+    helperThreads.add(thread);
+  }
+
+  public void removeHelperThread(Thread thread) {
+    helperThreads.remove(thread);
   }
 
   /**
@@ -257,16 +921,23 @@ public class ClassLoaderLeakPreventor {
 
   /** Test if provided ClassLoader is the {@link #classLoader}, or a child thereof */
   public boolean isClassLoaderOrChild(ClassLoader cl) {
-    if(cl == null) {
+    final ClassLoader classLoader = getClassLoader();
+    if(cl == null || classLoader == null) {
       return false;
     }
     else if(cl == classLoader) {
       return true;
     }
     else { // It could be a child of the webapp classloader
+      final Boolean cached = ancestryCache.get(cl);
+      if(cached != null)
+        return cached;
+      
       if(java_lang_classLoader_isAncestor != null) { // Primarily use ClassLoader.isAncestor()
         try {
-          return (Boolean) java_lang_classLoader_isAncestor.invoke(cl, classLoader);
+          final boolean isAncestor = (Boolean) java_lang_classLoader_isAncestor.invoke(cl, classLoader);
+          ancestryCache.put(cl, isAncestor);
+          return isAncestor;
         }
         catch (Exception e) {
           error(e);
@@ -274,10 +945,13 @@ public class ClassLoaderLeakPreventor {
       }
 
       // We were unable to use ClassLoader.isAncestor()
+      final ClassLoader original = cl;
       try {
         while(cl != null) {
-          if(cl == classLoader)
+          if(cl == classLoader) {
+            ancestryCache.put(original, true);
             return true;
+          }
 
           cl = cl.getParent();
         }
@@ -285,9 +959,26 @@ public class ClassLoaderLeakPreventor {
       catch (NestedProtectionDomainCombinerException e) {
         return false; // Since we needed permission to call getParent(), it is unlikely it is a descendant
       }
+      ancestryCache.put(original, false);
       return false;
     }
   }
+  
+  /** 
+   * Get the number of {@link #isClassLoaderOrChild(ClassLoader)} calls answered by the ancestry cache during the last
+   * (or currently executing) {@link #runCleanUps()}.
+   */
+  public long getAncestryCacheHits() {
+    return ancestryCache.getHits();
+  }
+
+  /** 
+   * Get the number of {@link #isClassLoaderOrChild(ClassLoader)} calls that could not be answered by the ancestry 
+   * cache during the last (or currently executing) {@link #runCleanUps()}.
+   */
+  public long getAncestryCacheMisses() {
+    return ancestryCache.getMisses();
+  }
 
   /**
    * Is the {@link Thread} ties do the protected classloader, either by being a custom {@link Thread} class, having a 
@@ -325,6 +1016,47 @@ public class ClassLoaderLeakPreventor {
       }
     }
   }
+
+  /**
+   * Wait for all the provided threads to finish, using a single deadline shared by all of them, so that the total
+   * wait is at most {@code waitMs} regardless of the number of threads.
+   * @return The threads that were still alive when the deadline passed
+   */
+  public List<Thread> waitForThreads(Collection<Thread> threads, long waitMs) {
+    final long deadline = System.nanoTime() + waitMs * 1000000L;
+    final List<Thread> output = new ArrayList<Thread>();
+    for(Thread thread : threads) {
+      final long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+      if(remainingMs > 0) {
+        try {
+          thread.join(remainingMs);
+        }
+        catch (InterruptedException e) {
+          // Do nothing
+        }
+      }
+      if(thread.isAlive())
+        output.add(thread);
+    }
+    return output;
+  }
+
+  /** 
+   * Test if the resource, such as a class file, is present in or reachable from any of the protected 
+   * {@link ClassLoader}s, see {@link #getProtectedClassLoaders()}
+   */
+  public boolean isResourcePresent(String resourceName) {
+    for(ClassLoader classLoader : getProtectedClassLoaders()) {
+      try {
+        if(classLoader.getResource(resourceName) != null)
+          return true;
+      }
+      catch (Exception e) { // SecurityException
+        // Try next
+      }
+    }
+    return false;
+  }
   
   /** Get current stack trace or provided thread as string. Returns {@code "unavailable"} if stack trace could not be acquired. */
   public String getStackTrace(Thread thread) {
@@ -380,8 +1112,14 @@ public class ClassLoaderLeakPreventor {
   }
   
   public Class<?> findClass(String className, boolean trySystemCL) {
+    final Object cacheKey = ReflectionCache.classKey(className, trySystemCL);
+    final Object cached = reflectionCache.get(cacheKey);
+    if(cached != null)
+      return (cached != ReflectionCache.NOT_FOUND) ? (Class<?>) cached : null;
+    
+    Class<?> clazz = null;
     try {
-      return Class.forName(className);
+      clazz = Class.forName(className);
     }
 //    catch (NoClassDefFoundError e) {
 //      // Silently ignore
@@ -390,32 +1128,46 @@ public class ClassLoaderLeakPreventor {
     catch (ClassNotFoundException e) {
       if (trySystemCL) {
         try {
-          return Class.forName(className, true, ClassLoader.getSystemClassLoader());
+          clazz = Class.forName(className, true, ClassLoader.getSystemClassLoader());
         } catch (ClassNotFoundException e1) {
           // Silently ignore
-          return null;
         }
       }
       // Silently ignore
-      return null;
     }
     catch (Exception ex) { // Example SecurityException
       warn(ex);
-      return null;
+      return null; // Not cached, since it may succeed next time
     }
+    
+    if(clazz == null || isReflectionCacheable(clazz))
+      reflectionCache.put(cacheKey, clazz);
+    return clazz;
   }
   
   public Field findField(Class<?> clazz, String fieldName) {
     if(clazz == null)
       return null;
 
+    final boolean cacheable = isReflectionCacheable(clazz);
+    final Object cacheKey = cacheable ? ReflectionCache.fieldKey(clazz, fieldName) : null;
+    if(cacheable) {
+      final Object cached = reflectionCache.get(cacheKey);
+      if(cached != null)
+        return (cached != ReflectionCache.NOT_FOUND) ? (Field) cached : null;
+    }
+
     try {
       final Field field = clazz.getDeclaredField(fieldName);
       field.setAccessible(true); // (Field is probably private) 
+      if(cacheable)
+        reflectionCache.put(cacheKey, field);
       return field;
     }
     catch (NoSuchFieldException ex) {
       // Silently ignore
+      if(cacheable)
+        reflectionCache.put(cacheKey, null);
       return null;
     }
     catch (Exception ex) { // Example SecurityException
@@ -495,17 +1247,201 @@ public class ClassLoaderLeakPreventor {
     if(clazz == null)
       return null;
 
+    final boolean cacheable = isReflectionCacheable(clazz) && isReflectionCacheable(parameterTypes);
+    final Object cacheKey = cacheable ? ReflectionCache.methodKey(clazz, methodName, parameterTypes) : null;
+    if(cacheable) {
+      final Object cached = reflectionCache.get(cacheKey);
+      if(cached == ReflectionCache.NOT_FOUND) {
+        warn("Method " + methodName + " not found in " + clazz.getName());
+        return null;
+      }
+      else if(cached != null)
+        return (Method) cached;
+    }
+
     try {
       final Method method = clazz.getDeclaredMethod(methodName, parameterTypes);
       method.setAccessible(true);
+      if(cacheable)
+        reflectionCache.put(cacheKey, method);
       return method;
     }
     catch (NoSuchMethodException ex) {
       warn(ex);
       // Silently ignore
+      if(cacheable)
+        reflectionCache.put(cacheKey, null);
       return null;
     }
   }
+  
+  /**
+   * Can the result of reflection lookups in the provided class be kept in the JVM wide {@link ReflectionCache}
+   * without causing a leak? This is the case if the class is loaded by the leak safe classloader or one of its 
+   * parents, but not by the protected classloader.
+   */
+  protected boolean isReflectionCacheable(Class<?> clazz) {
+    final ClassLoader clazzClassLoader = clazz.getClassLoader();
+    if(clazzClassLoader == null) // Bootstrap classloader
+      return true;
+    
+    if(isClassLoaderOrChild(clazzClassLoader))
+      return false;
+    
+    for(ClassLoader cl = leakSafeClassLoader; cl != null; cl = cl.getParent()) {
+      if(cl == clazzClassLoader)
+        return true;
+    }
+    return false;
+  }
+  
+  /** Are all the provided classes {@link #isReflectionCacheable(Class)}? */
+  private boolean isReflectionCacheable(Class<?>[] classes) {
+    if(classes != null) {
+      for(Class<?> clazz : classes) {
+        if(! isReflectionCacheable(clazz))
+          return false;
+      }
+    }
+    return true;
+  }
+  
+  /** Get the no of {@link #findClass(String)}, {@link #findField(Class, String)} and 
+   * {@link #findMethod(Class, String, Class[])} lookups served from the JVM wide cache */
+  public long getReflectionCacheHits() {
+    return reflectionCache.getHits();
+  }
+
+  /** Get metrics of the {@link PreClassLoaderInitiator}s and {@link ClassLoaderPreMortemCleanUp}s invoked so far */
+  public LeakPreventionMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /** 
+   * Set the max no of deploy/undeploy cycles to keep in the JVM wide metrics MBean (see {@link #getMetrics()}). 
+   * If 0, the metrics of this preventor will not be published.
+   */
+  public void setMetricsHistorySize(int metricsHistorySize) {
+    this.metricsHistorySize = metricsHistorySize;
+  }
+  
+  /** Get the findings of the {@link ClassLoaderPreMortemCleanUp}s invoked so far */
+  public LeakReport getLeakReport() {
+    return leakReport;
+  }
+  
+  /** 
+   * Set directory to write {@link #getLeakReport() leak report} to after {@link #runCleanUps()}, with one file per
+   * preventor. If null, no report will be written.
+   * @param binary Use {@link LeakReportBinaryWriter binary} format rather than {@link LeakReportJsonWriter JSON}
+   */
+  public void setLeakReportDirectory(File leakReportDirectory, boolean binary) {
+    this.leakReportDirectory = leakReportDirectory;
+    this.binaryLeakReport = binary;
+  }
+
+  /**
+   * Verify that the protected {@link ClassLoader} is garbage collected after {@link #runCleanUps()}, by means of 
+   * {@link LeakVerifier}, reporting a probable leak if it survives the provided no of major garbage collections or
+   * milliseconds, whichever comes first. 0 means no limit, and if both are 0, no verification is performed.
+   */
+  public void setLeakVerification(int gcCycles, long timeoutMs) {
+    this.leakVerificationGcCycles = gcCycles;
+    this.leakVerificationTimeoutMs = timeoutMs;
+  }
+  
+  /** 
+   * Set max no of milliseconds {@link #runPreClassLoaderInitiators()} may spend before deferring the remaining 
+   * {@link LazyPreClassLoaderInitiator}s to a background thread. When set, {@link LazyPreClassLoaderInitiator}s whose
+   * subsystem is not present are skipped altogether. Default is 0, meaning all {@link PreClassLoaderInitiator}s are
+   * run eagerly. Note that the application may trigger a leak by using a subsystem before its deferred 
+   * {@link LazyPreClassLoaderInitiator} has run.
+   */
+  public void setPreInitiatorBudgetMs(long preInitiatorBudgetMs) {
+    this.preInitiatorBudgetMs = preInitiatorBudgetMs;
+  }
+  
+  /** 
+   * Should {@link OncePerJvmPreClassLoaderInitiator}s that have already completed in this JVM, for example during a 
+   * previous deployment, be skipped by {@link #runPreClassLoaderInitiators()}? Default is true.
+   */
+  public void setSkipCompletedPreInitiators(boolean skipCompletedPreInitiators) {
+    this.skipCompletedPreInitiators = skipCompletedPreInitiators;
+  }
+  
+  /** 
+   * Record a potential leak in the {@link #getLeakReport() leak report}, and {@link #recordAction(String) record the
+   * action} taken in the {@link StepMetrics} of the {@link ClassLoaderPreMortemCleanUp} currently running in this 
+   * thread.
+   * @param category Category of leak, such as "Thread"
+   * @param target Object causing the leak; its class name and identity hash code are recorded
+   * @param action Action taken, such as "threadsStopped"
+   */
+  public void recordFinding(String category, Object target, String action) {
+    recordFinding(category, target, (target != null) ? target.getClass().getName() : null, 
+        (target != null) ? Integer.toHexString(System.identityHashCode(target)) : null, action);
+  }
+  
+  /** 
+   * Record a potential leak in the {@link #getLeakReport() leak report}, and {@link #recordAction(String) record the
+   * action} taken.
+   * @param identity Identity of the object causing the leak, such as the name of an MBean
+   */
+  public void recordFinding(String category, String targetType, String identity, String action) {
+    recordFinding(category, null, targetType, identity, action);
+  }
+  
+  private void recordFinding(String category, Object target, String targetType, String identity, String action) {
+    final StepMetrics stepMetrics = currentSteps.get(Thread.currentThread());
+    addFinding(new LeakReport.Finding(stepMetrics, category, targetType, identity, action), target);
+    if(stepMetrics != null)
+      stepMetrics.recordAction(action);
+  }
+  
+  /** 
+   * Add finding to the {@link #getLeakReport() leak report}
+   * @param target Object causing the leak, or null if not known
+   */
+  protected void addFinding(LeakReport.Finding finding, Object target) {
+    leakReport.addFinding(finding);
+  }
+  
+  /** 
+   * Record that the {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} currently running in this
+   * thread performed some action, such as stopping a thread. The no of times each action is performed is included 
+   * in the {@link StepMetrics}.
+   */
+  public void recordAction(String action) {
+    final StepMetrics stepMetrics = currentSteps.get(Thread.currentThread());
+    if(stepMetrics != null)
+      stepMetrics.recordAction(action);
+  }
+  
+  /** 
+   * Get a {@link ThreadSnapshot} of all threads. During {@link #runCleanUps()}, the same snapshot is returned to all 
+   * {@link ClassLoaderPreMortemCleanUp}s, otherwise a new snapshot is created on each invocation.
+   */
+  public ThreadSnapshot getThreadSnapshot() {
+    if(cleanUpThread == null) // Not running cleanups
+      return new ThreadSnapshot(this);
+    
+    synchronized (threadSnapshotLock) {
+      if(threadSnapshot == null) // First invocation during this cleanup, or invalidated
+        threadSnapshot = new ThreadSnapshot(this);
+      return threadSnapshot;
+    }
+  }
+  
+  /** 
+   * Discard the current {@link ThreadSnapshot}, so that threads are enumerated again on the next 
+   * {@link #getThreadSnapshot()}. Should be called by {@link ClassLoaderPreMortemCleanUp}s that may have caused new
+   * threads to be started.
+   */
+  public void invalidateThreadSnapshot() {
+    synchronized (threadSnapshotLock) {
+      threadSnapshot = null;
+    }
+  }
 
   /** Get a Collection with all Threads. 
    * This method is heavily inspired by org.apache.catalina.loader.WebappClassLoader.getThreads() */
@@ -566,23 +1502,55 @@ public class ClassLoaderLeakPreventor {
   }
 
   /**
-   * Unlike <code>{@link System#gc()}</code> this method guarantees that garbage collection has been performed before
-   * returning.
+   * Unlike <code>{@link System#gc()}</code> this method waits for garbage collection to have been performed before
+   * returning, for at most {@link #GC_TIMEOUT_MS_DEFAULT} milliseconds and {@link #GC_MAX_ATTEMPTS_DEFAULT} requests.
+   * Use {@link #gcAndWait(long, int)} to know whether garbage collection was performed.
    */
   public static void gc() {
+    gcAndWait(GC_TIMEOUT_MS_DEFAULT, GC_MAX_ATTEMPTS_DEFAULT);
+  }
+  
+  /**
+   * Request garbage collection, and wait until it has been performed, as indicated by a weakly reachable sentinel 
+   * object being enqueued. Returns as soon as the sentinel is enqueued, so rather than calling {@link System#gc()} in
+   * a loop, this works also with concurrent collectors, such as G1 with <code>-XX:+ExplicitGCInvokesConcurrent</code>
+   * or ZGC, where {@link System#gc()} may only request a concurrent cycle. The time to wait for each request grows 
+   * with each attempt.
+   * @param timeoutMs Max no of milliseconds to wait in total
+   * @param maxAttempts Max no of times to request garbage collection
+   * @return true if garbage collection was performed, false if not within the limits, or if explicit garbage 
+   *   collection is disabled.
+   */
+  public static boolean gcAndWait(long timeoutMs, int maxAttempts) {
     if (isDisableExplicitGCEnabled()) {
       System.err.println(ClassLoaderLeakPreventor.class.getSimpleName() + ": "
           + "Skipping GC call since -XX:+DisableExplicitGC is supplied as VM option.");
-      return;
+      return false;
     }
     
+    final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
     Object obj = new Object();
-    WeakReference<Object> ref = new WeakReference<Object>(obj);
+    final WeakReference<Object> ref = new WeakReference<Object>(obj, queue);
     //noinspection UnusedAssignment
     obj = null;
-    while(ref.get() != null) {
-      System.gc();
+    
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    long waitMs = Math.max(1, timeoutMs >> Math.min(maxAttempts, 30)); // Double every attempt, to total timeoutMs
+    try {
+      for(int attempt = 0; attempt < maxAttempts; attempt++) {
+        System.gc();
+        final long remainingMs = deadline - System.currentTimeMillis();
+        if(remainingMs <= 0)
+          break;
+        if(queue.remove((attempt == maxAttempts - 1) ? remainingMs : Math.min(waitMs, remainingMs)) != null)
+          return true;
+        waitMs *= 2;
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupted status
     }
+    return ref.get() == null;
   }
   
   /**
@@ -591,10 +1559,12 @@ public class ClassLoaderLeakPreventor {
    * @return true is "-XX:+DisableExplicitGC" is set als vm argument, false otherwise.
    */
   private static boolean isDisableExplicitGCEnabled() {
-    RuntimeMXBean bean = ManagementFactory.getRuntimeMXBean();
-    List<String> aList = bean.getInputArguments();
-
-    return aList.contains("-XX:+DisableExplicitGC");
+    if(disableExplicitGC == null) {
+      RuntimeMXBean bean = ManagementFactory.getRuntimeMXBean();
+      List<String> aList = bean.getInputArguments();
+      disableExplicitGC = aList.contains("-XX:+DisableExplicitGC");
+    }
+    return disableExplicitGC;
   }  
 
   /** Is the JVM currently shutting down? */
@@ -616,7 +1586,7 @@ public class ClassLoaderLeakPreventor {
    * Exception thrown when {@link DomainCombiner#combine(ProtectionDomain[], ProtectionDomain[])} is called recursively
    * during the execution of that same method.
    */
-  private static class NestedProtectionDomainCombinerException extends RuntimeException {
+  static class NestedProtectionDomainCombinerException extends RuntimeException {
 
   }
 
@@ -647,4 +1617,47 @@ public class ClassLoaderLeakPreventor {
   public void info(String msg) {
     logger.info(msg);
   }
+
+  /** Should debug messages be built? If the {@link Logger} is not a {@link LevelAwareLogger}, all levels are enabled */
+  public boolean isDebugEnabled() {
+    return ! (logger instanceof LevelAwareLogger) || ((LevelAwareLogger) logger).isDebugEnabled();
+  }
+
+  public boolean isInfoEnabled() {
+    return ! (logger instanceof LevelAwareLogger) || ((LevelAwareLogger) logger).isInfoEnabled();
+  }
+
+  public boolean isWarnEnabled() {
+    return ! (logger instanceof LevelAwareLogger) || ((LevelAwareLogger) logger).isWarnEnabled();
+  }
+
+  /** Is the level of the provided event enabled? Errors are always enabled. */
+  public boolean isEnabled(LeakEvent.Level level) {
+    switch (level) {
+      case DEBUG: return isDebugEnabled();
+      case INFO: return isInfoEnabled();
+      case WARN: return isWarnEnabled();
+      default: return true;
+    }
+  }
+
+  /** 
+   * Log potential leak, unless the level of the event is disabled. To avoid creating the event in the first place,
+   * check {@link #isEnabled(LeakEvent.Level)} before creating it.
+   */
+  public void log(LeakEvent event) {
+    if(! isEnabled(event.getLevel()))
+      return;
+    
+    if(logger instanceof LevelAwareLogger)
+      ((LevelAwareLogger) logger).log(event);
+    else {
+      switch (event.getLevel()) {
+        case DEBUG: logger.debug(event.getMessage()); break;
+        case INFO: logger.info(event.getMessage()); break;
+        case WARN: logger.warn(event.getMessage()); break;
+        default: logger.error(event.getMessage());
+      }
+    }
+  }
 }
\ No newline at end of file
@@ -1,14 +1,12 @@
 package se.jiderhamn.classloader.leak.prevention;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.io.File;
+import java.util.Collection;
 import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.cleanup.*;
 import se.jiderhamn.classloader.leak.prevention.preinit.*;
 
-import static java.util.Collections.synchronizedMap;
-
 /**
  * Orchestrator class responsible for invoking the preventative and cleanup measures.
  * Contains the configuration and can be reused for multiple classloaders (assume it is not itself loaded by the
@@ -29,20 +27,89 @@ public class ClassLoaderLeakPreventorFactory {
    * {@link ClassLoaderPreMortemCleanUp}s 
    */
   protected Logger logger = new JULLogger();
+  
+  /** 
+   * Max no of threads to use for running {@link ClassLoaderPreMortemCleanUp}s in parallel. 
+   * @see ClassLoaderLeakPreventor#setCleanUpThreads(int)
+   */
+  protected int cleanUpThreads = 1;
+  
+  /** 
+   * Max no of threads to use for running {@link PreClassLoaderInitiator}s in parallel. 
+   * @see ClassLoaderLeakPreventor#setPreInitiatorThreads(int)
+   */
+  protected int preInitiatorThreads = 1;
+  
+  /** 
+   * No of milliseconds to wait for helper threads to terminate. 
+   * @see ClassLoaderLeakPreventor#setThreadWaitMs(int)
+   */
+  protected int threadWaitMs = ClassLoaderLeakPreventor.THREAD_WAIT_MS_DEFAULT;
+  
+  /** 
+   * Max no of deploy/undeploy cycles to keep in the JVM wide metrics MBean; 0 means do not publish. 
+   * @see ClassLoaderLeakPreventor#setMetricsHistorySize(int)
+   */
+  protected int metricsHistorySize = 0;
+
+  /** 
+   * Directory to write leak reports to, or null. 
+   * @see ClassLoaderLeakPreventor#setLeakReportDirectory(File, boolean) 
+   */
+  protected File leakReportDirectory;
+
+  /** Write leak reports in binary format rather than JSON? */
+  protected boolean binaryLeakReport;
+
+  /** 
+   * No of major garbage collections a {@link ClassLoader} may survive after undeploy; 0 means no limit.
+   * @see ClassLoaderLeakPreventor#setLeakVerification(int, long)
+   */
+  protected int leakVerificationGcCycles;
 
   /** 
-   * Map from name to {@link PreClassLoaderInitiator}s with all the actions to invoke in the 
+   * No of milliseconds a {@link ClassLoader} may survive after undeploy; 0 means no limit.
+   * @see ClassLoaderLeakPreventor#setLeakVerification(int, long)
+   */
+  protected long leakVerificationTimeoutMs;
+
+  /** 
+   * Max no of milliseconds to spend on {@link LazyPreClassLoaderInitiator}s before deferring them; 0 means no deferral.
+   * @see ClassLoaderLeakPreventor#setPreInitiatorBudgetMs(long)
+   */
+  protected long preInitiatorBudgetMs;
+
+  /** 
+   * Should {@link OncePerJvmPreClassLoaderInitiator}s already completed in this JVM be skipped?
+   * @see ClassLoaderLeakPreventor#setSkipCompletedPreInitiators(boolean)
+   */
+  protected boolean skipCompletedPreInitiators = true;
+
+  /** 
+   * Registry of named {@link PreClassLoaderInitiator}s with all the actions to invoke in the 
    * {@link #leakSafeClassLoader}. Maintains insertion order. Thread safe.
    */
-  protected final Map<String, PreClassLoaderInitiator> preInitiators =
-      synchronizedMap(new LinkedHashMap<String, PreClassLoaderInitiator>());
+  protected final OrderedRegistry<PreClassLoaderInitiator> preInitiatorRegistry = 
+      new OrderedRegistry<PreClassLoaderInitiator>();
 
   /** 
-   * Map from name to {@link ClassLoaderPreMortemCleanUp}s with all the actions to invoke to make a 
+   * Registry of named {@link ClassLoaderPreMortemCleanUp}s with all the actions to invoke to make a 
    * {@link ClassLoader} ready for Garbage Collection. Maintains insertion order. Thread safe.
    */
-  protected final Map<String, ClassLoaderPreMortemCleanUp> cleanUps = 
-      synchronizedMap(new LinkedHashMap<String, ClassLoaderPreMortemCleanUp>());
+  protected final OrderedRegistry<ClassLoaderPreMortemCleanUp> cleanUpRegistry = 
+      new OrderedRegistry<ClassLoaderPreMortemCleanUp>();
+
+  /** 
+   * Map from name to {@link PreClassLoaderInitiator}s; a view of {@link #preInitiatorRegistry}. Maintains insertion 
+   * order. Thread safe.
+   */
+  protected final Map<String, PreClassLoaderInitiator> preInitiators = preInitiatorRegistry.asMap();
+
+  /** 
+   * Map from name to {@link ClassLoaderPreMortemCleanUp}s; a view of {@link #cleanUpRegistry}. Maintains insertion 
+   * order. Thread safe.
+   */
+  protected final Map<String, ClassLoaderPreMortemCleanUp> cleanUps = cleanUpRegistry.asMap();
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   // Constructors
@@ -142,9 +209,37 @@ public class ClassLoaderLeakPreventorFactory {
   
   /** Create new {@link ClassLoaderLeakPreventor} used to prevent the provided {@link ClassLoader} from leaking */
   public ClassLoaderLeakPreventor newLeakPreventor(ClassLoader classLoader) {
-    return new ClassLoaderLeakPreventor(leakSafeClassLoader, classLoader, logger,
-        new ArrayList<PreClassLoaderInitiator>(preInitiators.values()), // Snapshot
-        new ArrayList<ClassLoaderPreMortemCleanUp>(cleanUps.values())); // Snapshot
+    final ClassLoaderLeakPreventor classLoaderLeakPreventor = new ClassLoaderLeakPreventor(leakSafeClassLoader, 
+        classLoader, logger,
+        preInitiatorRegistry.getSnapshot().getEntries(), // Immutable
+        cleanUpRegistry.getSnapshot().getEntries()); // Immutable
+    configure(classLoaderLeakPreventor);
+    return classLoaderLeakPreventor;
+  }
+
+  /** 
+   * Create new {@link MultiClassLoaderLeakPreventor} used to prevent the provided {@link ClassLoader}s, that are 
+   * undeployed together, from leaking
+   */
+  public MultiClassLoaderLeakPreventor newLeakPreventor(Collection<ClassLoader> classLoaders) {
+    final MultiClassLoaderLeakPreventor classLoaderLeakPreventor = new MultiClassLoaderLeakPreventor(
+        leakSafeClassLoader, classLoaders, logger,
+        preInitiatorRegistry.getSnapshot().getEntries(), // Immutable
+        cleanUpRegistry.getSnapshot().getEntries()); // Immutable
+    configure(classLoaderLeakPreventor);
+    return classLoaderLeakPreventor;
+  }
+  
+  /** Apply the settings of this factory to the provided {@link ClassLoaderLeakPreventor} */
+  private void configure(ClassLoaderLeakPreventor classLoaderLeakPreventor) {
+    classLoaderLeakPreventor.setCleanUpThreads(cleanUpThreads);
+    classLoaderLeakPreventor.setPreInitiatorThreads(preInitiatorThreads);
+    classLoaderLeakPreventor.setThreadWaitMs(threadWaitMs);
+    classLoaderLeakPreventor.setMetricsHistorySize(metricsHistorySize);
+    classLoaderLeakPreventor.setLeakReportDirectory(leakReportDirectory, binaryLeakReport);
+    classLoaderLeakPreventor.setLeakVerification(leakVerificationGcCycles, leakVerificationTimeoutMs);
+    classLoaderLeakPreventor.setPreInitiatorBudgetMs(preInitiatorBudgetMs);
+    classLoaderLeakPreventor.setSkipCompletedPreInitiators(skipCompletedPreInitiators);
   }
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -155,22 +250,106 @@ public class ClassLoaderLeakPreventorFactory {
     this.logger = logger;
   }
   
+  /** 
+   * Set the max no of threads to use for running {@link ClassLoaderPreMortemCleanUp}s in parallel. Default is 1, 
+   * meaning cleanups are run one after another. 
+   * @see ClassLoaderLeakPreventor#setCleanUpThreads(int)
+   */
+  public void setCleanUpThreads(int cleanUpThreads) {
+    this.cleanUpThreads = cleanUpThreads;
+  }
+  
+  /** 
+   * Set the max no of threads to use for running {@link PreClassLoaderInitiator}s in parallel. Default is 1, 
+   * meaning initiators are run one after another. 
+   * @see ClassLoaderLeakPreventor#setPreInitiatorThreads(int)
+   */
+  public void setPreInitiatorThreads(int preInitiatorThreads) {
+    this.preInitiatorThreads = preInitiatorThreads;
+  }
+  
+  /** 
+   * Set the no of milliseconds to wait for helper threads, such as those running cleanups in parallel, to terminate.
+   * @see ClassLoaderLeakPreventor#setThreadWaitMs(int)
+   */
+  public void setThreadWaitMs(int threadWaitMs) {
+    this.threadWaitMs = threadWaitMs;
+  }
+  
+  /** 
+   * Set the max no of deploy/undeploy cycles to keep in the JVM wide metrics MBean. Default is 0, which means 
+   * metrics are not published in JMX.
+   * @see ClassLoaderLeakPreventor#setMetricsHistorySize(int)
+   */
+  public void setMetricsHistorySize(int metricsHistorySize) {
+    this.metricsHistorySize = metricsHistorySize;
+  }
+  
+  /** 
+   * Set directory to write a leak report to after each undeploy. Default is null, meaning no reports are written.
+   * @param binary Use binary format rather than JSON
+   * @see ClassLoaderLeakPreventor#setLeakReportDirectory(File, boolean)
+   */
+  public void setLeakReportDirectory(File leakReportDirectory, boolean binary) {
+    this.leakReportDirectory = leakReportDirectory;
+    this.binaryLeakReport = binary;
+  }
+  
+  /** 
+   * Verify that the {@link ClassLoader} is garbage collected after each undeploy, reporting it as a probable leak if
+   * it survives the provided no of major garbage collections or milliseconds. Default is 0 and 0, meaning no 
+   * verification.
+   * @see ClassLoaderLeakPreventor#setLeakVerification(int, long)
+   */
+  public void setLeakVerification(int gcCycles, long timeoutMs) {
+    this.leakVerificationGcCycles = gcCycles;
+    this.leakVerificationTimeoutMs = timeoutMs;
+  }
+  
+  /** 
+   * Set max no of milliseconds to spend on {@link LazyPreClassLoaderInitiator}s at startup, before deferring the rest
+   * to a background thread. {@link LazyPreClassLoaderInitiator}s whose subsystem is not present are skipped. Default
+   * is 0, meaning all {@link PreClassLoaderInitiator}s are run eagerly.
+   * @see ClassLoaderLeakPreventor#setPreInitiatorBudgetMs(long)
+   */
+  public void setPreInitiatorBudgetMs(long preInitiatorBudgetMs) {
+    this.preInitiatorBudgetMs = preInitiatorBudgetMs;
+  }
+  
+  /** 
+   * Set whether {@link OncePerJvmPreClassLoaderInitiator}s that have already completed in this JVM, for example
+   * during a previous deployment, should be skipped. Default is true.
+   * @see ClassLoaderLeakPreventor#setSkipCompletedPreInitiators(boolean)
+   */
+  public void setSkipCompletedPreInitiators(boolean skipCompletedPreInitiators) {
+    this.skipCompletedPreInitiators = skipCompletedPreInitiators;
+  }
+  
   /** Add a new {@link PreClassLoaderInitiator}, using the class name as name */
   public void addPreInitiator(PreClassLoaderInitiator preClassLoaderInitiator) {
-    addConsideringOrder(this.preInitiators, preClassLoaderInitiator);
+    addConsideringOrder(this.preInitiatorRegistry, preClassLoaderInitiator);
   }
 
   /** Add a new {@link ClassLoaderPreMortemCleanUp}, using the class name as name */
   public void addCleanUp(ClassLoaderPreMortemCleanUp classLoaderPreMortemCleanUp) {
-    addConsideringOrder(this.cleanUps, classLoaderPreMortemCleanUp);
+    addConsideringOrder(this.cleanUpRegistry, classLoaderPreMortemCleanUp);
   }
   
-  /** Add new {@link I} entry to {@code map}, taking {@link MustBeAfter} into account */
-  private <I> void addConsideringOrder(Map<String, I> map, I newEntry) {
-    for(Map.Entry<String, I> entry : map.entrySet()) {
-      if(entry.getValue() instanceof MustBeAfter<?>) {
+  /** 
+   * Add new {@link I} entry to {@code registry}, taking {@link MustBeAfter} into account. An existing entry of the same
+   * class is replaced in place, where the order has already been verified.
+   */
+  private <I> void addConsideringOrder(OrderedRegistry<I> registry, I newEntry) {
+    final String name = newEntry.getClass().getName();
+    if(registry.get(name) != null) { // Replace in place
+      registry.put(name, newEntry);
+      return;
+    }
+    
+    for(I entry : registry.getSnapshot().getEntries()) {
+      if(entry instanceof MustBeAfter<?>) {
         final Class<? extends ClassLoaderPreMortemCleanUp>[] existingMustBeAfter = 
-            ((MustBeAfter<ClassLoaderPreMortemCleanUp>)entry.getValue()).mustBeBeforeMe();
+            ((MustBeAfter<ClassLoaderPreMortemCleanUp>)entry).mustBeBeforeMe();
         for(Class<? extends ClassLoaderPreMortemCleanUp> clazz : existingMustBeAfter) {
           if(clazz.isAssignableFrom(newEntry.getClass())) { // Entry needs to be after new entry
             // TODO Resolve order automatically #51
@@ -180,22 +359,22 @@ public class ClassLoaderLeakPreventorFactory {
       }
     }
     
-    map.put(newEntry.getClass().getName(), newEntry);
+    registry.put(name, newEntry);
   }
 
   /** Add a new named {@link ClassLoaderPreMortemCleanUp} */
   public void addCleanUp(String name, ClassLoaderPreMortemCleanUp classLoaderPreMortemCleanUp) {
-    this.cleanUps.put(name, classLoaderPreMortemCleanUp);
+    this.cleanUpRegistry.put(name, classLoaderPreMortemCleanUp);
   }
   
   /** Remove all the currently configured {@link PreClassLoaderInitiator}s */
   public void clearPreInitiators() {
-    this.cleanUps.clear();
+    this.preInitiatorRegistry.clear();
   }
 
   /** Remove all the currently configured {@link ClassLoaderPreMortemCleanUp}s */
   public void clearCleanUps() {
-    this.cleanUps.clear();
+    this.cleanUpRegistry.clear();
   }
   
   /** 
@@ -205,7 +384,7 @@ public class ClassLoaderLeakPreventorFactory {
    * {@link PreClassLoaderInitiator} and {@link ClassLoaderPreMortemCleanUp} instances, in case their config is changed. 
    */
   public <C extends PreClassLoaderInitiator> C getPreInitiator(Class<C> clazz) {
-    return (C) this.preInitiators.get(clazz.getName());
+    return (C) this.preInitiatorRegistry.get(clazz.getName());
   }
 
   /** 
@@ -215,16 +394,16 @@ public class ClassLoaderLeakPreventorFactory {
    * {@link PreClassLoaderInitiator} and {@link ClassLoaderPreMortemCleanUp} instances, in case their config is changed. 
    */
   public <C extends ClassLoaderPreMortemCleanUp> C getCleanUp(Class<C> clazz) {
-    return (C) this.cleanUps.get(clazz.getName());
+    return (C) this.cleanUpRegistry.get(clazz.getName());
   }
 
   /** Get instance of {@link PreClassLoaderInitiator} for further configuring */
   public <C extends PreClassLoaderInitiator> void removePreInitiator(Class<C> clazz) {
-    this.preInitiators.remove(clazz.getName());
+    this.preInitiatorRegistry.remove(clazz.getName());
   }
 
   /** Get instance of {@link ClassLoaderPreMortemCleanUp} for further configuring */
   public <C extends ClassLoaderPreMortemCleanUp> void removeCleanUp(Class<C> clazz) {
-    this.cleanUps.remove(clazz.getName());
+    this.cleanUpRegistry.remove(clazz.getName());
   }
 }
\ No newline at end of file
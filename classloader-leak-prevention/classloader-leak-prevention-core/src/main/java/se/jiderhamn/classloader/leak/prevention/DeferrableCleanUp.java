@@ -0,0 +1,10 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Marker interface for {@link ClassLoaderPreMortemCleanUp}s that may take considerable time, i.e. waiting for threads 
+ * or garbage collection, and therefore may be deferred to a background thread by 
+ * {@link ClassLoaderLeakPreventor#runCleanUpsAsync()}. All the {@link ClassLoaderPreMortemCleanUp}s following a 
+ * deferred cleanup will be deferred as well, to keep the order.
+ */
+public interface DeferrableCleanUp extends ClassLoaderPreMortemCleanUp {
+}
@@ -0,0 +1,140 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Counts garbage collections as they are reported by {@link GarbageCollectorMXBean} notifications, without triggering
+ * any collections itself. On JVMs where the collectors do not emit notifications (i.e. before Java 7 update 4),
+ * {@link GarbageCollectorMXBean#getCollectionCount()} is used instead, in which case all collections are counted.
+ * The listeners are registered on JVM global MBeans, so {@link #stop()} must always be invoked after {@link #start()}.
+ */
+class GarbageCollectionCounter implements NotificationListener {
+
+  /** {@code com.sun.management.GarbageCollectionNotificationInfo#GARBAGE_COLLECTION_NOTIFICATION} */
+  static final String GARBAGE_COLLECTION_NOTIFICATION = "com.sun.management.gc.notification";
+
+  /** Should only major collections - which are the ones that normally unload classes - be counted? */
+  private final boolean majorOnly;
+
+  /** The emitters this counter has been added as listener to */
+  private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+  /** No of collections notified. Guarded by this. */
+  private long count;
+
+  /** {@link GarbageCollectorMXBean#getCollectionCount()} at {@link #start()}, if notifications are not supported */
+  private long collectionCountAtStart = -1;
+
+  GarbageCollectionCounter(boolean majorOnly) {
+    this.majorOnly = majorOnly;
+  }
+
+  /**
+   * Start counting collections.
+   * @return true if the collectors emit notifications, false if {@link GarbageCollectorMXBean#getCollectionCount()}
+   *   needs to be polled
+   */
+  synchronized boolean start() {
+    for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if(gcBean instanceof NotificationEmitter && isNotifying((NotificationEmitter) gcBean)) {
+        ((NotificationEmitter) gcBean).addNotificationListener(this, null, null);
+        emitters.add((NotificationEmitter) gcBean);
+      }
+    }
+    if(emitters.isEmpty()) {
+      collectionCountAtStart = getCollectionCount();
+      return false;
+    }
+    return true;
+  }
+
+  /** Stop counting, removing all listeners */
+  synchronized void stop() {
+    for(NotificationEmitter emitter : emitters) {
+      try {
+        emitter.removeNotificationListener(this);
+      }
+      catch (ListenerNotFoundException e) {
+        // Already removed
+      }
+    }
+    emitters.clear();
+  }
+
+  /** Get the no of collections since {@link #start()} */
+  synchronized long getCount() {
+    return (collectionCountAtStart >= 0) ? getCollectionCount() - collectionCountAtStart : count;
+  }
+
+  /**
+   * Wait until at least the provided no of collections have been counted, or the timeout expires.
+   * If notifications are not supported, {@link GarbageCollectorMXBean#getCollectionCount()} is polled.
+   * @return true if the count was reached, false on timeout
+   */
+  synchronized boolean await(long count, long timeoutMs) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    long remainingMs = timeoutMs;
+    while(getCount() < count) {
+      if(remainingMs <= 0)
+        return false;
+      this.wait((collectionCountAtStart >= 0) ? Math.min(remainingMs, 10) : remainingMs);
+      remainingMs = deadline - System.currentTimeMillis();
+    }
+    return true;
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if(GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()) &&
+        (! majorOnly || isMajor(notification.getUserData()))) {
+      synchronized (this) {
+        count++;
+        this.notifyAll();
+      }
+    }
+  }
+
+  /** Does the emitter emit {@link #GARBAGE_COLLECTION_NOTIFICATION}s? */
+  private static boolean isNotifying(NotificationEmitter emitter) {
+    for(MBeanNotificationInfo info : emitter.getNotificationInfo()) {
+      for(String type : info.getNotifTypes()) {
+        if(GARBAGE_COLLECTION_NOTIFICATION.equals(type))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Is the {@code com.sun.management.GarbageCollectionNotificationInfo}, provided as {@link CompositeData}, about a
+   * major collection ("end of major GC") or a full concurrent cycle ("end of GC cycle", as per ZGC and Shenandoah)? 
+   * Read without the <code>com.sun.management</code> API, so that this works on any JVM.
+   */
+  private static boolean isMajor(Object userData) {
+    if(userData instanceof CompositeData) {
+      final Object gcAction = ((CompositeData) userData).get("gcAction");
+      return gcAction != null && (gcAction.toString().contains("major") || gcAction.toString().contains("cycle"));
+    }
+    return false;
+  }
+
+  /** Get the sum of {@link GarbageCollectorMXBean#getCollectionCount()} of all collectors */
+  private static long getCollectionCount() {
+    long output = 0;
+    for(GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      final long collectionCount = gcBean.getCollectionCount();
+      if(collectionCount > 0) // -1 if undefined
+        output += collectionCount;
+    }
+    return output;
+  }
+}
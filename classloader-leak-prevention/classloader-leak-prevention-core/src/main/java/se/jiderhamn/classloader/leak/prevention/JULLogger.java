@@ -7,7 +7,7 @@ import java.util.logging.Level;
  * 
  * @author Mattias Jiderhamn
  */
-public class JULLogger implements Logger {
+public class JULLogger implements LevelAwareLogger {
   
   private static final java.util.logging.Logger LOG = 
       java.util.logging.Logger.getLogger(ClassLoaderLeakPreventor.class.getName());
@@ -41,5 +41,30 @@ public class JULLogger implements Logger {
   public void error(Throwable t) {
     LOG.log(Level.SEVERE, t.getMessage(), t);
   }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return LOG.isLoggable(Level.CONFIG);
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return LOG.isLoggable(Level.INFO);
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return LOG.isLoggable(Level.WARNING);
+  }
+
+  @Override
+  public void log(LeakEvent event) {
+    switch (event.getLevel()) {
+      case DEBUG: LOG.config(event.getMessage()); break;
+      case INFO: LOG.info(event.getMessage()); break;
+      case WARN: LOG.warning(event.getMessage()); break;
+      default: LOG.severe(event.getMessage());
+    }
+  }
   
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * {@link PreClassLoaderInitiator} for a subsystem whose presence can be cheaply probed for. If a
+ * {@link ClassLoaderLeakPreventor#setPreInitiatorBudgetMs(long) startup budget} is set, the initiator is skipped
+ * when the subsystem is not present, and deferred to a background thread when the budget has been used up.
+ * Not meant for parts of the JDK, since a resource probe would always find them.
+ */
+public interface LazyPreClassLoaderInitiator extends PreClassLoaderInitiator {
+
+  /**
+   * Is the subsystem present in, or reachable from, the protected {@link ClassLoader}? Should be cheap, such as
+   * looking up a resource, and must not initialize the subsystem.
+   */
+  boolean isSubsystemPresent(ClassLoaderLeakPreventor preventor);
+
+}
@@ -0,0 +1,50 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Structured event describing a potential leak found - and possibly fixed - by a {@link ClassLoaderPreMortemCleanUp}.
+ * The message is not built until requested, so creating the event is cheap, and {@link Object#toString()} of
+ * application objects is not invoked unless the message is actually logged. 
+ * Events may reference objects loaded by the protected ClassLoader, so they must not be retained after being logged.
+ */
+public abstract class LeakEvent {
+
+  public enum Level {DEBUG, INFO, WARN, ERROR}
+
+  private final Level level;
+
+  /** The thread in which the leak was found, if any */
+  private final Thread thread;
+
+  /** Lazily built message */
+  private String message;
+
+  protected LeakEvent(Level level, Thread thread) {
+    this.level = level;
+    this.thread = thread;
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  public Thread getThread() {
+    return thread;
+  }
+
+  /** Get the type of leak, such as "ThreadLocal" */
+  public abstract String getType();
+
+  /** Get human readable message, which is built upon first invocation */
+  public String getMessage() {
+    if(message == null)
+      message = createMessage();
+    return message;
+  }
+
+  protected abstract String createMessage();
+
+  @Override
+  public String toString() {
+    return getMessage();
+  }
+}
@@ -0,0 +1,64 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link StepMetrics} of all {@link PreClassLoaderInitiator}s and {@link ClassLoaderPreMortemCleanUp}s invoked by a
+ * single {@link ClassLoaderLeakPreventor}, i.e. for a single deploy/undeploy cycle. Holds no reference to the
+ * protected {@link ClassLoader}, only its string representation.
+ */
+public class LeakPreventionMetrics {
+
+  /** {@link Object#toString()} of the protected {@link ClassLoader} */
+  private final String classLoader;
+
+  /** Time of creation, in milliseconds since epoch */
+  private final long startTime = System.currentTimeMillis();
+
+  private final List<StepMetrics> preClassLoaderInitiators = new ArrayList<StepMetrics>();
+
+  private final List<StepMetrics> cleanUps = new ArrayList<StepMetrics>();
+
+  LeakPreventionMetrics(String classLoader) {
+    this.classLoader = classLoader;
+  }
+
+  /** Create and add {@link StepMetrics} for {@link PreClassLoaderInitiator} */
+  StepMetrics addPreClassLoaderInitiator(PreClassLoaderInitiator preClassLoaderInitiator) {
+    return add(preClassLoaderInitiators, preClassLoaderInitiator);
+  }
+
+  /** Create and add {@link StepMetrics} for {@link ClassLoaderPreMortemCleanUp} */
+  StepMetrics addCleanUp(ClassLoaderPreMortemCleanUp cleanUp) {
+    return add(cleanUps, cleanUp);
+  }
+
+  private StepMetrics add(List<StepMetrics> list, Object step) {
+    final StepMetrics output = new StepMetrics(step.getClass().getName());
+    synchronized (list) { // Cleanups may run in parallel
+      list.add(output);
+    }
+    return output;
+  }
+
+  public String getClassLoader() {
+    return classLoader;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public List<StepMetrics> getPreClassLoaderInitiators() {
+    synchronized (preClassLoaderInitiators) {
+      return new ArrayList<StepMetrics>(preClassLoaderInitiators);
+    }
+  }
+
+  public List<StepMetrics> getCleanUps() {
+    synchronized (cleanUps) {
+      return new ArrayList<StepMetrics>(cleanUps);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed findings of all {@link ClassLoaderPreMortemCleanUp}s invoked by a single {@link ClassLoaderLeakPreventor}, i.e.
+ * for a single undeploy, suitable for aggregation across JVMs. Findings are recorded via 
+ * {@link ClassLoaderLeakPreventor#recordFinding(String, Object, String)} and can be exported using 
+ * {@link LeakReportJsonWriter} or {@link LeakReportBinaryWriter}. 
+ * Holds no references to the protected {@link ClassLoader} or objects loaded by it, only strings.
+ */
+public class LeakReport {
+
+  /** {@link Object#toString()} of the protected {@link ClassLoader} */
+  private final String classLoader;
+
+  /** Name of the JVM, normally process id @ host name */
+  private final String jvm;
+
+  /** Time of creation, in milliseconds since epoch */
+  private final long startTime = System.currentTimeMillis();
+
+  private final List<Finding> findings = new ArrayList<Finding>();
+
+  LeakReport(String classLoader) {
+    this.classLoader = classLoader;
+    this.jvm = getJvmName();
+  }
+
+  void addFinding(Finding finding) {
+    synchronized (findings) { // Cleanups may run in parallel
+      findings.add(finding);
+    }
+  }
+
+  public String getClassLoader() {
+    return classLoader;
+  }
+
+  public String getJvm() {
+    return jvm;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public List<Finding> getFindings() {
+    synchronized (findings) {
+      return new ArrayList<Finding>(findings);
+    }
+  }
+
+  private static String getJvmName() {
+    try {
+      return ManagementFactory.getRuntimeMXBean().getName();
+    }
+    catch (Exception e) { // SecurityException
+      return null;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A single potential leak found, and the action taken */
+  public static class Finding {
+
+    /** {@link StepMetrics} of the cleanup making the finding, or null if not made by a cleanup */
+    private final StepMetrics step;
+
+    /** Category of leak, such as "Thread" or "ThreadLocal" */
+    private final String category;
+
+    /** Class name of the object causing the leak */
+    private final String targetType;
+
+    /** Identity of the object causing the leak, such as identity hash code or MBean name */
+    private final String identity;
+
+    /** Action taken, such as "threadsStopped" */
+    private final String action;
+
+    Finding(StepMetrics step, String category, String targetType, String identity, String action) {
+      this.step = step;
+      this.category = category;
+      this.targetType = targetType;
+      this.identity = identity;
+      this.action = action;
+    }
+
+    /** Get class name of the {@link ClassLoaderPreMortemCleanUp} that made the finding, if any */
+    public String getCleanUp() {
+      return (step != null) ? step.getName() : null;
+    }
+
+    public String getCategory() {
+      return category;
+    }
+
+    public String getTargetType() {
+      return targetType;
+    }
+
+    public String getIdentity() {
+      return identity;
+    }
+
+    public String getAction() {
+      return action;
+    }
+
+    /** Get wall clock time of the cleanup that made the finding in nanoseconds, or -1 if not available */
+    public long getDurationNanos() {
+      return (step != null) ? step.getWallTimeNanos() : -1;
+    }
+
+    @Override
+    public String toString() {
+      return getCleanUp() + ": " + category + " " + targetType + "@" + identity + " " + action;
+    }
+  }
+}
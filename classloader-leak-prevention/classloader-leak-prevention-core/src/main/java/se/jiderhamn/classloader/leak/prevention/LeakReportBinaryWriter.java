@@ -0,0 +1,90 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link LeakReport} in a compact binary format, streaming to an {@link OutputStream}. 
+ * <p>
+ * The format is the {@link #MAGIC} int and a {@link #VERSION} byte, followed by the class loader (string), JVM name 
+ * (string), start time (long), number of findings (varint) and for each finding: cleanup (string), category (string), 
+ * target type (string), identity (string), action (string) and duration in nanoseconds (long). 
+ * Longs are big endian, as per {@link DataOutputStream}. 
+ * Strings are written as an unsigned varint {@code n}, where 0 means null, {@code n} = (size of string table + 1) 
+ * means a new string in {@link DataOutputStream#writeUTF(String) modified UTF-8} follows and is added to the table, 
+ * while other values refer to entry {@code n - 1} of the table. This way repeated strings, such as cleanup class
+ * names, are only written once. Strings longer than {@link #MAX_STRING_LENGTH} characters are truncated.
+ * </p>
+ */
+public class LeakReportBinaryWriter {
+
+  /** "LKRP" */
+  public static final int MAGIC = 0x4C4B5250;
+
+  public static final byte VERSION = 1;
+
+  /** Max no of characters of strings, to stay within the 65535 bytes limit of {@link DataOutputStream#writeUTF(String)} */
+  public static final int MAX_STRING_LENGTH = 65535 / 3;
+
+  private final DataOutputStream out;
+
+  /** Strings already written, with their index */
+  private final Map<String, Integer> stringTable = new HashMap<String, Integer>();
+
+  public LeakReportBinaryWriter(OutputStream out) {
+    this.out = new DataOutputStream(out);
+  }
+
+  /** Write report. The {@link OutputStream} is flushed but not closed. */
+  public void write(LeakReport report) throws IOException {
+    stringTable.clear();
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    writeString(report.getClassLoader());
+    writeString(report.getJvm());
+    out.writeLong(report.getStartTime());
+    
+    final List<LeakReport.Finding> findings = report.getFindings();
+    writeVarInt(findings.size());
+    for(LeakReport.Finding finding : findings) {
+      writeString(finding.getCleanUp());
+      writeString(finding.getCategory());
+      writeString(finding.getTargetType());
+      writeString(finding.getIdentity());
+      writeString(finding.getAction());
+      out.writeLong(finding.getDurationNanos());
+    }
+    out.flush();
+  }
+
+  private void writeString(String s) throws IOException {
+    if(s == null) {
+      writeVarInt(0);
+      return;
+    }
+    else if(s.length() > MAX_STRING_LENGTH)
+      s = s.substring(0, MAX_STRING_LENGTH);
+
+    final Integer index = stringTable.get(s);
+    if(index != null) // Already written
+      writeVarInt(index + 1);
+    else {
+      writeVarInt(stringTable.size() + 1);
+      out.writeUTF(s);
+      stringTable.put(s, stringTable.size());
+    }
+  }
+
+  /** Write unsigned int using 7 bits per byte, with the high bit set on all but the last byte */
+  private void writeVarInt(int i) throws IOException {
+    while((i & ~0x7F) != 0) {
+      out.writeByte((i & 0x7F) | 0x80);
+      i >>>= 7;
+    }
+    out.writeByte(i);
+  }
+}
@@ -0,0 +1,86 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a {@link LeakReport} as compact JSON, streaming directly to a {@link Writer} without building any intermediate
+ * representation. Example:
+ * <pre>
+ * {"classLoader":"...","jvm":"1234@host","startTime":1500000000000,"findings":[
+ *   {"cleanUp":"...StopThreadsCleanUp","category":"Thread","targetType":"java.lang.Thread","identity":"1b6d3586",
+ *    "action":"threadsStopped","durationNanos":5000000}]}
+ * </pre>
+ * (Line breaks added for readability.)
+ */
+public class LeakReportJsonWriter {
+
+  private final Writer writer;
+
+  public LeakReportJsonWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /** Write report. The {@link Writer} is flushed but not closed. */
+  public void write(LeakReport report) throws IOException {
+    writer.write("{\"classLoader\":");
+    writeString(report.getClassLoader());
+    writer.write(",\"jvm\":");
+    writeString(report.getJvm());
+    writer.write(",\"startTime\":");
+    writer.write(Long.toString(report.getStartTime()));
+    writer.write(",\"findings\":[");
+    boolean first = true;
+    for(LeakReport.Finding finding : report.getFindings()) {
+      if(! first)
+        writer.write(',');
+      first = false;
+      writer.write("{\"cleanUp\":");
+      writeString(finding.getCleanUp());
+      writer.write(",\"category\":");
+      writeString(finding.getCategory());
+      writer.write(",\"targetType\":");
+      writeString(finding.getTargetType());
+      writer.write(",\"identity\":");
+      writeString(finding.getIdentity());
+      writer.write(",\"action\":");
+      writeString(finding.getAction());
+      writer.write(",\"durationNanos\":");
+      writer.write(Long.toString(finding.getDurationNanos()));
+      writer.write('}');
+    }
+    writer.write("]}");
+    writer.flush();
+  }
+
+  /** Write JSON string literal, or null */
+  private void writeString(String s) throws IOException {
+    if(s == null) {
+      writer.write("null");
+      return;
+    }
+
+    writer.write('"');
+    for(int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"': writer.write("\\\""); break;
+        case '\\': writer.write("\\\\"); break;
+        case '\n': writer.write("\\n"); break;
+        case '\r': writer.write("\\r"); break;
+        case '\t': writer.write("\\t"); break;
+        default:
+          if(c < 0x20) { // Other control character
+            final String hex = Integer.toHexString(c);
+            writer.write("\\u");
+            for(int j = hex.length(); j < 4; j++)
+              writer.write('0');
+            writer.write(hex);
+          }
+          else
+            writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+}
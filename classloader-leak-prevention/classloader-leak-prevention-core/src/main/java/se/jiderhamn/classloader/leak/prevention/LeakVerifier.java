@@ -0,0 +1,211 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Verifies, after {@link ClassLoaderLeakPreventor#runCleanUps()}, that the protected {@link ClassLoader} is actually
+ * garbage collected. Each {@link ClassLoader} is watched by a {@link PhantomReference}, and reported as a probable
+ * leak if it survives a number of major garbage collections, or a period of time, whichever comes first.
+ * Collections are counted via {@link GarbageCollectionCounter}, i.e. no garbage collection is ever triggered.
+ *
+ * A single daemon thread is shared by all preventors that use the same copy of this class. The thread is started when
+ * the first {@link ClassLoader} is watched, and terminates - removing all its listeners - when there is no
+ * {@link ClassLoader} left to watch. Since the thread itself would prevent the {@link ClassLoader} that loaded this
+ * library from being garbage collected, this library must be loaded outside the protected {@link ClassLoader} for the
+ * verification to work, e.g. in the application server classpath.
+ */
+public class LeakVerifier {
+
+  /** Default no of major garbage collections a {@link ClassLoader} may survive before being reported as a leak */
+  public static final int GC_CYCLES_DEFAULT = 3;
+
+  /** Default no of milliseconds a {@link ClassLoader} may survive before being reported as a leak */
+  public static final long TIMEOUT_MS_DEFAULT = 5 * 60 * 1000; // 5 minutes
+
+  /** No of milliseconds to wait for references to be enqueued, before checking whether any watch has expired */
+  static final long POLL_INTERVAL_MS = 500;
+
+  private static final LeakVerifier instance = new LeakVerifier();
+
+  private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+  /** The {@link ClassLoader}s currently watched. Guarded by this. */
+  private final Set<Watch> watches = new HashSet<Watch>();
+
+  /** The thread watching the {@link ClassLoader}s, if any. Guarded by this. */
+  private Thread watcher;
+
+  /** Counter of collections, while {@link #watcher} is running. Guarded by this. */
+  private GarbageCollectionCounter gcCounter;
+
+  /** No of {@link ClassLoader}s that were garbage collected while watched */
+  private volatile long collectedCount;
+
+  /** No of {@link ClassLoader}s reported as leaks */
+  private volatile long leakCount;
+
+  /** Get the JVM wide (or rather, {@link ClassLoader} wide) instance */
+  public static LeakVerifier getInstance() {
+    return instance;
+  }
+
+  /**
+   * Start watching the provided {@link ClassLoader}, reporting to the provided {@link Logger} whether it is garbage
+   * collected or not. Neither the {@link ClassLoader} nor the {@link Logger} may be the one that loaded this class.
+   * @param gcCycles No of major garbage collections the {@link ClassLoader} may survive; 0 means no limit
+   * @param timeoutMs No of milliseconds the {@link ClassLoader} may survive; 0 means no limit
+   */
+  public synchronized void watch(ClassLoader classLoader, Logger logger, int gcCycles, long timeoutMs) {
+    if(watcher == null) {
+      gcCounter = new GarbageCollectionCounter(true);
+      if(! gcCounter.start())
+        logger.debug("Garbage collection notifications not supported; all collections will be counted");
+      watcher = startWatcher();
+    }
+    watches.add(new Watch(classLoader, queue, logger,
+        (gcCycles > 0) ? gcCounter.getCount() + gcCycles : Long.MAX_VALUE,
+        (timeoutMs > 0) ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE));
+  }
+
+  /** Get the no of {@link ClassLoader}s that were garbage collected while watched */
+  public long getCollectedCount() {
+    return collectedCount;
+  }
+
+  /** Get the no of {@link ClassLoader}s that were reported as probable leaks */
+  public long getLeakCount() {
+    return leakCount;
+  }
+
+  /** Get the no of {@link ClassLoader}s currently watched */
+  public synchronized int getWatchedCount() {
+    return watches.size();
+  }
+
+  /**
+   * Start daemon thread. It is started in a privileged block, so that it does not inherit the
+   * {@link java.security.AccessControlContext} of the current thread, and with this class' {@link ClassLoader} as its
+   * context {@link ClassLoader}. Thereby the thread will not reference any of the watched {@link ClassLoader}s.
+   */
+  private Thread startWatcher() {
+    return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+      @Override
+      public Thread run() {
+        final Thread thread = new Thread("ClassLoaderLeakPreventor leak verifier") {
+          @Override
+          public void run() {
+            watch();
+          }
+        };
+        thread.setDaemon(true);
+        thread.setContextClassLoader(LeakVerifier.class.getClassLoader());
+        thread.start();
+        return thread;
+      }
+    });
+  }
+
+  /** Process the {@link #queue} until there are no more {@link ClassLoader}s to watch */
+  private void watch() {
+    try {
+      while(true) {
+        final Reference<? extends ClassLoader> reference = queue.remove(POLL_INTERVAL_MS);
+        synchronized (this) {
+          if(reference != null) {
+            final Watch watch = (Watch) reference;
+            if(watches.remove(watch))
+              watch.collected();
+          }
+          else { // Only check for expired watches when there are no enqueued references pending
+            final long gcCount = gcCounter.getCount();
+            final long now = System.currentTimeMillis();
+            for(Iterator<Watch> iterator = watches.iterator(); iterator.hasNext(); ) {
+              final Watch watch = iterator.next();
+              if(watch.isExpired(gcCount, now)) {
+                iterator.remove();
+                watch.leaked(gcCount);
+              }
+            }
+          }
+
+          if(watches.isEmpty()) {
+            stopWatcher();
+            return;
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      synchronized (this) {
+        for(Watch watch : watches) {
+          watch.clear();
+        }
+        watches.clear();
+        stopWatcher();
+      }
+    }
+  }
+
+  /** Release resources of the {@link #watcher}. Must be called while holding the lock of this. */
+  private void stopWatcher() {
+    gcCounter.stop();
+    gcCounter = null;
+    watcher = null;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A watched {@link ClassLoader} */
+  private class Watch extends PhantomReference<ClassLoader> {
+
+    /** {@link Object#toString()} of the {@link ClassLoader} */
+    private final String classLoader;
+
+    private final Logger logger;
+
+    private final long startTime = System.currentTimeMillis();
+
+    /** {@link GarbageCollectionCounter#getCount()} at which the {@link ClassLoader} is considered leaked */
+    private final long maxGcCount;
+
+    /** Time at which the {@link ClassLoader} is considered leaked */
+    private final long deadline;
+
+    private final long gcCountAtStart;
+
+    Watch(ClassLoader classLoader, ReferenceQueue<ClassLoader> queue, Logger logger, long maxGcCount, long deadline) {
+      super(classLoader, queue);
+      this.classLoader = classLoader + " (0x" + Integer.toHexString(System.identityHashCode(classLoader)) + ")";
+      this.logger = logger;
+      this.maxGcCount = maxGcCount;
+      this.deadline = deadline;
+      this.gcCountAtStart = gcCounter.getCount();
+    }
+
+    boolean isExpired(long gcCount, long now) {
+      return gcCount >= maxGcCount || now >= deadline;
+    }
+
+    void collected() {
+      clear();
+      logger.info("ClassLoader " + classLoader + " was garbage collected " + (System.currentTimeMillis() - startTime) +
+          " ms after cleanup");
+      collectedCount++; // Published after logging, so that the message has been logged once the count is seen
+    }
+
+    void leaked(long gcCount) {
+      clear(); // Do not prevent collection, since some JVMs keep phantom reachable objects until cleared
+      logger.warn("ClassLoader " + classLoader + " has not been garbage collected " +
+          (System.currentTimeMillis() - startTime) + " ms and " + (gcCount - gcCountAtStart) +
+          " major garbage collections after cleanup, and is probably leaking. Use a heap dump to find the cause.");
+      leakCount++; // Published after logging, so that the message has been logged once the count is seen
+    }
+  }
+}
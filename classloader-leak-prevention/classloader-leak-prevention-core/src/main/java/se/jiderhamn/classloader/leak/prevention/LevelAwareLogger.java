@@ -0,0 +1,20 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * {@link Logger} that can tell whether a log level is enabled, so that messages need not be built when they would be
+ * discarded anyway, and that can receive potential leaks as structured {@link LeakEvent}s.
+ */
+public interface LevelAwareLogger extends Logger {
+
+  boolean isDebugEnabled();
+
+  boolean isInfoEnabled();
+
+  boolean isWarnEnabled();
+
+  /** 
+   * Log a potential leak. Only invoked if the {@link LeakEvent#getLevel() level} of the event is enabled. The event 
+   * must not be retained after this method returns.
+   */
+  void log(LeakEvent event);
+}
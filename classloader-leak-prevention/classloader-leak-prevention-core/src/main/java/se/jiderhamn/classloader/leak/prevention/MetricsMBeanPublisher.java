@@ -0,0 +1,136 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.modelmbean.DescriptorSupport;
+import javax.management.modelmbean.ModelMBeanAttributeInfo;
+import javax.management.modelmbean.ModelMBeanInfoSupport;
+import javax.management.modelmbean.ModelMBeanOperationInfo;
+import javax.management.modelmbean.RequiredModelMBean;
+import javax.management.openmbean.*;
+
+/**
+ * Publishes {@link LeakPreventionMetrics} as {@link CompositeData} in the platform {@link MBeanServer}, keeping a
+ * rolling history of the last N deploy/undeploy cycles in the JVM.
+ * The MBean is a {@link RequiredModelMBean} holding nothing but open data in its descriptor, i.e. it consists solely
+ * of JDK classes. That way it cannot keep any classloader - including the one that loaded this library - from being
+ * garbage collected, and it can be shared by all applications in the JVM.
+ */
+class MetricsMBeanPublisher {
+
+  static final String OBJECT_NAME = "se.jiderhamn.classloader.leak.prevention:type=LeakPreventionMetrics";
+
+  static final String HISTORY = "History";
+
+  /** Cache expiry of attribute value, in seconds. Note that -1 means no caching in {@link RequiredModelMBean} */
+  private static final String CURRENCY_TIME_LIMIT = String.valueOf(Integer.MAX_VALUE);
+
+  private static final CompositeType ACTION_TYPE;
+
+  private static final TabularType ACTIONS_TYPE;
+
+  private static final CompositeType STEP_TYPE;
+
+  private static final CompositeType METRICS_TYPE;
+
+  static {
+    try {
+      ACTION_TYPE = new CompositeType("Action", "No of times action was performed",
+          new String[] {"action", "count"},
+          new String[] {"Action", "Count"},
+          new OpenType<?>[] {SimpleType.STRING, SimpleType.INTEGER});
+      ACTIONS_TYPE = new TabularType("Actions", "Actions performed", ACTION_TYPE, new String[] {"action"});
+      STEP_TYPE = new CompositeType("StepMetrics", "Metrics of initiator or cleanup",
+          new String[] {"name", "wallTimeNanos", "cpuTimeNanos", "allocatedBytes", "completed", "actions"},
+          new String[] {"Class name", "Wall clock time in nanoseconds", "CPU time in nanoseconds, or -1",
+              "Allocated bytes, or -1", "Completed without exception", "Actions performed"},
+          new OpenType<?>[] {SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.BOOLEAN,
+              ACTIONS_TYPE});
+      METRICS_TYPE = new CompositeType("LeakPreventionMetrics", "Metrics of deploy/undeploy cycle",
+          new String[] {"classLoader", "startTime", "preClassLoaderInitiators", "cleanUps"},
+          new String[] {"Protected ClassLoader", "Start time, in milliseconds since epoch",
+              "Pre ClassLoader initiators", "Pre-mortem cleanups"},
+          new OpenType<?>[] {SimpleType.STRING, SimpleType.LONG, new ArrayType<CompositeData>(1, STEP_TYPE),
+              new ArrayType<CompositeData>(1, STEP_TYPE)});
+    }
+    catch (OpenDataException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private MetricsMBeanPublisher() {
+  }
+
+  /**
+   * Add metrics to the history of the MBean, registering the MBean if needed. Should be invoked in the leak safe
+   * classloader.
+   * @param historySize Max no of deploy/undeploy cycles to keep
+   */
+  static void publish(LeakPreventionMetrics metrics, int historySize) throws Exception {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName(OBJECT_NAME);
+    if(! mBeanServer.isRegistered(objectName)) {
+      try {
+        mBeanServer.registerMBean(createMBean(), objectName);
+      }
+      catch (InstanceAlreadyExistsException e) {
+        // Registered concurrently by other application
+      }
+    }
+
+    final CompositeData[] history = (CompositeData[]) mBeanServer.getAttribute(objectName, HISTORY);
+    final List<CompositeData> newHistory = new ArrayList<CompositeData>();
+    if(history != null)
+      newHistory.addAll(Arrays.asList(history));
+    newHistory.add(toCompositeData(metrics));
+    while(newHistory.size() > historySize) {
+      newHistory.remove(0);
+    }
+    mBeanServer.setAttribute(objectName, new Attribute(HISTORY, newHistory.toArray(new CompositeData[0])));
+  }
+
+  /** Create MBean that holds the history in the attribute descriptor */
+  private static RequiredModelMBean createMBean() throws Exception {
+    final DescriptorSupport descriptor = new DescriptorSupport();
+    descriptor.setField("name", HISTORY);
+    descriptor.setField("descriptorType", "attribute");
+    descriptor.setField("currencyTimeLimit", CURRENCY_TIME_LIMIT);
+    descriptor.setField("value", new CompositeData[0]);
+    final ModelMBeanAttributeInfo history = new ModelMBeanAttributeInfo(HISTORY, CompositeData[].class.getName(),
+        "Metrics of the last deploy/undeploy cycles, oldest first", true, true, false, descriptor);
+    return new RequiredModelMBean(new ModelMBeanInfoSupport(RequiredModelMBean.class.getName(),
+        "ClassLoader Leak Prevention metrics", new ModelMBeanAttributeInfo[] {history}, null,
+        new ModelMBeanOperationInfo[0], null));
+  }
+
+  static CompositeData toCompositeData(LeakPreventionMetrics metrics) throws OpenDataException {
+    return new CompositeDataSupport(METRICS_TYPE,
+        new String[] {"classLoader", "startTime", "preClassLoaderInitiators", "cleanUps"},
+        new Object[] {metrics.getClassLoader(), metrics.getStartTime(),
+            toCompositeData(metrics.getPreClassLoaderInitiators()), toCompositeData(metrics.getCleanUps())});
+  }
+
+  private static CompositeData[] toCompositeData(List<StepMetrics> steps) throws OpenDataException {
+    final CompositeData[] output = new CompositeData[steps.size()];
+    for(int i = 0; i < output.length; i++) {
+      final StepMetrics step = steps.get(i);
+      final TabularData actions = new TabularDataSupport(ACTIONS_TYPE);
+      for(Map.Entry<String, Integer> action : step.getActions().entrySet()) {
+        actions.put(new CompositeDataSupport(ACTION_TYPE, new String[] {"action", "count"},
+            new Object[] {action.getKey(), action.getValue()}));
+      }
+      output[i] = new CompositeDataSupport(STEP_TYPE,
+          new String[] {"name", "wallTimeNanos", "cpuTimeNanos", "allocatedBytes", "completed", "actions"},
+          new Object[] {step.getName(), step.getWallTimeNanos(), step.getCpuTimeNanos(), step.getAllocatedBytes(),
+              step.isCompleted(), actions});
+    }
+    return output;
+  }
+}
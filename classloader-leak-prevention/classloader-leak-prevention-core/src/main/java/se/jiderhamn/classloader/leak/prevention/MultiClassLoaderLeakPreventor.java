@@ -0,0 +1,227 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link ClassLoaderLeakPreventor} protecting multiple {@link ClassLoader}s that are undeployed together, such as the
+ * plugins of a plugin host. Each global sweep - threads, {@link ThreadLocal}s, MBeans etc - is performed once for all
+ * the {@link ClassLoader}s, rather than once per {@link ClassLoader}. Membership tests walk the ancestry of the tested
+ * {@link ClassLoader} against an index of all the protected {@link ClassLoader}s by identity hash code, so their cost
+ * does not depend on the no of protected {@link ClassLoader}s.
+ *
+ * {@link PerClassLoaderCleanUp}s are invoked once per protected {@link ClassLoader}, with {@link #getClassLoader()}
+ * returning that {@link ClassLoader}. Other {@link ClassLoaderPreMortemCleanUp}s see the first protected
+ * {@link ClassLoader} from {@link #getClassLoader()}, and need to consider {@link #getProtectedClassLoaders()} for
+ * anything specific to a {@link ClassLoader}, as {@link #isResourcePresent(String)} does. Findings are recorded in the combined
+ * {@link #getLeakReport() leak report}, and also attributed to the protected {@link ClassLoader} of the object causing
+ * the leak, if known; see {@link #getLeakReports()}.
+ *
+ * Once {@link #runCleanUps()} is done, or {@link #runCleanUpsAsync()} has returned, only weak references to the 
+ * protected {@link ClassLoader}s are kept, so that the preventor may be kept for its reports without preventing the 
+ * {@link ClassLoader}s from being garbage collected. Deferred cleanups are skipped once all the protected 
+ * {@link ClassLoader}s have been garbage collected.
+ */
+public class MultiClassLoaderLeakPreventor extends ClassLoaderLeakPreventor {
+
+  /** Weak references to the protected {@link ClassLoader}s, in the order provided */
+  private final List<WeakReference<ClassLoader>> classLoaderReferences;
+
+  /**
+   * The protected {@link ClassLoader}s, in the order provided. Cleared by {@link #releaseClassLoader()}, after which
+   * only {@link #classLoaderReferences} refers to the {@link ClassLoader}s.
+   */
+  private volatile List<ClassLoader> classLoaders;
+
+  /** 
+   * Index of {@link #classLoaderReferences} by {@link System#identityHashCode(Object)} of the {@link ClassLoader}, 
+   * which does not keep the {@link ClassLoader}s from being garbage collected. Hash collisions are resolved by 
+   * comparing the referenced {@link ClassLoader}s.
+   */
+  private final Map<Integer, int[]> indexes;
+
+  /** The {@link LeakReport} of each protected {@link ClassLoader}, in the order provided */
+  private final List<LeakReport> leakReports;
+
+  /**
+   * The {@link ClassLoader} currently handled by the {@link PerClassLoaderCleanUp} run by each thread. Not a
+   * {@link ThreadLocal}, since that could be cleared by
+   * {@link se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp}.
+   */
+  private final Map<Thread, ClassLoader> currentClassLoaders = new ConcurrentHashMap<Thread, ClassLoader>();
+
+  public MultiClassLoaderLeakPreventor(ClassLoader leakSafeClassLoader, Collection<ClassLoader> classLoaders,
+                                       Logger logger, Collection<PreClassLoaderInitiator> preClassLoaderInitiators,
+                                       Collection<ClassLoaderPreMortemCleanUp> cleanUps) {
+    super(leakSafeClassLoader, first(classLoaders), String.valueOf(classLoaders), logger,
+        preClassLoaderInitiators, cleanUps);
+    this.classLoaders = Collections.unmodifiableList(new ArrayList<ClassLoader>(classLoaders));
+    final List<WeakReference<ClassLoader>> classLoaderReferences = new ArrayList<WeakReference<ClassLoader>>();
+    final Map<Integer, int[]> indexes = new HashMap<Integer, int[]>();
+    final List<LeakReport> leakReports = new ArrayList<LeakReport>();
+    for(ClassLoader classLoader : this.classLoaders) {
+      final Integer identityHashCode = System.identityHashCode(classLoader);
+      final int[] existing = indexes.get(identityHashCode);
+      final int[] classLoaderIndexes = (existing != null) ? Arrays.copyOf(existing, existing.length + 1) : new int[1];
+      classLoaderIndexes[classLoaderIndexes.length - 1] = leakReports.size();
+      indexes.put(identityHashCode, classLoaderIndexes);
+      classLoaderReferences.add(new WeakReference<ClassLoader>(classLoader));
+      leakReports.add(new LeakReport(String.valueOf(classLoader)));
+    }
+    this.classLoaderReferences = Collections.unmodifiableList(classLoaderReferences);
+    this.indexes = indexes;
+    this.leakReports = Collections.unmodifiableList(leakReports);
+  }
+
+  private static ClassLoader first(Collection<ClassLoader> classLoaders) {
+    if(classLoaders.isEmpty())
+      throw new IllegalArgumentException("At least one ClassLoader is required");
+    return classLoaders.iterator().next();
+  }
+
+  /** Invoke all the registered {@link ClassLoaderPreMortemCleanUp}s, and then release the protected {@link ClassLoader}s */
+  @Override
+  public void runCleanUps() {
+    try {
+      super.runCleanUps();
+    }
+    finally {
+      releaseClassLoader();
+    }
+  }
+
+  /** Drop the strong references to all the protected {@link ClassLoader}s, only keeping weak references */
+  @Override
+  protected void releaseClassLoader() {
+    super.releaseClassLoader();
+    classLoaders = Collections.emptyList();
+  }
+
+  @Override
+  protected void invokeCleanUp(ClassLoaderPreMortemCleanUp cleanUp) {
+    if(cleanUp instanceof PerClassLoaderCleanUp) {
+      final Thread thread = Thread.currentThread();
+      try {
+        for(ClassLoader classLoader : getProtectedClassLoaders()) { // Excluding any garbage collected
+          currentClassLoaders.put(thread, classLoader);
+          cleanUp.cleanUp(this);
+        }
+      }
+      finally {
+        currentClassLoaders.remove(thread);
+      }
+    }
+    else
+      cleanUp.cleanUp(this);
+  }
+
+  /**
+   * Get the protected {@link ClassLoader} currently handled by a {@link PerClassLoaderCleanUp} in this thread, or
+   * otherwise the first protected {@link ClassLoader}. May return null after {@link #runCleanUps()}, if the
+   * {@link ClassLoader} has been garbage collected.
+   */
+  @Override
+  public ClassLoader getClassLoader() {
+    final ClassLoader current = currentClassLoaders.get(Thread.currentThread());
+    return (current != null) ? current : super.getClassLoader();
+  }
+
+  @Override
+  public Collection<ClassLoader> getProtectedClassLoaders() {
+    final List<ClassLoader> classLoaders = this.classLoaders;
+    if(! classLoaders.isEmpty())
+      return classLoaders;
+
+    final List<ClassLoader> output = new ArrayList<ClassLoader>();
+    for(WeakReference<ClassLoader> classLoaderReference : classLoaderReferences) {
+      final ClassLoader classLoader = classLoaderReference.get();
+      if(classLoader != null)
+        output.add(classLoader);
+    }
+    return output;
+  }
+
+  /** Test if provided ClassLoader is any of the protected {@link ClassLoader}s, or a child thereof */
+  @Override
+  public boolean isClassLoaderOrChild(ClassLoader cl) {
+    return getProtectedClassLoader(cl) != null;
+  }
+
+  /**
+   * Get the protected {@link ClassLoader} that is, or is the closest ancestor of, the provided {@link ClassLoader}.
+   * Returns null if the provided {@link ClassLoader} is not protected by this preventor.
+   */
+  public ClassLoader getProtectedClassLoader(ClassLoader cl) {
+    final int index = getIndex(cl);
+    return (index < 0) ? null : classLoaderReferences.get(index).get();
+  }
+
+  /** Get the index of the protected {@link ClassLoader} that is, or is the closest ancestor of, the provided one */
+  private int getIndex(ClassLoader cl) {
+    try {
+      while(cl != null) {
+        final int[] candidates = indexes.get(System.identityHashCode(cl));
+        if(candidates != null) {
+          for(int index : candidates) {
+            if(classLoaderReferences.get(index).get() == cl)
+              return index;
+          }
+        }
+        cl = cl.getParent();
+      }
+    }
+    catch (NestedProtectionDomainCombinerException e) {
+      // Since we needed permission to call getParent(), it is unlikely it is a descendant
+    }
+    return -1;
+  }
+
+  /**
+   * Get the {@link LeakReport} with the findings attributed to the protected {@link ClassLoader} with the provided
+   * index, in the order the {@link ClassLoader}s were provided
+   */
+  public LeakReport getLeakReport(int index) {
+    return leakReports.get(index);
+  }
+
+  /**
+   * Get the {@link LeakReport} of each protected {@link ClassLoader}, in the order the {@link ClassLoader}s were
+   * provided. {@link LeakReport#getClassLoader()} holds the name of the {@link ClassLoader}.
+   */
+  public List<LeakReport> getLeakReports() {
+    return leakReports;
+  }
+
+  @Override
+  protected void addFinding(LeakReport.Finding finding, Object target) {
+    super.addFinding(finding, target);
+    final int index = getIndexOf(target);
+    if(index >= 0)
+      leakReports.get(index).addFinding(finding);
+  }
+
+  /** Get the index of the protected {@link ClassLoader} the provided object causing a leak belongs to, if any */
+  private int getIndexOf(Object target) {
+    if(target == null)
+      return -1;
+    else if(target instanceof ClassLoader)
+      return getIndex((ClassLoader) target);
+    else if(target instanceof Class)
+      return getIndex(((Class<?>) target).getClassLoader());
+
+    final int index = getIndex(target.getClass().getClassLoader());
+    if(index < 0 && target instanceof Thread) { // Not a custom Thread class; look at what it is running
+      final Thread thread = (Thread) target;
+      final int threadGroupIndex = (thread.getThreadGroup() != null) ? getIndexOf(thread.getThreadGroup()) : -1;
+      return (threadGroupIndex >= 0) ? threadGroupIndex : getIndex(thread.getContextClassLoader());
+    }
+    return index;
+  }
+}
@@ -0,0 +1,13 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Marker interface for {@link PreClassLoaderInitiator}s that initialize JVM wide state, so that they only need to run
+ * once per JVM rather than once per application. Once completed, they are recorded in a JVM wide registry, and
+ * skipped by {@link ClassLoaderLeakPreventor#runPreClassLoaderInitiators()} of subsequent deployments; see
+ * {@link ClassLoaderLeakPreventor#setSkipCompletedPreInitiators(boolean)}.
+ *
+ * Initiators loading classes that may be provided by the application itself, such as a JDBC driver, should not
+ * implement this interface.
+ */
+public interface OncePerJvmPreClassLoaderInitiator extends PreClassLoaderInitiator {
+}
@@ -0,0 +1,205 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Thread safe registry of named entries, that maintains insertion order. Every modification publishes a new, immutable
+ * {@link Snapshot}, so that reading - such as {@link ClassLoaderLeakPreventorFactory#newLeakPreventor()} - neither
+ * locks nor allocates. Modifications, which are expected to be rare, are serialized.
+ */
+public class OrderedRegistry<I> {
+
+  /** The current snapshot */
+  private volatile Snapshot<I> snapshot = new Snapshot<I>(0, new ArrayList<String>(), new ArrayList<I>());
+
+  /** Get the current, immutable, snapshot of the registry */
+  public Snapshot<I> getSnapshot() {
+    return snapshot;
+  }
+
+  /** Get the entry with the provided name, or null */
+  public I get(String name) {
+    return snapshot.get(name);
+  }
+
+  /** 
+   * Add entry, or replace the entry with the same name while keeping its position
+   * @return The entry replaced, or null
+   */
+  public synchronized I put(String name, I entry) {
+    final Snapshot<I> current = this.snapshot;
+    final List<String> names = new ArrayList<String>(current.names);
+    final List<I> entries = new ArrayList<I>(current.entries);
+    final Integer index = current.indexes.get(name);
+    final I replaced;
+    if(index != null)
+      replaced = entries.set(index, entry);
+    else {
+      replaced = null;
+      names.add(name);
+      entries.add(entry);
+    }
+    this.snapshot = new Snapshot<I>(current.version + 1, names, entries);
+    return replaced;
+  }
+
+  /** 
+   * Remove the entry with the provided name, if any
+   * @return The entry removed, or null
+   */
+  public synchronized I remove(String name) {
+    final Snapshot<I> current = this.snapshot;
+    final Integer index = current.indexes.get(name);
+    if(index == null)
+      return null;
+    
+    final List<String> names = new ArrayList<String>(current.names);
+    final List<I> entries = new ArrayList<I>(current.entries);
+    names.remove(index.intValue());
+    final I removed = entries.remove(index.intValue());
+    this.snapshot = new Snapshot<I>(current.version + 1, names, entries);
+    return removed;
+  }
+
+  /** Remove all entries */
+  public synchronized void clear() {
+    this.snapshot = new Snapshot<I>(this.snapshot.version + 1, new ArrayList<String>(), new ArrayList<I>());
+  }
+
+  /** 
+   * Get a {@link Map} view of this registry, from name to entry, that maintains insertion order. Modifications of the
+   * view are written through to the registry. Iteration is over the snapshot current when the iteration started.
+   */
+  public Map<String, I> asMap() {
+    return new MapView();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Live {@link Map} view of the registry, see {@link #asMap()} */
+  private class MapView extends AbstractMap<String, I> {
+
+    @Override
+    public int size() {
+      return snapshot.names.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return snapshot.indexes.containsKey(key);
+    }
+
+    @Override
+    public I get(Object key) {
+      return (key instanceof String) ? OrderedRegistry.this.get((String) key) : null;
+    }
+
+    @Override
+    public I put(String key, I value) {
+      return OrderedRegistry.this.put(key, value);
+    }
+
+    @Override
+    public I remove(Object key) {
+      return (key instanceof String) ? OrderedRegistry.this.remove((String) key) : null;
+    }
+
+    @Override
+    public void clear() {
+      OrderedRegistry.this.clear();
+    }
+
+    @Override
+    public Set<Entry<String, I>> entrySet() {
+      return new AbstractSet<Entry<String, I>>() {
+        @Override
+        public int size() {
+          return MapView.this.size();
+        }
+
+        @Override
+        public Iterator<Entry<String, I>> iterator() {
+          final Snapshot<I> iterated = snapshot;
+          return new Iterator<Entry<String, I>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+              return next < iterated.names.size();
+            }
+
+            @Override
+            public Entry<String, I> next() {
+              if(! hasNext())
+                throw new NoSuchElementException();
+              final Entry<String, I> entry = 
+                  new SimpleImmutableEntry<String, I>(iterated.names.get(next), iterated.entries.get(next));
+              next++;
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              if(next == 0)
+                throw new IllegalStateException();
+              OrderedRegistry.this.remove(iterated.names.get(next - 1));
+            }
+          };
+        }
+      };
+    }
+  }
+
+  /** Immutable state of a {@link OrderedRegistry} */
+  public static final class Snapshot<I> {
+
+    private final long version;
+
+    private final List<String> names;
+
+    private final List<I> entries;
+
+    /** Index in {@link #entries} per name */
+    private final Map<String, Integer> indexes;
+
+    private Snapshot(long version, List<String> names, List<I> entries) {
+      this.version = version;
+      this.names = Collections.unmodifiableList(names);
+      this.entries = Collections.unmodifiableList(entries);
+      this.indexes = new HashMap<String, Integer>(names.size() * 2);
+      for(int i = 0; i < names.size(); i++) {
+        indexes.put(names.get(i), i);
+      }
+    }
+
+    /** Get version, which is increased for every modification of the registry */
+    public long getVersion() {
+      return version;
+    }
+
+    /** Get the names of the entries, in insertion order */
+    public List<String> getNames() {
+      return names;
+    }
+
+    /** Get the entries, in insertion order */
+    public List<I> getEntries() {
+      return entries;
+    }
+
+    /** Get the entry with the provided name, or null */
+    public I get(String name) {
+      final Integer index = indexes.get(name);
+      return (index != null) ? entries.get(index) : null;
+    }
+  }
+}
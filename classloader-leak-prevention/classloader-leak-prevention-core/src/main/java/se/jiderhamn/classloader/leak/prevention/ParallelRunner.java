@@ -0,0 +1,187 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a list of tasks on a bounded pool of threads, respecting the dependencies declared via {@link MustBeAfter}.
+ * Tasks without (unfinished) dependencies run concurrently. The threads are started in the leak safe classloader
+ * by {@link ClassLoaderLeakPreventor#doInLeakSafeClassLoader(Runnable)}, and are all terminated before
+ * {@link #run(List, int[][])} returns, so that they cannot cause any leaks themselves.
+ */
+class ParallelRunner {
+
+  private final ClassLoaderLeakPreventor preventor;
+
+  /** Maximum no of threads to use */
+  private final int threads;
+
+  /** Prefix for the name of the worker threads */
+  private final String threadNamePrefix;
+
+  /** No of milliseconds to wait for the worker threads to terminate */
+  private final long terminationWaitMs;
+
+  ParallelRunner(ClassLoaderLeakPreventor preventor, int threads, String threadNamePrefix, long terminationWaitMs) {
+    this.preventor = preventor;
+    this.threads = threads;
+    this.threadNamePrefix = threadNamePrefix;
+    this.terminationWaitMs = terminationWaitMs;
+  }
+
+  /**
+   * Get the dependencies of each entry in the list, as declared by {@link MustBeAfter#mustBeBeforeMe()}. Only entries
+   * earlier in the list are considered, which is the order that {@link ClassLoaderLeakPreventorFactory} enforces.
+   * @return An array with one element per entry, holding the indexes of the entries that must be completed before
+   *   that entry may be started.
+   */
+  static int[][] getDependencies(List<?> entries) {
+    final int[][] output = new int[entries.size()][];
+    for(int i = 0; i < entries.size(); i++) {
+      final List<Integer> dependencies = new ArrayList<Integer>();
+      final Object entry = entries.get(i);
+      if(entry instanceof MustBeAfter<?>) {
+        for(Class<?> clazz : ((MustBeAfter<?>) entry).mustBeBeforeMe()) {
+          for(int j = 0; j < i; j++) {
+            if(clazz.isInstance(entries.get(j)) && ! dependencies.contains(j))
+              dependencies.add(j);
+          }
+        }
+      }
+
+      output[i] = new int[dependencies.size()];
+      for(int j = 0; j < dependencies.size(); j++) {
+        output[i][j] = dependencies.get(j);
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Run the tasks, making sure no task is started before all its dependencies have completed. As when running the
+   * tasks sequentially, no more tasks are started once a task has thrown a {@link Throwable}; the tasks already running
+   * are allowed to complete, and then the first {@link Throwable} is rethrown.
+   * @param tasks The tasks to run
+   * @param dependencies The dependencies of each task, as returned by {@link #getDependencies(List)}
+   */
+  void run(final List<? extends Runnable> tasks, final int[][] dependencies) {
+    final int noOfTasks = tasks.size();
+
+    // Count unfinished dependencies per task, and keep track of the tasks waiting for each task
+    final int[] unfinishedDependencies = new int[noOfTasks];
+    final List<List<Integer>> dependents = new ArrayList<List<Integer>>(noOfTasks);
+    for(int i = 0; i < noOfTasks; i++) {
+      dependents.add(new ArrayList<Integer>());
+    }
+    for(int i = 0; i < noOfTasks; i++) {
+      unfinishedDependencies[i] = dependencies[i].length;
+      for(int dependency : dependencies[i]) {
+        dependents.get(dependency).add(i);
+      }
+    }
+
+    Throwable failure = null;
+    final ThreadPoolExecutor executor = createExecutor(Math.min(threads, noOfTasks));
+    try {
+      final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+      int running = 0;
+      for(int i = 0; i < noOfTasks; i++) {
+        if(unfinishedDependencies[i] == 0) {
+          completionService.submit(createCallable(tasks.get(i), i));
+          running++;
+        }
+      }
+
+      while(running > 0) {
+        final Future<Integer> future = completionService.take();
+        running--;
+        final int completed;
+        try {
+          completed = future.get();
+        }
+        catch (ExecutionException e) {
+          if(failure == null)
+            failure = e.getCause();
+          continue;
+        }
+        if(failure != null) // Do not start any more tasks
+          continue;
+
+        for(int dependent : dependents.get(completed)) {
+          if(--unfinishedDependencies[dependent] == 0) {
+            completionService.submit(createCallable(tasks.get(dependent), dependent));
+            running++;
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      preventor.warn("Interrupted while waiting for " + threadNamePrefix + " threads; remaining tasks will not be run");
+      executor.shutdownNow();
+      Thread.currentThread().interrupt(); // Restore interrupted status
+    }
+    finally {
+      executor.shutdown();
+      try {
+        if(! executor.awaitTermination(terminationWaitMs, TimeUnit.MILLISECONDS))
+          preventor.warn(threadNamePrefix + " threads did not terminate within " + terminationWaitMs + " ms");
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Restore interrupted status
+      }
+    }
+
+    if(failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    else if(failure instanceof Error)
+      throw (Error) failure;
+    else if(failure != null)
+      throw new RuntimeException(failure);
+  }
+
+  /**
+   * Create executor with all its threads started in the leak safe classloader, so that they do not inherit the
+   * {@link Thread#contextClassLoader} nor the {@link java.security.AccessControlContext} of the current thread.
+   */
+  private ThreadPoolExecutor createExecutor(int noOfThreads) {
+    final AtomicInteger threadNo = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(noOfThreads, noOfThreads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, threadNamePrefix + "-" + threadNo.incrementAndGet());
+            thread.setDaemon(true);
+            preventor.removeInheritedDomainCombiner(thread); // Keep the filtered domains, but not the combiner
+            return thread;
+          }
+        });
+    preventor.doInLeakSafeClassLoader(new Runnable() {
+      @Override
+      public void run() {
+        executor.prestartAllCoreThreads(); // No more threads will be created after this
+      }
+    });
+    return executor;
+  }
+
+  /** Wrap task in {@link Callable} that returns the index of the task */
+  private Callable<Integer> createCallable(final Runnable task, final int index) {
+    return new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        task.run();
+        return index;
+      }
+    };
+  }
+}
@@ -0,0 +1,10 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+/**
+ * Marker interface for {@link ClassLoaderPreMortemCleanUp}s that act upon
+ * {@link ClassLoaderLeakPreventor#getClassLoader()} itself, rather than sweeping global state for anything
+ * {@link ClassLoaderLeakPreventor#isClassLoaderOrChild(ClassLoader) loaded by it}. A
+ * {@link MultiClassLoaderLeakPreventor} invokes these once per protected {@link ClassLoader}.
+ */
+public interface PerClassLoaderCleanUp extends ClassLoaderPreMortemCleanUp {
+}
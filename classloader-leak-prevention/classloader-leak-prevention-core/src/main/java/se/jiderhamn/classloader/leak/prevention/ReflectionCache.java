@@ -0,0 +1,119 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of reflection lookups, i.e. {@link Class}es found by name and accessible {@link java.lang.reflect.Field}s and
+ * {@link java.lang.reflect.Method}s found by name, including lookups that found nothing. Since a single instance is
+ * shared by all {@link ClassLoaderLeakPreventor}s of the JVM, repeated redeploys only pay the reflection cost once.
+ * To avoid causing leaks itself, only lookups in classes loaded by the leak safe classloader or one of its parents
+ * may be cached; see {@link ClassLoaderLeakPreventor#isReflectionCacheable(Class)}.
+ * Thread safe.
+ */
+class ReflectionCache {
+
+  /** Marker for lookups that found nothing */
+  static final Object NOT_FOUND = new Object();
+
+  private final ConcurrentMap<Object, Object> cache = new ConcurrentHashMap<Object, Object>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Get cached lookup result
+   * @return The cached {@link Class}, {@link java.lang.reflect.Field} or {@link java.lang.reflect.Method},
+   *   {@link #NOT_FOUND} if the lookup found nothing, or null if the lookup is not in the cache
+   */
+  Object get(Object key) {
+    final Object output = cache.get(key);
+    if(output != null)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    return output;
+  }
+
+  /** Cache lookup result; a null value means the lookup found nothing */
+  void put(Object key, Object value) {
+    cache.put(key, (value != null) ? value : NOT_FOUND);
+  }
+
+  void clear() {
+    cache.clear();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /** Key for looking up class by name */
+  static Object classKey(String className, boolean trySystemCL) {
+    return new Key(null, className, trySystemCL ? new Class[] {ClassLoader.class} : null);
+  }
+
+  /** Key for looking up field of class */
+  static Object fieldKey(Class<?> clazz, String fieldName) {
+    return new Key(clazz, fieldName, null);
+  }
+
+  /** Key for looking up method of class */
+  static Object methodKey(Class<?> clazz, String methodName, Class<?>[] parameterTypes) {
+    return new Key(clazz, methodName, (parameterTypes != null) ? parameterTypes : new Class[0]);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Composite key. Fields have null {@link #parameterTypes}, while methods have non-null, which means a field and a
+   * no-args method by the same name do not collide.
+   */
+  private static class Key {
+
+    /** Declaring class, or null when looking up class by name */
+    private final Class<?> clazz;
+
+    private final String name;
+
+    private final Class<?>[] parameterTypes;
+
+    private final int hash;
+
+    Key(Class<?> clazz, String name, Class<?>[] parameterTypes) {
+      this.clazz = clazz;
+      this.name = name;
+      this.parameterTypes = parameterTypes;
+      this.hash = 31 * (31 * System.identityHashCode(clazz) + name.hashCode()) +
+          ((parameterTypes != null) ? Arrays.hashCode(parameterTypes) : -1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o)
+        return true;
+      if(! (o instanceof Key))
+        return false;
+
+      final Key other = (Key) o;
+      return clazz == other.clazz && name.equals(other.name) &&
+          ((parameterTypes == null) ? other.parameterTypes == null : Arrays.equals(parameterTypes, other.parameterTypes));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -4,10 +4,11 @@ package se.jiderhamn.classloader.leak.prevention;
  * Implementation of {@link Logger} interface, that uses {@link System#out} and {@link System#err}.
  * Because log frameworks may themselves cause leaks, we may want to avoid them altogether.
  * 
- * To "turn off" a log level, override the corresponding method(s) with an empty implementation.
+ * To "turn off" a log level, override the corresponding method(s) with an empty implementation. Also override the
+ * corresponding {@code is*Enabled()} method to avoid building messages that will be discarded.
  * @author Mattias Jiderhamn
  */
-public class StdLogger implements Logger {
+public class StdLogger implements LevelAwareLogger {
   
   /** Get prefix to use when logging to {@link System#out}/{@link System#err} */
   protected String getLogPrefix() {
@@ -43,5 +44,30 @@ public class StdLogger implements Logger {
   public void error(Throwable t) {
     t.printStackTrace(System.err);
   }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return true;
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return true;
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return true;
+  }
+
+  @Override
+  public void log(LeakEvent event) {
+    switch (event.getLevel()) {
+      case DEBUG: debug(event.getMessage()); break;
+      case INFO: info(event.getMessage()); break;
+      case WARN: warn(event.getMessage()); break;
+      default: error(event.getMessage());
+    }
+  }
   
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timing and outcome of a single {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} invocation.
+ * Time and allocations are measured for the thread invoking the step; CPU time and allocated bytes are -1 if not
+ * supported by the JVM. Actions are counted via {@link ClassLoaderLeakPreventor#recordAction(String)}.
+ */
+public class StepMetrics {
+
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /** {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long)}, if available */
+  private static final Method getThreadAllocatedBytes = findGetThreadAllocatedBytes();
+
+  /** Class name of the {@link PreClassLoaderInitiator} or {@link ClassLoaderPreMortemCleanUp} */
+  private final String name;
+
+  private long startWallTime;
+
+  private long startCpuTime = -1;
+
+  private long startAllocatedBytes = -1;
+
+  private long wallTimeNanos = -1;
+
+  private long cpuTimeNanos = -1;
+
+  private long allocatedBytes = -1;
+
+  /** Did the step complete without throwing? */
+  private boolean completed;
+
+  /** No of times each action was performed */
+  private final Map<String, Integer> actions = new LinkedHashMap<String, Integer>();
+
+  StepMetrics(String name) {
+    this.name = name;
+  }
+
+  /** Start measuring; to be called in the thread invoking the step */
+  void start() {
+    startCpuTime = getCurrentThreadCpuTime();
+    startAllocatedBytes = getCurrentThreadAllocatedBytes();
+    startWallTime = System.nanoTime();
+  }
+
+  /** Stop measuring; to be called in the same thread as {@link #start()} */
+  void stop(boolean completed) {
+    wallTimeNanos = System.nanoTime() - startWallTime;
+    final long cpuTime = getCurrentThreadCpuTime();
+    if(startCpuTime >= 0 && cpuTime >= 0)
+      cpuTimeNanos = cpuTime - startCpuTime;
+    final long allocated = getCurrentThreadAllocatedBytes();
+    if(startAllocatedBytes >= 0 && allocated >= 0)
+      allocatedBytes = allocated - startAllocatedBytes;
+    this.completed = completed;
+  }
+
+  synchronized void recordAction(String action) {
+    final Integer count = actions.get(action);
+    actions.put(action, (count != null) ? count + 1 : 1);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Get wall clock time in nanoseconds, or -1 if the step has not completed */
+  public long getWallTimeNanos() {
+    return wallTimeNanos;
+  }
+
+  /** Get CPU time of the invoking thread in nanoseconds, or -1 if not supported */
+  public long getCpuTimeNanos() {
+    return cpuTimeNanos;
+  }
+
+  /** Get no of bytes allocated by the invoking thread, or -1 if not supported */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /** Did the step complete without throwing an exception? */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  /** Get the no of times each action was performed */
+  public synchronized Map<String, Integer> getActions() {
+    return new LinkedHashMap<String, Integer>(actions);
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + (wallTimeNanos / 1000000) + " ms" + (completed ? "" : " (failed)") +
+        (actions.isEmpty() ? "" : " " + getActions());
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static long getCurrentThreadCpuTime() {
+    try {
+      return (threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) ?
+          threadMXBean.getCurrentThreadCpuTime() : -1;
+    }
+    catch (Exception e) { // UnsupportedOperationException
+      return -1;
+    }
+  }
+
+  private static long getCurrentThreadAllocatedBytes() {
+    if(getThreadAllocatedBytes == null)
+      return -1;
+
+    try {
+      return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+    }
+    catch (Exception e) { // UnsupportedOperationException
+      return -1;
+    }
+  }
+
+  private static Method findGetThreadAllocatedBytes() {
+    try {
+      final Class<?> sunThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+      return sunThreadMXBean.isInstance(threadMXBean) ?
+          sunThreadMXBean.getMethod("getThreadAllocatedBytes", long.class) : null;
+    }
+    catch (Throwable t) { // ClassNotFoundException, NoSuchMethodException (before Java 6u25) etc
+      return null;
+    }
+  }
+}
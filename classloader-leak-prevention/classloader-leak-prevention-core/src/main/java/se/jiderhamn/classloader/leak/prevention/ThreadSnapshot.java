@@ -0,0 +1,114 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of all {@link Thread}s in the JVM, together with facts about how each of them relates to the protected
+ * {@link ClassLoader}. The threads are enumerated once, and the facts computed once, when the snapshot is created.
+ * During {@link ClassLoaderLeakPreventor#runCleanUps()} the same snapshot is shared by all
+ * {@link ClassLoaderPreMortemCleanUp}s, see {@link ClassLoaderLeakPreventor#getThreadSnapshot()}. Threads started
+ * after the snapshot was created are not included, unless {@link ClassLoaderLeakPreventor#invalidateThreadSnapshot()}
+ * is called.
+ * Immutable and thereby thread safe, although the {@link Thread}s themselves may of course change state.
+ */
+public class ThreadSnapshot {
+
+  /** Flag for {@link Thread} subclass loaded by the protected {@link ClassLoader} */
+  private static final byte THREAD_LOADED_BY_CLASSLOADER = 1;
+
+  /** Flag for {@link ThreadGroup} subclass loaded by the protected {@link ClassLoader} */
+  private static final byte THREAD_GROUP_LOADED_BY_CLASSLOADER = 2;
+
+  /** Flag for {@link Thread#contextClassLoader} being the protected {@link ClassLoader} or a child thereof */
+  private static final byte HAS_CONTEXT_CLASSLOADER = 4;
+
+  /** Flag for the {@link Runnable} of the {@link Thread} being loaded by the protected {@link ClassLoader} */
+  private static final byte RUNNABLE_LOADED_BY_CLASSLOADER = 8;
+
+  private final Thread[] threads;
+
+  /** The {@link Runnable} of each thread in {@link #threads}, if any */
+  private final Runnable[] runnables;
+
+  /** Bit mask of facts for each thread in {@link #threads} */
+  private final byte[] flags;
+
+  ThreadSnapshot(ClassLoaderLeakPreventor preventor) {
+    this.threads = preventor.getAllThreads().toArray(new Thread[0]);
+    this.runnables = new Runnable[threads.length];
+    this.flags = new byte[threads.length];
+
+    final Field oracleTarget = preventor.findField(Thread.class, "target"); // Sun/Oracle JRE
+    final Field ibmRunnable = (oracleTarget == null) ? preventor.findField(Thread.class, "runnable") : null; // IBM JRE
+
+    for(int i = 0; i < threads.length; i++) {
+      final Thread thread = threads[i];
+      if(oracleTarget != null)
+        runnables[i] = preventor.getFieldValue(oracleTarget, thread);
+      else if(ibmRunnable != null)
+        runnables[i] = preventor.getFieldValue(ibmRunnable, thread);
+
+      byte threadFlags = 0;
+      if(preventor.isLoadedInClassLoader(thread))
+        threadFlags |= THREAD_LOADED_BY_CLASSLOADER;
+      if(preventor.isLoadedInClassLoader(thread.getThreadGroup()))
+        threadFlags |= THREAD_GROUP_LOADED_BY_CLASSLOADER;
+      if(preventor.isClassLoaderOrChild(thread.getContextClassLoader()))
+        threadFlags |= HAS_CONTEXT_CLASSLOADER;
+      if(preventor.isLoadedInClassLoader(runnables[i]))
+        threadFlags |= RUNNABLE_LOADED_BY_CLASSLOADER;
+      flags[i] = threadFlags;
+    }
+  }
+
+  /** Get the number of threads in the snapshot */
+  public int size() {
+    return threads.length;
+  }
+
+  /** Get all threads in the snapshot */
+  public List<Thread> getThreads() {
+    return Collections.unmodifiableList(Arrays.asList(threads));
+  }
+
+  /** Get the thread with the provided index */
+  public Thread getThread(int i) {
+    return threads[i];
+  }
+
+  /** Get the {@link Runnable} (i.e. {@code java.lang.Thread.target}) of the thread with the provided index, if any */
+  public Runnable getRunnable(int i) {
+    return runnables[i];
+  }
+
+  /** Is the thread with the provided index of a custom {@link Thread} class loaded by the protected ClassLoader? */
+  public boolean isThreadLoadedByClassLoader(int i) {
+    return (flags[i] & THREAD_LOADED_BY_CLASSLOADER) != 0;
+  }
+
+  /** Is the thread with the provided index in a custom {@link ThreadGroup} loaded by the protected ClassLoader? */
+  public boolean isThreadGroupLoadedByClassLoader(int i) {
+    return (flags[i] & THREAD_GROUP_LOADED_BY_CLASSLOADER) != 0;
+  }
+
+  /**
+   * Did the thread with the provided index have the protected ClassLoader, or a child thereof, as its
+   * {@link Thread#contextClassLoader} when the snapshot was created?
+   */
+  public boolean hasContextClassLoader(int i) {
+    return (flags[i] & HAS_CONTEXT_CLASSLOADER) != 0;
+  }
+
+  /** Is the {@link Runnable} of the thread with the provided index loaded by the protected ClassLoader? */
+  public boolean isRunnableLoadedByClassLoader(int i) {
+    return (flags[i] & RUNNABLE_LOADED_BY_CLASSLOADER) != 0;
+  }
+
+  /** Same as {@link ClassLoaderLeakPreventor#isThreadInClassLoader(Thread)}, as of when the snapshot was created */
+  public boolean isThreadInClassLoader(int i) {
+    return (flags[i] & (THREAD_LOADED_BY_CLASSLOADER | THREAD_GROUP_LOADED_BY_CLASSLOADER | HAS_CONTEXT_CLASSLOADER)) != 0;
+  }
+}
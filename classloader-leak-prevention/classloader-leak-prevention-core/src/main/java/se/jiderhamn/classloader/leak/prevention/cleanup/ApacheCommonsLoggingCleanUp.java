@@ -2,6 +2,8 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.PerClassLoaderCleanUp;
 
 /**
  * Release this classloader from Apache Commons Logging (ACL) by calling 
@@ -11,7 +13,14 @@ import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
  * 
  * @author Mattias Jiderhamn
  */
-public class ApacheCommonsLoggingCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ApacheCommonsLoggingCleanUp implements PerClassLoaderCleanUp, MustBeAfter<ClassLoaderPreMortemCleanUp> {
+
+  /** Needs to be done after shutdown hooks and threads of the application have finished, since they may log */
+  @Override
+  public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+    return new Class[] {ShutdownHookCleanUp.class, StopThreadsCleanUp.class};
+  }
+
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     final Class<?> logFactory = preventor.findClass("org.apache.commons.logging.LogFactory");
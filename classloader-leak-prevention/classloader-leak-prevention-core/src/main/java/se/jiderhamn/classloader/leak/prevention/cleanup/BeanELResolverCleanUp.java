@@ -5,13 +5,13 @@ import java.lang.reflect.Method;
 import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PerClassLoaderCleanUp;
 
 /**
  * Clean for the cache of {@link javax.el.BeanELResolver}
  * @author Mattias Jiderhamn
  */
-public class BeanELResolverCleanUp implements ClassLoaderPreMortemCleanUp {
+public class BeanELResolverCleanUp implements PerClassLoaderCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     java.beans.Introspector.flushCaches(); // This must also be done          
@@ -29,6 +29,7 @@ public class DriverManagerCleanUp implements ClassLoaderPreMortemCleanUp {
       try {
         preventor.warn("JDBC driver loaded by protected ClassLoader deregistered: " + driver.getClass());
         DriverManager.deregisterDriver(driver);
+        preventor.recordFinding("JdbcDriver", driver, "jdbcDriversDeregistered");
       }
       catch (SQLException e) {
         preventor.error(e);
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PerClassLoaderCleanUp;
 
 import java.lang.reflect.Field;
 import java.util.Set;
@@ -11,7 +11,7 @@ import java.util.Set;
  *
  * See <a href="https://bugs.openjdk.java.net/browse/JDK-8151486">JDK-8151486</a>
  */
-public class JDK8151486CleanUp implements ClassLoaderPreMortemCleanUp {
+public class JDK8151486CleanUp implements PerClassLoaderCleanUp {
     @Override
     public void cleanUp(ClassLoaderLeakPreventor preventor) {
         Field field = preventor.findField(ClassLoader.class, "domains");
@@ -6,13 +6,20 @@ import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
 
 /**
  * Clean up for the static caches of {@link javax.crypto.JceSecurity}
  * @author Mattias Jiderhamn
  */
-public class JceSecurityCleanUp implements ClassLoaderPreMortemCleanUp {
+public class JceSecurityCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAfter<ClassLoaderPreMortemCleanUp> {
   
+  /** Should be done after {@link SecurityProviderCleanUp}, so that deregistered providers are not cached again */
+  @Override
+  public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+    return new Class[] {SecurityProviderCleanUp.class};
+  }
+
   @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
@@ -4,6 +4,7 @@ import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import javax.management.MBeanServer;
@@ -11,50 +12,77 @@ import javax.management.ObjectName;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationRecorderInitiator;
 
 /**
- * Unregister MBeans loaded by the protected class loader
+ * Unregister MBeans loaded by the protected class loader.
+ * By default all MBeans in the platform MBeanServer are inspected. If a {@link MBeanRegistrationRecorderInitiator}
+ * is provided, only the MBeans registered while recording - plus Jetty MBeans, if applicable - are inspected, unless
+ * {@link #setFullSweep(boolean) full sweep} is enabled to verify that no MBeans were missed.
  * @author Mattias Jiderhamn
  * @author rapla
  */
 public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
+
+  /** Recorder of MBean registrations, or null to inspect all MBeans */
+  protected MBeanRegistrationRecorderInitiator registrationRecorder;
+
+  /** Inspect all MBeans also when registrations are recorded, warning about protected MBeans not recorded */
+  protected boolean fullSweep = false;
+
+  public MBeanCleanUp() {
+  }
+
+  public MBeanCleanUp(MBeanRegistrationRecorderInitiator registrationRecorder) {
+    this.registrationRecorder = registrationRecorder;
+  }
+
+  public void setRegistrationRecorder(MBeanRegistrationRecorderInitiator registrationRecorder) {
+    this.registrationRecorder = registrationRecorder;
+  }
+
+  public void setFullSweep(boolean fullSweep) {
+    this.fullSweep = fullSweep;
+  }
+
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     try {
       final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
-      final Set<ObjectName> allMBeanNames = mBeanServer.queryNames(new ObjectName("*:*"), null);
 
       // Special treatment for Jetty, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=423255
-      JettyJMXRemover jettyJMXRemover = null;
-      if(isJettyWithJMX(preventor)) {
-        try {
-          jettyJMXRemover = new JettyJMXRemover(preventor);
-        }
-        catch (Exception ex) {
-          preventor.error(ex);
+      final List<JettyJMXRemover> jettyJMXRemovers = new ArrayList<JettyJMXRemover>();
+      for(ClassLoader classLoader : preventor.getProtectedClassLoaders()) {
+        if(isJettyWithJMX(classLoader)) {
+          try {
+            jettyJMXRemovers.add(new JettyJMXRemover(preventor, classLoader));
+          }
+          catch (Exception ex) {
+            preventor.error(ex);
+          }
         }
       }
       
-      // Look for custom MBeans
-      for(ObjectName objectName : allMBeanNames) {
-        try {
-          if (jettyJMXRemover != null && jettyJMXRemover.unregisterJettyJMXBean(objectName)) {
-        	  continue;
-          }
-          
-          final ClassLoader mBeanClassLoader = mBeanServer.getClassLoaderFor(objectName);
-          if(preventor.isClassLoaderOrChild(mBeanClassLoader)) { // MBean loaded by protected ClassLoader
-            preventor.warn("MBean '" + objectName + "' was loaded by protected ClassLoader; unregistering");
-            mBeanServer.unregisterMBean(objectName);
-          }
-          /* 
-          else if(... instanceof NotificationBroadcasterSupport) {
-            unregisterNotificationListeners((NotificationBroadcasterSupport) ...);
-          }
-          */
+      final Set<ObjectName> recordedMBeanNames = (registrationRecorder != null) ? 
+          registrationRecorder.stopRecording(preventor) : null;
+      if(recordedMBeanNames == null) { // Not recording; look for custom MBeans among all
+        for(ObjectName objectName : mBeanServer.queryNames(new ObjectName("*:*"), null)) {
+          unregisterIfProtected(preventor, mBeanServer, jettyJMXRemovers, objectName, null);
         }
-        catch(Exception e) { // MBeanRegistrationException / InstanceNotFoundException
-          preventor.error(e);
+      }
+      else {
+        final Set<ObjectName> mBeanNames = new LinkedHashSet<ObjectName>(recordedMBeanNames);
+        if(! jettyJMXRemovers.isEmpty()) // Jetty MBeans may be registered by the container before recording started
+          mBeanNames.addAll(mBeanServer.queryNames(new ObjectName("org.eclipse.jetty*:*"), null));
+        for(ObjectName objectName : mBeanNames) {
+          unregisterIfProtected(preventor, mBeanServer, jettyJMXRemovers, objectName, null);
+        }
+        
+        if(fullSweep) { // Verify that no protected MBeans were missed
+          for(ObjectName objectName : mBeanServer.queryNames(new ObjectName("*:*"), null)) {
+            if(! mBeanNames.contains(objectName))
+              unregisterIfProtected(preventor, mBeanServer, jettyJMXRemovers, objectName, "not recorded, ");
+          }
         }
       }
     }
@@ -64,13 +92,47 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
     
   }
 
+  /**
+   * Unregister MBean if it was loaded by the protected ClassLoader, or is a Jetty MBean wrapping an object of the
+   * application.
+   * @param remark Additional remark to include in the warning, or null
+   */
+  protected void unregisterIfProtected(ClassLoaderLeakPreventor preventor, MBeanServer mBeanServer,
+                                       List<JettyJMXRemover> jettyJMXRemovers, ObjectName objectName, String remark) {
+    try {
+      for(JettyJMXRemover jettyJMXRemover : jettyJMXRemovers) {
+        if(jettyJMXRemover.unregisterJettyJMXBean(objectName))
+          return;
+      }
+      
+      if(! mBeanServer.isRegistered(objectName)) // Unregistered since recorded/queried
+        return;
+
+      final ClassLoader mBeanClassLoader = mBeanServer.getClassLoaderFor(objectName);
+      if(preventor.isClassLoaderOrChild(mBeanClassLoader)) { // MBean loaded by protected ClassLoader
+        preventor.warn("MBean '" + objectName + "' was loaded by protected ClassLoader; " + 
+            (remark != null ? remark : "") + "unregistering");
+        final String className = mBeanServer.getObjectInstance(objectName).getClassName();
+        mBeanServer.unregisterMBean(objectName);
+        preventor.recordFinding("MBean", className, objectName.toString(), "mBeansUnregistered");
+      }
+      /* 
+      else if(... instanceof NotificationBroadcasterSupport) {
+        unregisterNotificationListeners((NotificationBroadcasterSupport) ...);
+      }
+      */
+    }
+    catch(Exception e) { // MBeanRegistrationException / InstanceNotFoundException
+      preventor.error(e);
+    }
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   // Methods and classes for Jetty, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=423255 
   
-  /** Are we running in Jetty with JMX enabled? */
+  /** Is the provided protected {@link ClassLoader} a Jetty web application, with JMX enabled? */
   @SuppressWarnings("WeakerAccess")
-  protected boolean isJettyWithJMX(ClassLoaderLeakPreventor preventor) {
-    final ClassLoader classLoader = preventor.getClassLoader();
+  protected boolean isJettyWithJMX(ClassLoader classLoader) {
     try {
       // If package org.eclipse.jetty is found, we may be running under jetty
       if (classLoader.getResource("org/eclipse/jetty") == null) {
@@ -95,10 +157,13 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
    * ObjectMBean._loader which is unfortunately not the classloader that loaded the class. Therefore we need to access 
    * the MBeanContainer class of the Jetty container and unregister the MBeans.
    */
-  private class JettyJMXRemover {
+  protected class JettyJMXRemover {
     
     private final ClassLoaderLeakPreventor preventor;
 
+    /** The protected {@link ClassLoader}, being a Jetty WebAppClassLoader */
+    private final ClassLoader classLoader;
+
     /** List of objects that may be wrapped in MBean by Jetty. Should be allowed to contain null. */
     private List<Object> objectsWrappedWithMBean;
 
@@ -112,13 +177,14 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
     private Method removeBeanMethod;
 
     @SuppressWarnings("WeakerAccess")
-    public JettyJMXRemover(ClassLoaderLeakPreventor preventor) throws Exception {
+    public JettyJMXRemover(ClassLoaderLeakPreventor preventor, ClassLoader classLoader) throws Exception {
       this.preventor = preventor;
+      this.classLoader = classLoader;
       
       // First we need access to the MBeanContainer to access the beans
       // WebAppContext webappContext = (WebAppContext)servletContext;
       final Object webappContext = findJettyClass("org.eclipse.jetty.webapp.WebAppClassLoader")
-              .getMethod("getContext").invoke(preventor.getClassLoader());
+              .getMethod("getContext").invoke(classLoader);
       if(webappContext == null)
         return;
       
@@ -212,7 +278,7 @@ public class MBeanCleanUp implements ClassLoaderPreMortemCleanUp {
 
     Class findJettyClass(String className) throws ClassNotFoundException {
       try {
-        return Class.forName(className, false, preventor.getClassLoader());
+        return Class.forName(className, false, classLoader);
       } catch (ClassNotFoundException e1) {
         try {
           return Class.forName(className);
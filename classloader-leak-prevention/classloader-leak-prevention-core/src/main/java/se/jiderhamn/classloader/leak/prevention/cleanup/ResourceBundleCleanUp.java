@@ -8,13 +8,13 @@ import java.util.Map;
 import java.util.ResourceBundle;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PerClassLoaderCleanUp;
 
 /**
  * Clean up caches in {@link ResourceBundle}
  * @author Mattias Jiderhamn
  */
-public class ResourceBundleCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ResourceBundleCleanUp implements PerClassLoaderCleanUp {
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     try {
@@ -4,13 +4,13 @@ import java.util.ArrayList;
 import java.util.Map;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.DeferrableCleanUp;
 
 /**
  * Find and deregister shutdown hooks. Will by default execute the hooks immediately after removing them.
  * @author Mattias Jiderhamn
  */
-public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
+public class ShutdownHookCleanUp implements DeferrableCleanUp {
 
   /** Default no of milliseconds to wait for shutdown hook to finish execution */
   public static final int SHUTDOWN_HOOK_WAIT_MS_DEFAULT = 10 * 1000; // 10 seconds
@@ -67,12 +67,14 @@ public class ShutdownHookCleanUp implements ClassLoaderPreMortemCleanUp {
     final String displayString = "'" + shutdownHook + "' of type " + shutdownHook.getClass().getName();
     preventor.error("Removing shutdown hook: " + displayString);
     Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    preventor.recordFinding("ShutdownHook", shutdownHook, "shutdownHooksRemoved");
 
     if(executeShutdownHooks) { // Shutdown hooks should be executed
       
       preventor.info("Executing shutdown hook now: " + displayString);
       // Make sure it's from protected ClassLoader
       shutdownHook.start(); // Run cleanup immediately
+      preventor.invalidateThreadSnapshot(); // Hook may still be running when threads are stopped
       
       if(shutdownHookWaitMs > 0) { // Wait for shutdown hook to finish
         try {
@@ -3,11 +3,18 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.security.AccessControlContext;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.DeferrableCleanUp;
+import se.jiderhamn.classloader.leak.prevention.LeakEvent;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.ThreadSnapshot;
 
 import static se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor.THREAD_WAIT_MS_DEFAULT;
 
@@ -17,16 +24,10 @@ import static se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor.
  * @author Mattias Jiderhamn
  */
 @SuppressWarnings("WeakerAccess")
-public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
+public class StopThreadsCleanUp implements DeferrableCleanUp, MustBeAfter<ClassLoaderPreMortemCleanUp> {
 
   protected static final String JURT_ASYNCHRONOUS_FINALIZER = "com.sun.star.lib.util.AsynchronousFinalizer";
 
-  /** Thread {@link Runnable} for Sun/Oracle JRE i.e. java.lang.Thread.target */
-  private Field oracleTarget;
-  
-  /** Thread {@link Runnable} for IBM JRE i.e. java.lang.Thread.runnable */
-  private Field ibmRunnable;
-
   protected boolean stopThreads;
 
   /**
@@ -60,6 +61,12 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
     this.threadWaitMs = threadWaitMs;
   }
 
+  /** Do not stop shutdown hook threads that {@link ShutdownHookCleanUp} may still be waiting for */
+  @Override
+  public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+    return new Class[] {ShutdownHookCleanUp.class};
+  }
+
   @Override
   public void cleanUp(ClassLoaderLeakPreventor preventor) {
     // Force the execution of the cleanup code for JURT; see https://issues.apache.org/ooo/show_bug.cgi?id=122517
@@ -86,18 +93,22 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
           AsynchronousFinalizer queue be executed. Then just leave it, and handle the rest in {@link #stopThreads}.
           */
         preventor.info("OpenOffice JURT AsynchronousFinalizer thread started - forcing garbage collection to invoke finalizers");
-        ClassLoaderLeakPreventor.gc();
+        if(! ClassLoaderLeakPreventor.gcAndWait(ClassLoaderLeakPreventor.GC_TIMEOUT_MS_DEFAULT, 
+            ClassLoaderLeakPreventor.GC_MAX_ATTEMPTS_DEFAULT))
+          preventor.warn("Garbage collection not completed within " + ClassLoaderLeakPreventor.GC_TIMEOUT_MS_DEFAULT + " ms");
+        preventor.invalidateThreadSnapshot(); // Make sure the JURT thread is included
       }
     }
     else {
       // Check for class existence without loading class and thus executing static block
-      if(preventor.getClassLoader().getResource("com/sun/star/lib/util/AsynchronousFinalizer.class") != null) {
+      if(preventor.isResourcePresent("com/sun/star/lib/util/AsynchronousFinalizer.class")) {
         preventor.warn("OpenOffice JURT AsynchronousFinalizer thread will not be stopped if started, as stopThreads is false");
         /* 
          By forcing Garbage Collection, we'll hopefully start the thread now, in case it would have been started by
          GC later, so that at least it will appear in the logs. 
          */
         ClassLoaderLeakPreventor.gc();
+        preventor.invalidateThreadSnapshot(); // Make sure the JURT thread is included
       }
     }
   }
@@ -109,14 +120,21 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
     final Class<?> workerClass = preventor.findClass("java.util.concurrent.ThreadPoolExecutor$Worker");
 
     final boolean waitForThreads = threadWaitMs > 0;
-    for(Thread thread : preventor.getAllThreads()) {
-      final Runnable runnable = getRunnable(preventor, thread);
-
-      final boolean threadLoadedByClassLoader = preventor.isLoadedInClassLoader(thread);
-      final boolean threadGroupLoadedByClassLoader = preventor.isLoadedInClassLoader(thread.getThreadGroup());
-      final boolean runnableLoadedByClassLoader = preventor.isLoadedInClassLoader(runnable);
-      final boolean hasContextClassLoader = preventor.isClassLoaderOrChild(thread.getContextClassLoader());
-      if(thread != Thread.currentThread() && // Ignore current thread
+    
+    // Threads, with Runnable, to wait for before changing contextClassLoader and stopping respectively
+    final Map<Thread, Runnable> threadsToRelease = new LinkedHashMap<Thread, Runnable>();
+    final Map<Thread, Runnable> threadsToStop = new LinkedHashMap<Thread, Runnable>();
+    
+    final ThreadSnapshot threads = preventor.getThreadSnapshot();
+    for(int i = 0; i < threads.size(); i++) {
+      final Thread thread = threads.getThread(i);
+      final Runnable runnable = threads.getRunnable(i);
+
+      final boolean threadLoadedByClassLoader = threads.isThreadLoadedByClassLoader(i);
+      final boolean threadGroupLoadedByClassLoader = threads.isThreadGroupLoadedByClassLoader(i);
+      final boolean runnableLoadedByClassLoader = threads.isRunnableLoadedByClassLoader(i);
+      final boolean hasContextClassLoader = threads.hasContextClassLoader(i);
+      if(! preventor.isCleanUpThread(thread) && // Ignore current thread
          (threadLoadedByClassLoader || threadGroupLoadedByClassLoader || hasContextClassLoader || // = preventor.isThreadInClassLoader(thread) 
           runnableLoadedByClassLoader)) {
 
@@ -150,6 +168,7 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
                     postgresqlDriver.getClassLoader() : // Postgresql driver loaded by other classloader than we want to protect
                     preventor.getLeakSafeClassLoader();
                 thread.setContextClassLoader(postgresqlCL);
+                preventor.recordFinding("Thread", thread, "contextClassLoadersChanged");
                 preventor.warn("Changing contextClassLoader of " + thread + " to " + postgresqlCL);
               }
 
@@ -167,22 +186,19 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
               }
             }
             else if(stopTimerThreads) {
-              preventor.warn("Stopping Timer thread '" + thread.getName() + "' running in protected ClassLoader. " +
-                  preventor.getStackTrace(thread));
+              if(preventor.isWarnEnabled())
+                preventor.warn("Stopping Timer thread '" + thread.getName() + "' running in protected ClassLoader. " +
+                    preventor.getStackTrace(thread));
               stopTimerThread(preventor, thread);
+              preventor.recordFinding("Thread", thread, "timerThreadsStopped");
             }
             else {
-              preventor.info("Timer thread is running in protected ClassLoader, but will not be stopped. " + 
-                  preventor.getStackTrace(thread));
+              if(preventor.isInfoEnabled())
+                preventor.info("Timer thread is running in protected ClassLoader, but will not be stopped. " + 
+                    preventor.getStackTrace(thread));
             }
           }
           else {
-            final String displayString = "Thread '" + thread + "'" + 
-                (threadLoadedByClassLoader ? " of type " + thread.getClass().getName() + " loaded by protected ClassLoader" : "") +
-                (runnableLoadedByClassLoader ? " with Runnable of type " + runnable.getClass().getName() + " loaded by protected ClassLoader" : "") +
-                (threadGroupLoadedByClassLoader ? " with ThreadGroup of type " + thread.getThreadGroup().getClass().getName() + " loaded by protected ClassLoader" : "") +
-                (hasContextClassLoader ? " with contextClassLoader = protected ClassLoader or child" : "");
-
             // If threads is running an java.util.concurrent.ThreadPoolExecutor.Worker try shutting down the executor
             if(workerClass != null && workerClass.isInstance(runnable)) {
               try {
@@ -192,12 +208,14 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
                 if(executor != null) {
                   if("org.apache.tomcat.util.threads.ThreadPoolExecutor".equals(executor.getClass().getName())) {
                     // Tomcat pooled thread
-                    preventor.debug(displayString + " is worker of " + executor.getClass().getName());
+                    if(preventor.isDebugEnabled())
+                      preventor.log(leak(preventor, threads, i, LeakEvent.Level.DEBUG, "worker of " + executor.getClass().getName(), false));
                   }
                   else if(preventor.isLoadedInClassLoader(executor) || preventor.isLoadedInClassLoader(executor.getThreadFactory())) {
                     if(stopThreads) {
                       preventor.warn("Shutting down ThreadPoolExecutor of type " + executor.getClass().getName());
                       executor.shutdownNow();
+                      preventor.recordFinding("Executor", executor, "executorsShutDown");
                     }
                     else {
                       preventor.warn("ThreadPoolExecutor of type " + executor.getClass().getName() +
@@ -205,8 +223,9 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
                     }
                   }
                   else {
-                    preventor.info(displayString + " is a ThreadPoolExecutor.Worker of " + executor.getClass().getName() +
-                        " but found no reason to shut down ThreadPoolExecutor.");
+                    if(preventor.isInfoEnabled())
+                      preventor.log(leak(preventor, threads, i, LeakEvent.Level.INFO, "ThreadPoolExecutor.Worker of " + 
+                          executor.getClass().getName() + " but found no reason to shut down ThreadPoolExecutor", false));
                   }
                 }
               }
@@ -217,59 +236,98 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
 
             if(! threadLoadedByClassLoader && ! runnableLoadedByClassLoader && ! threadGroupLoadedByClassLoader) { // Not loaded in protected ClassLoader - just running there
               // This would for example be the case with org.apache.tomcat.util.threads.TaskThread
-              if(waitForThreads) {
-                preventor.warn(displayString + "; waiting " + threadWaitMs + 
-                    " ms. " + preventor.getStackTrace(thread));
-                preventor.waitForThread(thread, threadWaitMs, false /* No interrupt */);
-              }
-              
-              if(thread.isAlive() && preventor.isClassLoaderOrChild(thread.getContextClassLoader())) { // Still running in ClassLoader
-                preventor.warn(displayString + (waitForThreads ? " still" : "") + 
-                    " alive; changing context ClassLoader to leak safe (" + 
-                    preventor.getLeakSafeClassLoader() + "). " + preventor.getStackTrace(thread));
-                thread.setContextClassLoader(preventor.getLeakSafeClassLoader());
-              }
+              if(waitForThreads && preventor.isWarnEnabled())
+                preventor.log(leak(preventor, threads, i, LeakEvent.Level.WARN, "waiting up to " + threadWaitMs + " ms", true));
+              threadsToRelease.put(thread, runnable);
             }
             else if(stopThreads) { // Thread/Runnable/ThreadGroup loaded by protected ClassLoader
-              if(waitForThreads) {
-                preventor.warn("Waiting for " + displayString + " for " + threadWaitMs + " ms. " +
-                    preventor.getStackTrace(thread));
-
-                preventor.waitForThread(thread, threadWaitMs, true /* Interrupt if needed */);
-              }
-
-              // Normally threads should not be stopped (method is deprecated), since it may cause an inconsistent state.
-              // In this case however, the alternative is a classloader leak, which may or may not be considered worse.
-              if(thread.isAlive()) {
-                preventor.warn("Stopping " + displayString + ". " + preventor.getStackTrace(thread));
-                //noinspection deprecation
-                thread.stop();
-              }
-              else {
-                preventor.info(displayString + " no longer alive - no action needed.");
-              }
+              if(waitForThreads && preventor.isWarnEnabled())
+                preventor.log(leak(preventor, threads, i, LeakEvent.Level.WARN, "waiting up to " + threadWaitMs + " ms", true));
+              threadsToStop.put(thread, runnable);
             }
             else {
-              preventor.warn(displayString + " would cause leak. " + preventor.getStackTrace(thread));
+              if(preventor.isWarnEnabled())
+                preventor.log(leak(preventor, threads, i, LeakEvent.Level.WARN, "would cause leak", true));
             }
               
           }
         }
       }
     }
+    
+    waitForAndStopThreads(preventor, threadsToRelease, threadsToStop);
   }
   
-  /** Get {@link Runnable} of given thread, if any */
-  private Runnable getRunnable(ClassLoaderLeakPreventor preventor, Thread thread) {
-    if(oracleTarget == null && ibmRunnable == null) { // Not yet initialized
-      oracleTarget = preventor.findField(Thread.class, "target"); // Sun/Oracle JRE
-      ibmRunnable = preventor.findField(Thread.class, "runnable"); // IBM JRE       
+  /**
+   * Wait for the provided threads to finish, using a single deadline of {@link #threadWaitMs} shared by all of them
+   * rather than waiting {@link #threadWaitMs} for each thread. The threads to be stopped are interrupted up front. 
+   * Once the deadline has passed, the context ClassLoader of the threads to release is changed to the leak safe
+   * ClassLoader, and the threads to stop are stopped, if still alive.
+   * @param threadsToRelease Threads only running in protected ClassLoader, with their {@link Runnable} if any
+   * @param threadsToStop Threads loaded by protected ClassLoader, with their {@link Runnable} if any
+   */
+  protected void waitForAndStopThreads(ClassLoaderLeakPreventor preventor, Map<Thread, Runnable> threadsToRelease,
+                                       Map<Thread, Runnable> threadsToStop) {
+    if(threadsToRelease.isEmpty() && threadsToStop.isEmpty())
+      return;
+    
+    if(threadWaitMs > 0) {
+      for(Thread thread : threadsToStop.keySet()) {
+        try {
+          thread.interrupt(); // Make Thread stop waiting in sleep(), wait() or join()
+        }
+        catch (SecurityException e) {
+          preventor.error(e);
+        }
+      }
+      
+      final List<Thread> allThreads = new ArrayList<Thread>(threadsToStop.keySet());
+      allThreads.addAll(threadsToRelease.keySet());
+      final long start = System.currentTimeMillis();
+      final List<Thread> stillAlive = preventor.waitForThreads(allThreads, threadWaitMs);
+      preventor.info("Waited " + (System.currentTimeMillis() - start) + " ms for " + allThreads.size() + 
+          " thread(s), of which " + stillAlive.size() + " still alive");
     }
 
-    return (oracleTarget != null) ? (Runnable) preventor.getFieldValue(oracleTarget, thread) : // Sun/Oracle JRE  
-        (Runnable) preventor.getFieldValue(ibmRunnable, thread);   // IBM JRE
-  }
+    for(Map.Entry<Thread, Runnable> entry : threadsToRelease.entrySet()) {
+      final Thread thread = entry.getKey();
+      if(thread.isAlive() && preventor.isClassLoaderOrChild(thread.getContextClassLoader())) { // Still running in ClassLoader
+        if(preventor.isWarnEnabled())
+          preventor.log(ThreadLeakEvent.create(LeakEvent.Level.WARN, preventor, thread, entry.getValue(), 
+              (threadWaitMs > 0 ? "still " : "") + "alive; changing context ClassLoader to leak safe (" + preventor.getLeakSafeClassLoader() + ")", true));
+        thread.setContextClassLoader(preventor.getLeakSafeClassLoader());
+        preventor.recordFinding("Thread", thread, "contextClassLoadersChanged");
+      }
+    }
 
+    final List<String> stoppedVoluntarily = new ArrayList<String>();
+    final List<String> forcedToStop = new ArrayList<String>();
+    for(Map.Entry<Thread, Runnable> entry : threadsToStop.entrySet()) {
+      final Thread thread = entry.getKey();
+      // Normally threads should not be stopped (method is deprecated), since it may cause an inconsistent state.
+      // In this case however, the alternative is a classloader leak, which may or may not be considered worse.
+      if(thread.isAlive()) {
+        if(preventor.isWarnEnabled())
+          preventor.log(ThreadLeakEvent.create(LeakEvent.Level.WARN, preventor, thread, entry.getValue(), "stopping", true));
+        //noinspection deprecation
+        thread.stop();
+        preventor.recordFinding("Thread", thread, "threadsStopped");
+        forcedToStop.add(thread.getName());
+      }
+      else {
+        if(preventor.isInfoEnabled())
+          preventor.log(ThreadLeakEvent.create(LeakEvent.Level.INFO, preventor, thread, entry.getValue(), 
+              "no longer alive - no action needed", false));
+        preventor.recordFinding("Thread", thread, "threadsStoppedVoluntarily");
+        stoppedVoluntarily.add(thread.getName());
+      }
+    }
+    
+    if(! threadsToStop.isEmpty()) {
+      preventor.info("Threads stopped voluntarily: " + stoppedVoluntarily + "; threads forced to stop: " + forcedToStop);
+    }
+  }
+  
   protected void stopTimerThread(ClassLoaderLeakPreventor preventor, Thread thread) {
     // Seems it is not possible to access Timer of TimerThread, so we need to mimic Timer.cancel()
     /** 
@@ -364,5 +422,104 @@ public class StopThreadsCleanUp implements ClassLoaderPreMortemCleanUp {
       }
     }
   }
-  
-}
\ No newline at end of file
+
+  /** 
+   * Create event about the thread with the provided index in the {@link ThreadSnapshot}. To be invoked only once the
+   * level is known to be enabled.
+   */
+  private static ThreadLeakEvent leak(ClassLoaderLeakPreventor preventor, ThreadSnapshot threads, int i,
+                                      LeakEvent.Level level, String action, boolean includeStackTrace) {
+    return new ThreadLeakEvent(level, preventor, threads.getThread(i), threads.getRunnable(i),
+        threads.isThreadLoadedByClassLoader(i), threads.isRunnableLoadedByClassLoader(i),
+        threads.isThreadGroupLoadedByClassLoader(i), threads.hasContextClassLoader(i), action, includeStackTrace);
+  }
+
+  /** 
+   * Potential leak caused by {@link Thread} running in, or loaded by, the protected ClassLoader, with what is being
+   * done about it. Events are only created when their level is enabled.
+   */
+  public static class ThreadLeakEvent extends LeakEvent {
+    
+    private final ClassLoaderLeakPreventor preventor;
+
+    private final Runnable runnable;
+
+    private final boolean threadLoadedByClassLoader;
+
+    private final boolean runnableLoadedByClassLoader;
+
+    private final boolean threadGroupLoadedByClassLoader;
+
+    private final boolean hasContextClassLoader;
+
+    /** What is being done about the thread, or null */
+    private final String action;
+
+    /** Should the stack trace of the thread be included in the message? */
+    private final boolean includeStackTrace;
+
+    public ThreadLeakEvent(Level level, ClassLoaderLeakPreventor preventor, Thread thread, Runnable runnable,
+                           boolean threadLoadedByClassLoader, boolean runnableLoadedByClassLoader,
+                           boolean threadGroupLoadedByClassLoader, boolean hasContextClassLoader,
+                           String action, boolean includeStackTrace) {
+      super(level, thread);
+      this.preventor = preventor;
+      this.runnable = runnable;
+      this.threadLoadedByClassLoader = threadLoadedByClassLoader;
+      this.runnableLoadedByClassLoader = runnableLoadedByClassLoader;
+      this.threadGroupLoadedByClassLoader = threadGroupLoadedByClassLoader;
+      this.hasContextClassLoader = hasContextClassLoader;
+      this.action = action;
+      this.includeStackTrace = includeStackTrace;
+    }
+
+    /** Create event about the thread, finding out how it relates to the protected ClassLoader */
+    public static ThreadLeakEvent create(Level level, ClassLoaderLeakPreventor preventor, Thread thread, 
+                                         Runnable runnable, String action, boolean includeStackTrace) {
+      return new ThreadLeakEvent(level, preventor, thread, runnable, preventor.isLoadedInClassLoader(thread),
+          preventor.isLoadedInClassLoader(runnable), preventor.isLoadedInClassLoader(thread.getThreadGroup()),
+          preventor.isClassLoaderOrChild(thread.getContextClassLoader()), action, includeStackTrace);
+    }
+
+    @Override
+    public String getType() {
+      return "Thread";
+    }
+
+    public Runnable getRunnable() {
+      return runnable;
+    }
+
+    public boolean isThreadLoadedByClassLoader() {
+      return threadLoadedByClassLoader;
+    }
+
+    public boolean isRunnableLoadedByClassLoader() {
+      return runnableLoadedByClassLoader;
+    }
+
+    public boolean isThreadGroupLoadedByClassLoader() {
+      return threadGroupLoadedByClassLoader;
+    }
+
+    public boolean hasContextClassLoader() {
+      return hasContextClassLoader;
+    }
+
+    public String getAction() {
+      return action;
+    }
+
+    @Override
+    protected String createMessage() {
+      final Thread thread = getThread();
+      return "Thread '" + thread + "'" + 
+          (threadLoadedByClassLoader ? " of type " + thread.getClass().getName() + " loaded by protected ClassLoader" : "") +
+          (runnableLoadedByClassLoader ? " with Runnable of type " + runnable.getClass().getName() + " loaded by protected ClassLoader" : "") +
+          (threadGroupLoadedByClassLoader ? " with ThreadGroup of type " + thread.getThreadGroup().getClass().getName() + " loaded by protected ClassLoader" : "") +
+          (hasContextClassLoader ? " with contextClassLoader = protected ClassLoader or child" : "") +
+          (action != null ? "; " + action : "") +
+          (includeStackTrace ? ". " + preventor.getStackTrace(thread) : "");
+    }
+  }
+}
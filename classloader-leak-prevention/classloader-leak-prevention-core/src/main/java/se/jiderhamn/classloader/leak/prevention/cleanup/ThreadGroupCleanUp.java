@@ -3,18 +3,19 @@ package se.jiderhamn.classloader.leak.prevention.cleanup;
 import java.lang.reflect.Method;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.DeferrableCleanUp;
 import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
 
 /**
  * Destroy any {@link ThreadGroup}s that are loaded by the protected classloader
  * @author Mattias Jiderhamn
  */
-public class ThreadGroupCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAfter {
+public class ThreadGroupCleanUp implements DeferrableCleanUp, MustBeAfter {
 
+  /** Threads need to be stopped by {@link StopThreadsCleanUp} before their groups can be destroyed */
   @Override
   public Class[] mustBeBeforeMe() {
-    return new Class[] {JavaServerFaces2746CleanUp.class};
+    return new Class[] {JavaServerFaces2746CleanUp.class, StopThreadsCleanUp.class};
   }
 
   @Override
@@ -1,17 +1,29 @@
 package se.jiderhamn.classloader.leak.prevention.cleanup;
 
 import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.LeakEvent;
 import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.preinit.ThreadLocalSamplerInitiator;
 
 /**
  * Clear {@link ThreadLocal}s for which {@link ThreadLocal#remove()} has not been called, in case either the 
  * {@link ThreadLocal} is a custom one (subclassed in the protected ClassLoader), or the value is loaded by (or is)
  * the protected ClassLoader.
  * This must be done after threads have been stopped, or new ThreadLocals may be added by those threads.
+ * If a {@link ThreadLocalSamplerInitiator} is provided, only the entries of the {@link ThreadLocal}s indexed by it while
+ * the application was running, plus all entries of threads not sampled, are inspected, rather than all entries of all
+ * threads.
  * @author Mattias Jiderhamn
  */
 @SuppressWarnings("WeakerAccess")
@@ -28,6 +40,26 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
 
   protected Field java_lang_ThreadLocal$ThreadLocalMap$Entry_value;
 
+  /** Sampler indexing potentially leaking entries while the application is running, or null to inspect all */
+  protected ThreadLocalSamplerInitiator sampler;
+
+  /** 
+   * Does a subclass override the deprecated 
+   * {@link #processLeak(ClassLoaderLeakPreventor, Thread, Reference, ThreadLocal, Object, String)}? 
+   */
+  private final boolean legacyProcessLeak = overridesLegacyProcessLeak(getClass());
+
+  public ThreadLocalCleanUp() {
+  }
+
+  public ThreadLocalCleanUp(ThreadLocalSamplerInitiator sampler) {
+    this.sampler = sampler;
+  }
+
+  public void setSampler(ThreadLocalSamplerInitiator sampler) {
+    this.sampler = sampler;
+  }
+
   /** Needs to be done after {@link StopThreadsCleanUp}, since new {@link ThreadLocal}s may be added when threads are 
    * shutting down. */
   @Override
@@ -49,11 +81,56 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
       preventor.error("java.lang.ThreadLocal$ThreadLocalMap.table not found; something is seriously wrong!");
 
 
-    for(Thread thread : preventor.getAllThreads()) {
-      forEachThreadLocalInThread(preventor, thread);
+    final Map<Thread, List<Reference<ThreadLocal<?>>>> index = (sampler != null) ? sampler.stopSampling(preventor) : null;
+    if(index == null) { // Not sampling; inspect all entries of all threads
+      for(Thread thread : preventor.getThreadSnapshot().getThreads()) {
+        forEachThreadLocalInThread(preventor, thread);
+      }
+    }
+    else {
+      for(Thread thread : preventor.getThreadSnapshot().getThreads()) {
+        final List<Reference<ThreadLocal<?>>> threadLocals = index.get(thread);
+        if(threadLocals == null) // Not sampled
+          forEachThreadLocalInThread(preventor, thread);
+        else if(! threadLocals.isEmpty())
+          forEachSampledThreadLocalInThread(preventor, thread, threadLocals);
+      }
     }
   }
 
+  /**
+   * Find the {@link ThreadLocal}s with entries in the provided thread that are potential leaks, without processing
+   * them. The {@link ThreadLocal}s are weakly referenced, so that neither they nor the values of the entries are kept
+   * from being garbage collected. A reference to null denotes a stale entry. Used by 
+   * {@link ThreadLocalSamplerInitiator}.
+   */
+  public List<Reference<ThreadLocal<?>>> findLeakingThreadLocals(ClassLoaderLeakPreventor preventor, Thread thread) {
+    initFields(preventor);
+    
+    List<Reference<ThreadLocal<?>>> output = null;
+    try {
+      for(Field threadLocalsField : new Field[] {java_lang_Thread_threadLocals, java_lang_Thread_inheritableThreadLocals}) {
+        final Object threadLocalMap = (threadLocalsField != null) ? threadLocalsField.get(thread) : null;
+        if(threadLocalMap != null && java_lang_ThreadLocal$ThreadLocalMap_table != null) {
+          for(Object entry : (Object[]) java_lang_ThreadLocal$ThreadLocalMap_table.get(threadLocalMap)) {
+            if(entry != null) {
+              final ThreadLocal<?> threadLocal = (ThreadLocal<?>) ((Reference<?>) entry).get();
+              if(isLeak(preventor, threadLocal, getValue(preventor, entry))) {
+                if(output == null)
+                  output = new ArrayList<Reference<ThreadLocal<?>>>();
+                output.add(new WeakReference<ThreadLocal<?>>(threadLocal));
+              }
+            }
+          }
+        }
+      }
+    }
+    catch (/*IllegalAccess*/Exception ex) {
+      preventor.error(ex);
+    }
+    return (output != null) ? output : Collections.<Reference<ThreadLocal<?>>>emptyList();
+  }
+
   /** Make sure fields are initialized */
   private void initFields(ClassLoaderLeakPreventor preventor) {
     if(java_lang_Thread_threadLocals == null) { // First invokation of this preventor
@@ -78,114 +155,162 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
     }
   }
 
+  /**
+   * Process the entries of the provided thread that belong to the {@link ThreadLocal}s found by 
+   * {@link #findLeakingThreadLocals(ClassLoaderLeakPreventor, Thread)}. If any of those has since been garbage 
+   * collected, its stale entry cannot be told apart from others, so all entries of the thread are processed.
+   */
+  protected void forEachSampledThreadLocalInThread(ClassLoaderLeakPreventor preventor, Thread thread, 
+                                                   List<Reference<ThreadLocal<?>>> threadLocals) {
+    final Set<ThreadLocal<?>> sampled = Collections.newSetFromMap(new IdentityHashMap<ThreadLocal<?>, Boolean>());
+    for(Reference<ThreadLocal<?>> reference : threadLocals) {
+      final ThreadLocal<?> threadLocal = reference.get();
+      if(threadLocal == null) { // Stale entry
+        forEachThreadLocalInThread(preventor, thread);
+        return;
+      }
+      sampled.add(threadLocal);
+    }
+    
+    try {
+      for(Field threadLocalsField : new Field[] {java_lang_Thread_threadLocals, java_lang_Thread_inheritableThreadLocals}) {
+        final Object threadLocalMap = (threadLocalsField != null) ? threadLocalsField.get(thread) : null;
+        if(threadLocalMap != null && java_lang_ThreadLocal$ThreadLocalMap_table != null) {
+          for(Object entry : (Object[]) java_lang_ThreadLocal$ThreadLocalMap_table.get(threadLocalMap)) {
+            if(entry != null && sampled.contains(((Reference<?>) entry).get()))
+              processEntry(preventor, thread, entry);
+          }
+        }
+      }
+    }
+    catch (/*IllegalAccess*/Exception ex) {
+      preventor.error(ex);
+    }
+  }
+
   protected void processThreadLocalMap(ClassLoaderLeakPreventor preventor,
                                        Thread thread, Object threadLocalMap) throws IllegalAccessException {
     if(threadLocalMap != null && java_lang_ThreadLocal$ThreadLocalMap_table != null) {
-      Field resin_suspendState = null;
-      Field resin_isSuspended = null;
       final Object[] threadLocalMapTable = (Object[]) java_lang_ThreadLocal$ThreadLocalMap_table.get(threadLocalMap); // java.lang.ThreadLocal.ThreadLocalMap.Entry[]
       for(Object entry : threadLocalMapTable) {
         if(entry != null) {
-          // Key is kept in WeakReference
-          Reference<?> reference = (Reference<?>) entry;
-          final ThreadLocal<?> threadLocal = (ThreadLocal<?>) reference.get();
+          processEntry(preventor, thread, entry);
+        }
+      }
+    }
+  }
 
-          if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) {
-            java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findField(entry.getClass(), "value");
-          }
+  /** Process a single entry of a ThreadLocalMap, i.e. java.lang.ThreadLocal.ThreadLocalMap.Entry */
+  protected void processEntry(ClassLoaderLeakPreventor preventor, Thread thread, Object entry) throws IllegalAccessException {
+    // Key is kept in WeakReference
+    Reference<?> reference = (Reference<?>) entry;
+    final ThreadLocal<?> threadLocal = (ThreadLocal<?>) reference.get();
 
-          final Object value = java_lang_ThreadLocal$ThreadLocalMap$Entry_value.get(entry);
+    final Object value = getValue(preventor, entry);
 
-          // Workaround for http://bugs.caucho.com/view.php?id=5647
-          if(value != null && CAUCHO_TRANSACTION_IMPL.equals(value.getClass().getName())) { // Resin transaction
-            if(resin_suspendState == null && resin_isSuspended == null) { // First thread with Resin transaction, look up fields
-              resin_suspendState = preventor.findField(value.getClass(), "_suspendState");
-              resin_isSuspended = preventor.findField(value.getClass(), "_isSuspended");
-            }
+    // Workaround for http://bugs.caucho.com/view.php?id=5647
+    if(value != null && CAUCHO_TRANSACTION_IMPL.equals(value.getClass().getName())) { // Resin transaction
+      final Field resin_suspendState = preventor.findField(value.getClass(), "_suspendState");
+      final Field resin_isSuspended = preventor.findField(value.getClass(), "_isSuspended");
 
-            if(resin_suspendState != null && resin_isSuspended != null) { // Both fields exist (as per version 4.0.37)
-              if(preventor.getFieldValue(resin_suspendState, value) != null) { // There is a suspended state that may cause leaks
-                // In theory a new transaction can be started and suspended between where we read and write the state,
-                // and flag, therefore we suspend the thread meanwhile.
-                try {
-                  //noinspection deprecation
-                  thread.suspend(); // Suspend the thread
-                  if(preventor.getFieldValue(resin_suspendState, value) != null) { // Re-read suspend state when thread is suspended
-                    final Object isSuspended = preventor.getFieldValue(resin_isSuspended, value);
-                    if(!(isSuspended instanceof Boolean)) {
-                      preventor.error(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " but _isSuspended is not boolean: " + isSuspended);
-                    }
-                    else if((Boolean) isSuspended) { // Is currently suspended - suspend state is correct
-                      preventor.debug(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " that is suspended");
-                    }
-                    else { // Is not suspended, and thus should not have suspend state
-                      resin_suspendState.set(value, null);
-                      preventor.error(thread.toString() + " had " + CAUCHO_TRANSACTION_IMPL + " with unused _suspendState that was removed");
-                    }
-                  }
-                }
-                catch (Throwable t) { // Such as SecurityException
-                  preventor.error(t);
-                }
-                finally {
-                  //noinspection deprecation
-                  thread.resume();
-                }
+      if(resin_suspendState != null && resin_isSuspended != null) { // Both fields exist (as per version 4.0.37)
+        if(preventor.getFieldValue(resin_suspendState, value) != null) { // There is a suspended state that may cause leaks
+          // In theory a new transaction can be started and suspended between where we read and write the state,
+          // and flag, therefore we suspend the thread meanwhile.
+          try {
+            //noinspection deprecation
+            thread.suspend(); // Suspend the thread
+            if(preventor.getFieldValue(resin_suspendState, value) != null) { // Re-read suspend state when thread is suspended
+              final Object isSuspended = preventor.getFieldValue(resin_isSuspended, value);
+              if(!(isSuspended instanceof Boolean)) {
+                preventor.error(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " but _isSuspended is not boolean: " + isSuspended);
               }
-            }
-          }
-
-          final boolean customThreadLocal = preventor.isLoadedInClassLoader(threadLocal); // This is not an actual problem
-          final boolean valueLoadedInWebApp = preventor.isLoadedInClassLoader(value);
-          if(customThreadLocal || valueLoadedInWebApp ||
-              (value instanceof ClassLoader && preventor.isClassLoaderOrChild((ClassLoader) value))) { // The value is classloader (child) itself
-            // This ThreadLocal is either itself loaded by the web app classloader, or it's value is
-            // Let's do something about it
-
-            StringBuilder message = new StringBuilder();
-            if(threadLocal != null) {
-              if(customThreadLocal) {
-                message.append("Custom ");
+              else if((Boolean) isSuspended) { // Is currently suspended - suspend state is correct
+                preventor.debug(thread.toString() + " has " + CAUCHO_TRANSACTION_IMPL + " that is suspended");
+              }
+              else { // Is not suspended, and thus should not have suspend state
+                resin_suspendState.set(value, null);
+                preventor.error(thread.toString() + " had " + CAUCHO_TRANSACTION_IMPL + " with unused _suspendState that was removed");
               }
-              message.append("ThreadLocal of type ").append(threadLocal.getClass().getName()).append(": ").append(threadLocal);
-            }
-            else {
-              message.append("Unknown ThreadLocal");
-            }
-            message.append(" with value ").append(value);
-            if(value != null) {
-              message.append(" of type ").append(value.getClass().getName());
-              if(valueLoadedInWebApp)
-                message.append(" that is loaded by web app");
             }
-
-
-            // Process the detected potential leak
-            processLeak(preventor, thread, reference, threadLocal, value, message.toString());
+          }
+          catch (Throwable t) { // Such as SecurityException
+            preventor.error(t);
+          }
+          finally {
+            //noinspection deprecation
+            thread.resume();
           }
         }
       }
     }
+
+    if(isLeak(preventor, threadLocal, value)) {
+      // This ThreadLocal is either itself loaded by the web app classloader, or it's value is
+      // Let's do something about it
+      processLeak(preventor, thread, reference, threadLocal, value);
+    }
+  }
+
+  /**
+   * Is the entry a potential leak, since either the {@link ThreadLocal} is loaded by the protected ClassLoader, or the
+   * value is loaded by (or is) the protected ClassLoader? 
+   */
+  protected boolean isLeak(ClassLoaderLeakPreventor preventor, ThreadLocal<?> threadLocal, Object value) {
+    return preventor.isLoadedInClassLoader(threadLocal) || // Custom ThreadLocal; this is not an actual problem
+        preventor.isLoadedInClassLoader(value) ||
+        (value instanceof ClassLoader && preventor.isClassLoaderOrChild((ClassLoader) value)); // The value is classloader (child) itself
+  }
+
+  /** Get value of java.lang.ThreadLocal.ThreadLocalMap.Entry */
+  private Object getValue(ClassLoaderLeakPreventor preventor, Object entry) throws IllegalAccessException {
+    if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) {
+      java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findField(entry.getClass(), "value");
+    }
+    return java_lang_ThreadLocal$ThreadLocalMap$Entry_value.get(entry);
   }
 
   /**
    * After having detected potential ThreadLocal leak, this method is called.
-   * Default implementation tries to clear the entry to avoid a leak.
+   * Default implementation tries to clear the entry to avoid a leak, and logs a {@link ThreadLocalLeakEvent}.
    */
   protected void processLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry,
-                             ThreadLocal<?> threadLocal, Object value, String message) {
-    if(threadLocal != null && thread == Thread.currentThread()) { // If running for current thread and we have the ThreadLocal ...
-      // ... remove properly
-      preventor.info(message + " will be remove()d from " + thread);
-      threadLocal.remove();
+                             ThreadLocal<?> threadLocal, Object value) {
+    if(legacyProcessLeak) { // Subclass expects a message
+      processLeak(preventor, thread, entry, threadLocal, value, describeLeak(preventor, threadLocal, value));
     }
-    else { // We cannot remove entry properly, so just make it stale
-      preventor.info(message + " will be made stale for later expunging from " + thread);
+    else
+      clearLeak(preventor, thread, entry, threadLocal, value);
+  }
+
+  /**
+   * After having detected potential ThreadLocal leak, this method is called with a description of the leak, if 
+   * overridden. Default implementation tries to clear the entry to avoid a leak.
+   * @deprecated Override {@link #processLeak(ClassLoaderLeakPreventor, Thread, Reference, ThreadLocal, Object)} 
+   *   instead, which does not require the message to be built.
+   */
+  @Deprecated
+  protected void processLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry,
+                             ThreadLocal<?> threadLocal, Object value, String message) {
+    clearLeak(preventor, thread, entry, threadLocal, value);
+  }
+
+  /** Clear the leaking entry, and log a {@link ThreadLocalLeakEvent} */
+  private void clearLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry,
+                         ThreadLocal<?> threadLocal, Object value) {
+    // If running for current thread and we have the ThreadLocal, remove properly. Otherwise just make it stale.
+    final boolean remove = threadLocal != null && thread == Thread.currentThread();
+    if(preventor.isInfoEnabled()) {
+      preventor.log(new ThreadLocalLeakEvent(thread, threadLocal, value, preventor.isLoadedInClassLoader(threadLocal),
+          preventor.isLoadedInClassLoader(value), remove));
     }
+    if(remove)
+      threadLocal.remove();
 
     // It seems like remove() doesn't really do the job, so play it safe and remove references from entry either way
     // (Example problem org.infinispan.context.SingleKeyNonTxInvocationContext) 
     entry.clear(); // Clear the key
+    preventor.recordFinding("ThreadLocal", (value != null) ? value : threadLocal, "threadLocalsCleared");
 
     if(java_lang_ThreadLocal$ThreadLocalMap$Entry_value == null) {
       java_lang_ThreadLocal$ThreadLocalMap$Entry_value = preventor.findField(entry.getClass(), "value");
@@ -198,4 +323,105 @@ public class ThreadLocalCleanUp implements ClassLoaderPreMortemCleanUp, MustBeAf
       preventor.error(iaex);
     }
   }
+
+  /** Describe the leaking {@link ThreadLocal} entry, as passed to the deprecated processLeak() */
+  protected static String describeLeak(ClassLoaderLeakPreventor preventor, ThreadLocal<?> threadLocal, Object value) {
+    return ThreadLocalLeakEvent.describe(new StringBuilder(), threadLocal, value, 
+        preventor.isLoadedInClassLoader(threadLocal), preventor.isLoadedInClassLoader(value)).toString();
+  }
+
+  /** Test if the class, or any superclass below this one, overrides the deprecated processLeak() taking a message */
+  private static boolean overridesLegacyProcessLeak(Class<?> clazz) {
+    for(; clazz != ThreadLocalCleanUp.class; clazz = clazz.getSuperclass()) {
+      try {
+        clazz.getDeclaredMethod("processLeak", ClassLoaderLeakPreventor.class, Thread.class, Reference.class, 
+            ThreadLocal.class, Object.class, String.class);
+        return true;
+      }
+      catch (NoSuchMethodException e) {
+        // Check superclass
+      }
+    }
+    return false;
+  }
+
+  /** Potential leak caused by {@link ThreadLocal} */
+  public static class ThreadLocalLeakEvent extends LeakEvent {
+
+    private final ThreadLocal<?> threadLocal;
+
+    private final Object value;
+
+    /** Is the {@link ThreadLocal} subclassed in the protected ClassLoader? This is not an actual problem. */
+    private final boolean customThreadLocal;
+
+    private final boolean valueLoadedInWebApp;
+
+    /** Was the entry remove()d, rather than made stale for later expunging? */
+    private final boolean removed;
+
+    public ThreadLocalLeakEvent(Thread thread, ThreadLocal<?> threadLocal, Object value, boolean customThreadLocal,
+                                boolean valueLoadedInWebApp, boolean removed) {
+      super(Level.INFO, thread);
+      this.threadLocal = threadLocal;
+      this.value = value;
+      this.customThreadLocal = customThreadLocal;
+      this.valueLoadedInWebApp = valueLoadedInWebApp;
+      this.removed = removed;
+    }
+
+    @Override
+    public String getType() {
+      return "ThreadLocal";
+    }
+
+    /** Get the {@link ThreadLocal}, or null if already garbage collected */
+    public ThreadLocal<?> getThreadLocal() {
+      return threadLocal;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    public boolean isCustomThreadLocal() {
+      return customThreadLocal;
+    }
+
+    public boolean isValueLoadedInWebApp() {
+      return valueLoadedInWebApp;
+    }
+
+    public boolean isRemoved() {
+      return removed;
+    }
+
+    @Override
+    protected String createMessage() {
+      return describe(new StringBuilder(), threadLocal, value, customThreadLocal, valueLoadedInWebApp)
+          .append(removed ? " will be remove()d from " : " will be made stale for later expunging from ")
+          .append(getThread()).toString();
+    }
+
+    /** Append a description of the {@link ThreadLocal} entry, without what is done about it */
+    static StringBuilder describe(StringBuilder message, ThreadLocal<?> threadLocal, Object value,
+                                  boolean customThreadLocal, boolean valueLoadedInWebApp) {
+      if(threadLocal != null) {
+        if(customThreadLocal) {
+          message.append("Custom ");
+        }
+        message.append("ThreadLocal of type ").append(threadLocal.getClass().getName()).append(": ").append(threadLocal);
+      }
+      else {
+        message.append("Unknown ThreadLocal");
+      }
+      message.append(" with value ").append(value);
+      if(value != null) {
+        message.append(" of type ").append(value.getClass().getName());
+        if(valueLoadedInWebApp)
+          message.append(" that is loaded by web app");
+      }
+      return message;
+    }
+  }
 }
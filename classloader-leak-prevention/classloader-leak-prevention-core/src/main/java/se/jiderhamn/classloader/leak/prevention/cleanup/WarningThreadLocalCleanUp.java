@@ -16,8 +16,10 @@ public class WarningThreadLocalCleanUp extends ThreadLocalCleanUp {
   /**
    * Log not {@link ThreadLocal#remove()}ed leak as a warning. 
    */
+  @Override
   protected void processLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry, 
-                             ThreadLocal<?> threadLocal, Object value, String message) {
-    preventor.warn(message);
+                             ThreadLocal<?> threadLocal, Object value) {
+    if(preventor.isWarnEnabled())
+      preventor.warn(describeLeak(preventor, threadLocal, value) + " in " + thread);
   } 
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * The first call to java.awt.Toolkit.getDefaultToolkit() will spawn a new thread with the
@@ -10,7 +10,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class AwtToolkitInitiator implements PreClassLoaderInitiator {
+public class AwtToolkitInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.LazyPreClassLoaderInitiator;
 
 /**
  * {@link javax.xml.bind.DatatypeConverterImpl} in the JAXB Reference Implementation shipped with JDK 1.6+ will
@@ -17,7 +17,12 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class DatatypeConverterImplInitiator implements PreClassLoaderInitiator {
+public class DatatypeConverterImplInitiator implements LazyPreClassLoaderInitiator {
+  @Override
+  public boolean isSubsystemPresent(ClassLoaderLeakPreventor preventor) {
+    return preventor.isResourcePresent("javax/xml/bind/DatatypeConverterImpl.class");
+  }
+
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
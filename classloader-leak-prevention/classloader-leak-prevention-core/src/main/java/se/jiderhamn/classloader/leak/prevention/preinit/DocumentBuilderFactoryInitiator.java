@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * The classloader of the first thread to call DocumentBuilderFactory.newInstance().newDocumentBuilder()
@@ -10,7 +10,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class DocumentBuilderFactoryInitiator implements PreClassLoaderInitiator {
+public class DocumentBuilderFactoryInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
@@ -3,7 +3,7 @@ package se.jiderhamn.classloader.leak.prevention.preinit;
 import java.net.URL;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * The caching mechanism of JarURLConnection can prevent JAR files to be reloaded. See
@@ -14,7 +14,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class JarUrlConnectionInitiator implements PreClassLoaderInitiator {
+public class JarUrlConnectionInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     // This probably does not affect classloaders, but prevents some problems with .jar files
@@ -1,6 +1,8 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 /**
@@ -11,7 +13,15 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class Java2dDisposerInitiator implements PreClassLoaderInitiator {
+public class Java2dDisposerInitiator implements OncePerJvmPreClassLoaderInitiator,
+    MustBeAfter<PreClassLoaderInitiator> {
+
+  /** Do not initialize AWT concurrently with {@link AwtToolkitInitiator}, if initiators are run in parallel */
+  @Override
+  public Class<? extends PreClassLoaderInitiator>[] mustBeBeforeMe() {
+    return new Class[] {AwtToolkitInitiator.class};
+  }
+
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
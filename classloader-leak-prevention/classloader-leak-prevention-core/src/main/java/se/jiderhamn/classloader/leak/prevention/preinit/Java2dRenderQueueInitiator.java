@@ -1,6 +1,8 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 import java.lang.reflect.Method;
@@ -8,7 +10,15 @@ import java.lang.reflect.Method;
 /**
  * Using the class sun.java2d.opengl.OGLRenderQueue will spawn a new QueueFlusher thread with the same contextClassLoader.
  */
-public class Java2dRenderQueueInitiator implements PreClassLoaderInitiator {
+public class Java2dRenderQueueInitiator implements OncePerJvmPreClassLoaderInitiator,
+    MustBeAfter<PreClassLoaderInitiator> {
+
+    /** Do not initialize AWT concurrently with {@link AwtToolkitInitiator}, if initiators are run in parallel */
+    @Override
+    public Class<? extends PreClassLoaderInitiator>[] mustBeBeforeMe() {
+        return new Class[] {AwtToolkitInitiator.class};
+    }
+
     @Override
     public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
         try {
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * The class javax.security.auth.login.Configuration will keep a strong static reference to the
@@ -11,7 +11,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class JavaxSecurityLoginConfigurationInitiator implements PreClassLoaderInitiator {
+public class JavaxSecurityLoginConfigurationInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 import se.jiderhamn.classloader.leak.prevention.cleanup.DriverManagerCleanUp;
 
 /**
@@ -17,7 +17,7 @@ import se.jiderhamn.classloader.leak.prevention.cleanup.DriverManagerCleanUp;
  * TODO {@link DriverManagerCleanUp}
  * @author Mattias Jiderhamn
  */
-public class JdbcDriversInitiator implements PreClassLoaderInitiator {
+public class JdbcDriversInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     java.sql.DriverManager.getDrivers(); // Load initial drivers using leak safe classloader
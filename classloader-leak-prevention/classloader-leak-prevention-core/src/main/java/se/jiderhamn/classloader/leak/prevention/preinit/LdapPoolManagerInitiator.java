@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * The contextClassLoader of the thread loading the com.sun.jndi.ldap.LdapPoolManager class may be kept
@@ -12,7 +12,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class LdapPoolManagerInitiator implements PreClassLoaderInitiator {
+public class LdapPoolManagerInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
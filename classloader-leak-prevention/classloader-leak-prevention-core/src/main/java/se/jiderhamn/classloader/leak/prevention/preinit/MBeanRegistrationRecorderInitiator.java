@@ -0,0 +1,94 @@
+package se.jiderhamn.classloader.leak.prevention.preinit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp;
+
+/**
+ * Record the names of the MBeans registered in the platform MBeanServer while the protected classloader is alive, by
+ * listening to {@link MBeanServerNotification}s from the {@link MBeanServerDelegate}. This allows
+ * {@link MBeanCleanUp} to inspect only the MBeans registered during the lifetime of the application, rather than
+ * all MBeans in the server. Note that MBeans registered before this initiator is invoked will not be recorded, and
+ * that the listener is not removed until {@link #stopRecording(ClassLoaderLeakPreventor)} is called.
+ */
+public class MBeanRegistrationRecorderInitiator implements PreClassLoaderInitiator {
+
+  /** Active recorders per preventor. Recorders must not reference the preventor. */
+  private final Map<ClassLoaderLeakPreventor, Recorder> recorders =
+      Collections.synchronizedMap(new WeakHashMap<ClassLoaderLeakPreventor, Recorder>());
+
+  @Override
+  public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    final Recorder recorder = new Recorder();
+    try {
+      ManagementFactory.getPlatformMBeanServer().addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, recorder,
+          null, null);
+      final Recorder previous = recorders.put(preventor, recorder);
+      if(previous != null) // Initiator invoked twice for the same preventor
+        removeListener(preventor, previous);
+    }
+    catch (Exception e) { // InstanceNotFoundException
+      preventor.error(e);
+    }
+  }
+
+  /**
+   * Stop recording for the provided preventor.
+   * @return The names of the MBeans registered - and not unregistered - since recording started, or {@code null} if
+   * no registrations were recorded for the preventor.
+   */
+  public Set<ObjectName> stopRecording(ClassLoaderLeakPreventor preventor) {
+    final Recorder recorder = recorders.remove(preventor);
+    if(recorder == null)
+      return null;
+
+    removeListener(preventor, recorder);
+    return recorder.getObjectNames();
+  }
+
+  private void removeListener(ClassLoaderLeakPreventor preventor, Recorder recorder) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, recorder);
+    }
+    catch (Exception e) { // InstanceNotFoundException, ListenerNotFoundException
+      preventor.error(e);
+    }
+  }
+
+  /** Listener that keeps track of currently registered MBeans */
+  private static class Recorder implements NotificationListener {
+
+    private final Set<ObjectName> objectNames = new LinkedHashSet<ObjectName>();
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if(notification instanceof MBeanServerNotification) {
+        final ObjectName objectName = ((MBeanServerNotification) notification).getMBeanName();
+        synchronized (objectNames) {
+          if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType()))
+            objectNames.add(objectName);
+          else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType()))
+            objectNames.remove(objectName);
+        }
+      }
+    }
+
+    Set<ObjectName> getObjectNames() {
+      synchronized (objectNames) {
+        return new LinkedHashSet<ObjectName>(objectNames);
+      }
+    }
+  }
+}
@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.LazyPreClassLoaderInitiator;
 
 /**
  * See https://github.com/mjiderhamn/classloader-leak-prevention/issues/8
@@ -9,7 +9,12 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * and http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class OracleJdbcThreadInitiator implements PreClassLoaderInitiator {
+public class OracleJdbcThreadInitiator implements LazyPreClassLoaderInitiator {
+  @Override
+  public boolean isSubsystemPresent(ClassLoaderLeakPreventor preventor) {
+    return preventor.isResourcePresent("oracle/jdbc/driver/OracleTimeoutThreadPerVM.class");
+  }
+
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     // Cause oracle.jdbc.driver.OracleTimeoutPollingThread to be started with contextClassLoader = system classloader  
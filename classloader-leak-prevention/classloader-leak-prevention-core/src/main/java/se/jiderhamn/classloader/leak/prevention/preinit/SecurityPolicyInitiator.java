@@ -3,7 +3,7 @@ package se.jiderhamn.classloader.leak.prevention.preinit;
 import java.lang.reflect.InvocationTargetException;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * javax.security.auth.Policy.getPolicy() will keep a strong static reference to
@@ -13,7 +13,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * 
  * @author Mattias Jiderhamn
  */
-public class SecurityPolicyInitiator implements PreClassLoaderInitiator {
+public class SecurityPolicyInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
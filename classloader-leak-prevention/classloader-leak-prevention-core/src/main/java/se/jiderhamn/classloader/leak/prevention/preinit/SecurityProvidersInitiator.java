@@ -1,7 +1,7 @@
 package se.jiderhamn.classloader.leak.prevention.preinit;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
-import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 
 /**
  * Custom java.security.Provider loaded in your web application and registered with
@@ -11,7 +11,7 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class SecurityProvidersInitiator implements PreClassLoaderInitiator {
+public class SecurityProvidersInitiator implements OncePerJvmPreClassLoaderInitiator {
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     java.security.Security.getProviders();
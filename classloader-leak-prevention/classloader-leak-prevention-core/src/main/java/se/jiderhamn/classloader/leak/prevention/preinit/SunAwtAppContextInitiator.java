@@ -3,6 +3,8 @@ package se.jiderhamn.classloader.leak.prevention.preinit;
 import javax.swing.*;
 
 import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.MustBeAfter;
+import se.jiderhamn.classloader.leak.prevention.OncePerJvmPreClassLoaderInitiator;
 import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
 
 /**
@@ -13,7 +15,15 @@ import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
  * See http://java.jiderhamn.se/2012/02/26/classloader-leaks-v-common-mistakes-and-known-offenders/
  * @author Mattias Jiderhamn
  */
-public class SunAwtAppContextInitiator implements PreClassLoaderInitiator {
+public class SunAwtAppContextInitiator implements OncePerJvmPreClassLoaderInitiator,
+    MustBeAfter<PreClassLoaderInitiator> {
+
+  /** Do not initialize AWT concurrently with {@link AwtToolkitInitiator}, if initiators are run in parallel */
+  @Override
+  public Class<? extends PreClassLoaderInitiator>[] mustBeBeforeMe() {
+    return new Class[] {AwtToolkitInitiator.class};
+  }
+
   @Override
   public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
     try {
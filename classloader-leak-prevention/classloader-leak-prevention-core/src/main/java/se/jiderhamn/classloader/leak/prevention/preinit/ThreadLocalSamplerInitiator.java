@@ -0,0 +1,129 @@
+package se.jiderhamn.classloader.leak.prevention.preinit;
+
+import java.lang.ref.Reference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+
+/**
+ * Periodically sample the {@link ThreadLocal}s of all threads while the application is running, in a background
+ * thread, and keep an index of the {@link ThreadLocal}s with entries that are potential leaks. This allows
+ * {@link ThreadLocalCleanUp} to only process the entries of the indexed {@link ThreadLocal}s - plus all entries of
+ * threads not sampled - at application shutdown, instead of evaluating every entry of every thread in the JVM. The
+ * index only holds weak references, so it does not keep the values of the entries from being garbage collected.
+ * Note that entries added to a thread after it was last sampled will not be cleared at shutdown, so the sample
+ * interval should be chosen with the lifecycle of the thread pools in mind.
+ */
+public class ThreadLocalSamplerInitiator implements PreClassLoaderInitiator {
+
+  public static final long SAMPLE_INTERVAL_MS_DEFAULT = 10 * 1000;
+
+  private final ThreadLocalCleanUp threadLocalCleanUp;
+
+  /** No of milliseconds between samples */
+  protected long sampleIntervalMs = SAMPLE_INTERVAL_MS_DEFAULT;
+
+  /** Active samplers per preventor */
+  private final Map<ClassLoaderLeakPreventor, Sampler> samplers =
+      Collections.synchronizedMap(new HashMap<ClassLoaderLeakPreventor, Sampler>());
+
+  public ThreadLocalSamplerInitiator(ThreadLocalCleanUp threadLocalCleanUp) {
+    this.threadLocalCleanUp = threadLocalCleanUp;
+  }
+
+  public void setSampleIntervalMs(long sampleIntervalMs) {
+    this.sampleIntervalMs = sampleIntervalMs;
+  }
+
+  @Override
+  public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    final Sampler sampler = new Sampler(preventor, sampleIntervalMs);
+    final Sampler previous = samplers.put(preventor, sampler);
+    if(previous != null) // Initiator invoked twice for the same preventor
+      previous.terminate();
+    preventor.addHelperThread(sampler);
+    sampler.start();
+  }
+
+  /**
+   * Stop sampling for the provided preventor, waiting for any ongoing sample to complete.
+   * @return The {@link ThreadLocal}s with entries that were potential leaks when each thread was last sampled, or 
+   * {@code null} if there was no sampling for the preventor. Threads not sampled are not included.
+   * @see ThreadLocalCleanUp#findLeakingThreadLocals(ClassLoaderLeakPreventor, Thread)
+   */
+  public Map<Thread, List<Reference<ThreadLocal<?>>>> stopSampling(ClassLoaderLeakPreventor preventor) {
+    final Sampler sampler = samplers.remove(preventor);
+    if(sampler == null)
+      return null;
+
+    sampler.terminate();
+    preventor.removeHelperThread(sampler);
+    synchronized (sampler.index) {
+      return new HashMap<Thread, List<Reference<ThreadLocal<?>>>>(sampler.index);
+    }
+  }
+
+  /** Thread sampling the {@link ThreadLocal}s of all other threads */
+  private class Sampler extends Thread {
+
+    private final ClassLoaderLeakPreventor preventor;
+
+    private final long sampleIntervalMs;
+
+    /** {@link ThreadLocal}s of potentially leaking entries per thread. Threads no longer running will be garbage collected. */
+    private final Map<Thread, List<Reference<ThreadLocal<?>>>> index = 
+        new WeakHashMap<Thread, List<Reference<ThreadLocal<?>>>>();
+
+    private volatile boolean running = true;
+
+    Sampler(ClassLoaderLeakPreventor preventor, long sampleIntervalMs) {
+      super("ClassLoaderLeakPreventor ThreadLocal sampler");
+      this.preventor = preventor;
+      this.sampleIntervalMs = sampleIntervalMs;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while(running) {
+        try {
+          Thread.sleep(sampleIntervalMs);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+
+        for(Thread thread : preventor.getAllThreads()) {
+          if(! running)
+            return;
+
+          if(thread != this) {
+            final List<Reference<ThreadLocal<?>>> threadLocals = 
+                threadLocalCleanUp.findLeakingThreadLocals(preventor, thread);
+            synchronized (index) {
+              index.put(thread, threadLocals);
+            }
+          }
+        }
+      }
+    }
+
+    /** Stop sampling, and wait for the thread to terminate */
+    void terminate() {
+      running = false;
+      this.interrupt();
+      try {
+        this.join();
+      }
+      catch (InterruptedException e) {
+        preventor.warn(getName() + " did not terminate: " + e);
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link ClassLoaderLeakPreventor#runCleanUpsAsync()}
+ */
+public class AsyncCleanUpsTest {
+
+  /** Protected {@link ClassLoader} that does not load this library */
+  private final ClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  @Test
+  public void slowCleanUpsAreDeferred() throws Exception {
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final Quick quick = new Quick();
+    final Slow slow = new Slow(proceed);
+    final AfterSlow afterSlow = new AfterSlow();
+    final Quick quickAfterSlow = new Quick();
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        classLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Arrays.<ClassLoaderPreMortemCleanUp>asList(quick, slow, afterSlow, quickAfterSlow));
+    preventor.setMetricsHistorySize(0);
+
+    final Future<LeakReport> future = preventor.runCleanUpsAsync();
+    assertSame("Quick cleanup run inline", Thread.currentThread(), quick.thread);
+    assertFalse(future.isDone());
+    assertNull(afterSlow.thread);
+    assertNull("Order kept", quickAfterSlow.thread);
+
+    proceed.countDown();
+    assertSame(preventor.getLeakReport(), future.get(10, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), slow.thread);
+    assertSame("Dependent cleanup deferred", slow.thread, afterSlow.thread);
+    assertSame("Following cleanup deferred", slow.thread, quickAfterSlow.thread);
+    assertTrue(slow.classLoaderOrChild);
+    assertEquals(4, preventor.getMetrics().getCleanUps().size());
+  }
+
+  @Test
+  public void synchronousWhenLoadedByProtectedClassLoader() throws Exception {
+    final Slow slow = new Slow(new CountDownLatch(0));
+    final AfterSlow afterSlow = new AfterSlow();
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        ClassLoaderLeakPreventor.class.getClassLoader(), new StdLogger(), 
+        Collections.<PreClassLoaderInitiator>emptyList(), Arrays.<ClassLoaderPreMortemCleanUp>asList(slow, afterSlow));
+    preventor.setMetricsHistorySize(0);
+
+    final Future<LeakReport> future = preventor.runCleanUpsAsync();
+    assertTrue(future.isDone());
+    assertSame(Thread.currentThread(), slow.thread);
+    assertSame(Thread.currentThread(), afterSlow.thread);
+    assertSame(preventor.getLeakReport(), future.get());
+  }
+
+  @Test
+  public void deferredErrorFailsFuture() throws Exception {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        classLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(new DeferrableCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            throw new IllegalStateException("Simulated failure");
+          }
+        }));
+    preventor.setMetricsHistorySize(0);
+
+    try {
+      preventor.runCleanUpsAsync().get(10, TimeUnit.SECONDS);
+      fail("Error expected");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void deferredCleanUpsSkippedWhenClassLoaderCollected() throws Exception {
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final Slow slow = new Slow(proceed);
+    final AfterSlow afterSlow = new AfterSlow();
+
+    URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        classLoader, new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Arrays.<ClassLoaderPreMortemCleanUp>asList(slow, afterSlow));
+    preventor.setMetricsHistorySize(0);
+
+    final Future<LeakReport> future = preventor.runCleanUpsAsync();
+    //noinspection UnusedAssignment
+    classLoader = null;
+    while(preventor.getClassLoader() != null) {
+      System.gc();
+    }
+
+    proceed.countDown();
+    future.get(10, TimeUnit.SECONDS);
+    assertFalse("Not running when ClassLoader was collected", slow.classLoaderOrChild);
+    assertNull("Remaining cleanup skipped", afterSlow.thread);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static class Quick implements ClassLoaderPreMortemCleanUp {
+    volatile Thread thread;
+
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      thread = Thread.currentThread();
+    }
+  }
+
+  /** {@link DeferrableCleanUp} that waits for a latch */
+  private static class Slow implements DeferrableCleanUp {
+    private final CountDownLatch proceed;
+
+    volatile Thread thread;
+
+    volatile boolean classLoaderOrChild;
+
+    Slow(CountDownLatch proceed) {
+      this.proceed = proceed;
+    }
+
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      thread = Thread.currentThread();
+      try {
+        proceed.await(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      classLoaderOrChild = preventor.isClassLoaderOrChild(preventor.getClassLoader());
+    }
+  }
+
+  private static class AfterSlow extends Quick implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {Slow.class};
+    }
+  }
+}
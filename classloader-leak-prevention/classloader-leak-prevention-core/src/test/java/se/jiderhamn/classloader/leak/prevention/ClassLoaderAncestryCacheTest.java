@@ -0,0 +1,74 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassLoaderAncestryCache}
+ */
+public class ClassLoaderAncestryCacheTest {
+
+  @Test
+  public void cacheVerdicts() {
+    final ClassLoaderAncestryCache cache = new ClassLoaderAncestryCache();
+    final ClassLoader foo = new URLClassLoader(new URL[0]);
+    final ClassLoader bar = new URLClassLoader(new URL[0]);
+
+    assertNull(cache.get(foo));
+    cache.put(foo, true);
+    cache.put(bar, false);
+    assertTrue(cache.get(foo));
+    assertFalse(cache.get(bar));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    cache.clear();
+    assertNull(cache.get(foo));
+    assertEquals(2, cache.getMisses());
+
+    cache.resetCounters();
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+  }
+
+  @Test
+  public void growBeyondInitialCapacity() {
+    final ClassLoaderAncestryCache cache = new ClassLoaderAncestryCache();
+    final ClassLoader[] classLoaders = new ClassLoader[1000];
+    for(int i = 0; i < classLoaders.length; i++) {
+      classLoaders[i] = new URLClassLoader(new URL[0]);
+      cache.put(classLoaders[i], i % 2 == 0);
+    }
+
+    for(int i = 0; i < classLoaders.length; i++) {
+      assertEquals(i % 2 == 0, cache.get(classLoaders[i]));
+    }
+    assertEquals(classLoaders.length, cache.getHits());
+  }
+
+  @Test
+  public void preventorUsesCache() {
+    final ClassLoader webAppClassLoader = new URLClassLoader(new URL[0]);
+    final ClassLoader child = new URLClassLoader(new URL[0], webAppClassLoader);
+    final ClassLoader other = new URLClassLoader(new URL[0]);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        webAppClassLoader, new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+
+    for(int i = 0; i < 3; i++) {
+      assertTrue(preventor.isClassLoaderOrChild(child));
+      assertFalse(preventor.isClassLoaderOrChild(other));
+    }
+    assertEquals(2, preventor.getAncestryCacheMisses());
+    assertEquals(4, preventor.getAncestryCacheHits());
+  }
+}
@@ -1,12 +1,25 @@
 package se.jiderhamn.classloader.leak.prevention;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.cleanup.SecurityProviderCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.StopThreadsCleanUp;
 
 import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test cases for {@link ClassLoaderLeakPreventorFactory}
@@ -84,6 +97,100 @@ public class ClassLoaderLeakPreventorFactoryTest {
     factory.addCleanUp(new Circle2());
   }
   
+  /** Test that a default {@link ClassLoaderPreMortemCleanUp} that others must be after can be replaced in place */
+  @Test
+  public void replaceDefaultCleanUp() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    final List<ClassLoaderPreMortemCleanUp> defaults = factory.cleanUpRegistry.getSnapshot().getEntries();
+    for(ClassLoaderPreMortemCleanUp replacement : 
+        Arrays.asList(new ShutdownHookCleanUp(), new SecurityProviderCleanUp(), new StopThreadsCleanUp())) {
+      final int index = indexOfClass(defaults, replacement.getClass());
+      assertTrue(replacement.getClass() + " is a default", index >= 0);
+      factory.addCleanUp(replacement);
+      assertSame("Replaced in place", replacement, factory.cleanUpRegistry.getSnapshot().getEntries().get(index));
+    }
+    assertEquals(defaults.size(), factory.cleanUpRegistry.getSnapshot().getEntries().size());
+    
+    factory.removeCleanUp(ShutdownHookCleanUp.class);
+    try {
+      factory.addCleanUp(new ShutdownHookCleanUp());
+      fail("Added to the end, after cleanups that must be after it");
+    }
+    catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  private static int indexOfClass(List<?> entries, Class<?> clazz) {
+    for(int i = 0; i < entries.size(); i++) {
+      if(entries.get(i).getClass() == clazz)
+        return i;
+    }
+    return -1;
+  }
+  
+  /** Test that the registries are snapshotted once per modification rather than once per preventor */
+  @Test
+  public void registrySnapshots() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    final OrderedRegistry.Snapshot<ClassLoaderPreMortemCleanUp> snapshot = factory.cleanUpRegistry.getSnapshot();
+    factory.newLeakPreventor();
+    factory.newLeakPreventor();
+    assertSame("Unmodified", snapshot, factory.cleanUpRegistry.getSnapshot());
+    
+    final Foo foo = new Foo(null);
+    final Bar bar = new Bar(null);
+    factory.addCleanUp(foo);
+    factory.addCleanUp(bar);
+    final OrderedRegistry.Snapshot<ClassLoaderPreMortemCleanUp> modified = factory.cleanUpRegistry.getSnapshot();
+    assertNotSame(snapshot, modified);
+    assertEquals(snapshot.getVersion() + 2, modified.getVersion());
+    assertEquals(snapshot.getEntries().size() + 2, modified.getEntries().size());
+    assertSame(bar, modified.getEntries().get(modified.getEntries().size() - 1));
+    assertSame(foo, factory.getCleanUp(Foo.class));
+    
+    final Foo replacement = new Foo(null);
+    factory.addCleanUp(replacement);
+    assertSame("Position retained", replacement, 
+        factory.cleanUpRegistry.getSnapshot().getEntries().get(modified.getEntries().size() - 2));
+    
+    factory.removeCleanUp(Foo.class);
+    assertEquals(snapshot.getEntries().size() + 1, factory.cleanUpRegistry.getSnapshot().getEntries().size());
+    assertEquals("Old snapshot unaffected", snapshot.getEntries().size() + 2, modified.getEntries().size());
+    
+    factory.clearPreInitiators();
+    assertTrue(factory.preInitiatorRegistry.getSnapshot().getEntries().isEmpty());
+    assertEquals("Clean ups unaffected", snapshot.getEntries().size() + 1, factory.cleanUpRegistry.getSnapshot().getEntries().size());
+  }
+  
+  /** Test that subclasses modifying the {@link Map}s of the factory still affect the registries */
+  @Test
+  public void mapViews() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    final int size = factory.cleanUps.size();
+    final Foo foo = new Foo(null);
+    assertNull(factory.cleanUps.put("foo", foo));
+    assertSame(foo, factory.cleanUpRegistry.get("foo"));
+    assertEquals(size + 1, factory.cleanUpRegistry.getSnapshot().getEntries().size());
+    assertTrue(factory.cleanUps.containsKey("foo"));
+    assertTrue(factory.cleanUps.containsValue(foo));
+    
+    final List<String> names = new ArrayList<String>(factory.cleanUps.keySet());
+    assertEquals("Insertion order", factory.cleanUpRegistry.getSnapshot().getNames(), names);
+    
+    final Iterator<Map.Entry<String, ClassLoaderPreMortemCleanUp>> iterator = factory.cleanUps.entrySet().iterator();
+    iterator.next();
+    iterator.remove();
+    assertFalse(factory.cleanUpRegistry.getSnapshot().getNames().contains(names.get(0)));
+    
+    assertSame(foo, factory.cleanUps.remove("foo"));
+    assertNull(factory.getCleanUp(Foo.class));
+    assertEquals(size - 1, factory.cleanUps.size());
+    
+    factory.preInitiators.clear();
+    assertTrue(factory.preInitiatorRegistry.getSnapshot().getEntries().isEmpty());
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   /** Base class for {@link ClassLoaderPreMortemCleanUp}s that will record their execution */
@@ -0,0 +1,44 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassLoaderLeakPreventor#gcAndWait(long, int)}
+ */
+public class ClassLoaderLeakPreventor_GcTest {
+
+  @Test
+  public void weakReferenceCleared() {
+    Object obj = new Object();
+    final WeakReference<Object> ref = new WeakReference<Object>(obj);
+    //noinspection UnusedAssignment
+    obj = null;
+
+    assertTrue(ClassLoaderLeakPreventor.gcAndWait(ClassLoaderLeakPreventor.GC_TIMEOUT_MS_DEFAULT, 
+        ClassLoaderLeakPreventor.GC_MAX_ATTEMPTS_DEFAULT));
+    assertNull(ref.get());
+  }
+
+  @Test
+  public void gcWithDefaults() {
+    Object obj = new Object();
+    final WeakReference<Object> ref = new WeakReference<Object>(obj);
+    //noinspection UnusedAssignment
+    obj = null;
+
+    ClassLoaderLeakPreventor.gc();
+    assertNull(ref.get());
+  }
+
+  @Test
+  public void bounded() {
+    final long start = System.currentTimeMillis();
+    ClassLoaderLeakPreventor.gcAndWait(200, 3);
+    assertTrue("Returned within timeout", System.currentTimeMillis() - start < 5 * 1000);
+  }
+}
@@ -0,0 +1,91 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LazyPreClassLoaderInitiator} and {@link ClassLoaderLeakPreventor#setPreInitiatorBudgetMs(long)}
+ */
+public class LazyPreClassLoaderInitiatorTest {
+
+  @Test
+  public void eagerByDefault() {
+    final LazyRecordingInitiator absent = new LazyRecordingInitiator(false, 0);
+    newPreventor(0, absent).runPreClassLoaderInitiators();
+    assertTrue(absent.invoked);
+  }
+
+  @Test
+  public void skipWhenSubsystemNotPresent() {
+    final LazyRecordingInitiator absent = new LazyRecordingInitiator(false, 0);
+    final LazyRecordingInitiator present = new LazyRecordingInitiator(true, 0);
+    final ClassLoaderLeakPreventor preventor = newPreventor(1000, absent, present);
+    preventor.runPreClassLoaderInitiators();
+
+    assertFalse(absent.invoked);
+    assertTrue(present.invoked);
+    final List<StepMetrics> steps = preventor.getMetrics().getPreClassLoaderInitiators();
+    assertEquals(2, steps.size());
+    assertEquals(Collections.singletonMap("skipped", 1), steps.get(0).getActions());
+    assertTrue(steps.get(1).getActions().isEmpty());
+  }
+
+  @Test
+  public void deferWhenBudgetUsedUp() throws InterruptedException {
+    final LazyRecordingInitiator slow = new LazyRecordingInitiator(true, 50);
+    final LazyRecordingInitiator deferred = new LazyRecordingInitiator(true, 0);
+    final ClassLoader leakSafeClassLoader = ClassLoader.getSystemClassLoader();
+    final ClassLoaderLeakPreventor preventor = newPreventor(10, slow, deferred);
+    preventor.runPreClassLoaderInitiators();
+
+    assertTrue(slow.invoked);
+    assertSame("Same thread", Thread.currentThread(), slow.thread);
+    assertTrue("Deferred initiator invoked", deferred.done.await(5, TimeUnit.SECONDS));
+    assertNotSame("Background thread", Thread.currentThread(), deferred.thread);
+    assertSame(leakSafeClassLoader, deferred.contextClassLoader);
+
+    preventor.runCleanUps(); // Waits for the deferred initiators
+    assertFalse(preventor.isCleanUpThread(deferred.thread));
+    
+    final List<StepMetrics> steps = preventor.getMetrics().getPreClassLoaderInitiators();
+    assertEquals(2, steps.size());
+    assertEquals(Collections.singletonMap("deferred", 1), steps.get(1).getActions());
+    assertTrue(steps.get(1).isCompleted());
+  }
+
+  private ClassLoaderLeakPreventor newPreventor(long budgetMs, PreClassLoaderInitiator... preInitiators) {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        getClass().getClassLoader(), new StdLogger(), new ArrayList<PreClassLoaderInitiator>(Arrays.asList(preInitiators)),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.setPreInitiatorBudgetMs(budgetMs);
+    return preventor;
+  }
+
+  /** {@link RecordingInitiator} that is a {@link LazyPreClassLoaderInitiator} */
+  private static class LazyRecordingInitiator extends RecordingInitiator implements LazyPreClassLoaderInitiator {
+
+    private final boolean subsystemPresent;
+
+    LazyRecordingInitiator(boolean subsystemPresent, long sleepMs) {
+      super(null, null, sleepMs);
+      this.subsystemPresent = subsystemPresent;
+    }
+
+    @Override
+    public boolean isSubsystemPresent(ClassLoaderLeakPreventor preventor) {
+      return subsystemPresent;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LeakPreventionMetrics} and {@link MetricsMBeanPublisher}
+ */
+public class LeakPreventionMetricsTest {
+
+  @Test
+  public void recordMetrics() {
+    final ClassLoaderLeakPreventor preventor = newPreventor(new ActionCleanUp(), new FailingCleanUp());
+    preventor.setMetricsHistorySize(0);
+    preventor.runPreClassLoaderInitiators();
+    try {
+      preventor.runCleanUps();
+    }
+    catch (IllegalStateException e) {
+      // Expected
+    }
+
+    final LeakPreventionMetrics metrics = preventor.getMetrics();
+    assertEquals(1, metrics.getPreClassLoaderInitiators().size());
+    assertEquals(ActionInitiator.class.getName(), metrics.getPreClassLoaderInitiators().get(0).getName());
+    assertEquals(Collections.singletonMap("foo", 1), metrics.getPreClassLoaderInitiators().get(0).getActions());
+
+    final List<StepMetrics> cleanUps = metrics.getCleanUps();
+    assertEquals(2, cleanUps.size());
+    assertTrue(cleanUps.get(0).isCompleted());
+    assertTrue(cleanUps.get(0).getWallTimeNanos() >= 0);
+    assertEquals(Integer.valueOf(2), cleanUps.get(0).getActions().get("bar"));
+    assertFalse(cleanUps.get(1).isCompleted());
+
+    preventor.recordAction("foo"); // Outside of step
+    assertEquals(1, metrics.getPreClassLoaderInitiators().get(0).getActions().size());
+  }
+
+  @Test
+  public void rollingHistoryInMBean() throws Exception {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName(MetricsMBeanPublisher.OBJECT_NAME);
+    if(mBeanServer.isRegistered(objectName))
+      mBeanServer.unregisterMBean(objectName);
+
+    try {
+      for(int i = 0; i < 3; i++) {
+        final ClassLoaderLeakPreventor preventor = newPreventor(new ActionCleanUp());
+        preventor.setMetricsHistorySize(2);
+        preventor.runCleanUps();
+      }
+
+      assertNull("MBean must not be loaded by any application classloader", mBeanServer.getClassLoaderFor(objectName));
+
+      final CompositeData[] history = (CompositeData[]) mBeanServer.getAttribute(objectName, MetricsMBeanPublisher.HISTORY);
+      assertEquals(2, history.length);
+      assertTrue((Long) history[0].get("startTime") <= (Long) history[1].get("startTime"));
+
+      final CompositeData[] cleanUps = (CompositeData[]) history[1].get("cleanUps");
+      assertEquals(1, cleanUps.length);
+      assertEquals(ActionCleanUp.class.getName(), cleanUps[0].get("name"));
+      assertEquals(Boolean.TRUE, cleanUps[0].get("completed"));
+      final TabularData actions = (TabularData) cleanUps[0].get("actions");
+      assertEquals(2, actions.get(new Object[] {"bar"}).get("count"));
+    }
+    finally {
+      mBeanServer.unregisterMBean(objectName);
+    }
+  }
+
+  @Test
+  public void notPublishedByDefault() throws Exception {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName(MetricsMBeanPublisher.OBJECT_NAME);
+    if(mBeanServer.isRegistered(objectName))
+      mBeanServer.unregisterMBean(objectName);
+
+    newPreventor(new ActionCleanUp()).runCleanUps();
+    assertFalse(mBeanServer.isRegistered(objectName));
+  }
+
+  private static ClassLoaderLeakPreventor newPreventor(ClassLoaderPreMortemCleanUp... cleanUps) {
+    return new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(), new URLClassLoader(new URL[0]),
+        new StdLogger(), Collections.<PreClassLoaderInitiator>singletonList(new ActionInitiator()),
+        Arrays.asList(cleanUps));
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static class ActionInitiator implements PreClassLoaderInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      preventor.recordAction("foo");
+    }
+  }
+
+  private static class ActionCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      preventor.recordAction("bar");
+      preventor.recordAction("bar");
+    }
+  }
+
+  private static class FailingCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      throw new IllegalStateException("Expected");
+    }
+  }
+}
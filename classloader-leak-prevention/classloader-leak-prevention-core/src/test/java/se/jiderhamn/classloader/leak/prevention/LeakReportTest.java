@@ -0,0 +1,154 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LeakReport}, {@link LeakReportJsonWriter} and {@link LeakReportBinaryWriter}
+ */
+public class LeakReportTest {
+
+  @Test
+  public void recordFindings() {
+    final LeakReport report = runCleanUp(null).getLeakReport();
+    final List<LeakReport.Finding> findings = report.getFindings();
+    assertEquals(3, findings.size());
+
+    final LeakReport.Finding first = findings.get(0);
+    assertEquals(FindingCleanUp.class.getName(), first.getCleanUp());
+    assertEquals("Thread", first.getCategory());
+    assertEquals(Thread.class.getName(), first.getTargetType());
+    assertEquals(Integer.toHexString(System.identityHashCode(Thread.currentThread())), first.getIdentity());
+    assertEquals("threadsStopped", first.getAction());
+    assertTrue(first.getDurationNanos() >= 0);
+
+    assertEquals("a:name=\"quoted\"", findings.get(1).getIdentity());
+    assertNull(findings.get(2).getTargetType());
+  }
+
+  @Test
+  public void json() throws IOException {
+    final LeakReport report = runCleanUp(null).getLeakReport();
+    final StringWriter writer = new StringWriter();
+    new LeakReportJsonWriter(writer).write(report);
+
+    final List<LeakReport.Finding> findings = report.getFindings();
+    final String cleanUp = FindingCleanUp.class.getName();
+    assertEquals("{\"classLoader\":\"" + report.getClassLoader() + "\",\"jvm\":\"" + report.getJvm() +
+        "\",\"startTime\":" + report.getStartTime() + ",\"findings\":[" +
+        "{\"cleanUp\":\"" + cleanUp + "\",\"category\":\"Thread\",\"targetType\":\"java.lang.Thread\",\"identity\":\"" +
+          findings.get(0).getIdentity() + "\",\"action\":\"threadsStopped\",\"durationNanos\":" +
+          findings.get(0).getDurationNanos() + "}," +
+        "{\"cleanUp\":\"" + cleanUp + "\",\"category\":\"MBean\",\"targetType\":\"Foo\",\"identity\":" +
+          "\"a:name=\\\"quoted\\\"\",\"action\":\"mBeansUnregistered\",\"durationNanos\":" +
+          findings.get(1).getDurationNanos() + "}," +
+        "{\"cleanUp\":\"" + cleanUp + "\",\"category\":\"Thread\",\"targetType\":null,\"identity\":null," +
+          "\"action\":\"tab\\there\\u0001\",\"durationNanos\":" + findings.get(2).getDurationNanos() + "}" +
+        "]}", writer.toString());
+  }
+
+  @Test
+  public void binary() throws IOException {
+    final LeakReport report = runCleanUp(null).getLeakReport();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new LeakReportBinaryWriter(bytes).write(report);
+
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    final List<String> stringTable = new ArrayList<String>();
+    assertEquals(LeakReportBinaryWriter.MAGIC, in.readInt());
+    assertEquals(LeakReportBinaryWriter.VERSION, in.readByte());
+    assertEquals(report.getClassLoader(), readString(in, stringTable));
+    assertEquals(report.getJvm(), readString(in, stringTable));
+    assertEquals(report.getStartTime(), in.readLong());
+    assertEquals(3, readVarInt(in));
+    for(LeakReport.Finding finding : report.getFindings()) {
+      assertEquals(finding.getCleanUp(), readString(in, stringTable));
+      assertEquals(finding.getCategory(), readString(in, stringTable));
+      assertEquals(finding.getTargetType(), readString(in, stringTable));
+      assertEquals(finding.getIdentity(), readString(in, stringTable));
+      assertEquals(finding.getAction(), readString(in, stringTable));
+      assertEquals(finding.getDurationNanos(), in.readLong());
+    }
+    assertEquals(-1, in.read());
+    assertEquals("Repeated strings written once", 12, stringTable.size());
+  }
+
+  @Test
+  public void writeToDirectory() throws IOException {
+    final File directory = File.createTempFile("leak-report", "");
+    assertTrue(directory.delete() && directory.mkdir());
+    try {
+      runCleanUp(directory);
+      final File[] files = directory.listFiles();
+      assertEquals(1, files.length);
+      assertTrue(files[0].getName().endsWith(".json"));
+      assertTrue(files[0].length() > 0);
+    }
+    finally {
+      for(File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private static ClassLoaderLeakPreventor runCleanUp(File leakReportDirectory) {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        new URLClassLoader(new URL[0]), new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(new FindingCleanUp()));
+    preventor.setMetricsHistorySize(0);
+    preventor.setLeakReportDirectory(leakReportDirectory, false);
+    preventor.runCleanUps();
+    return preventor;
+  }
+
+  /** Decode string as per {@link LeakReportBinaryWriter} */
+  private static String readString(DataInputStream in, List<String> stringTable) throws IOException {
+    final int n = readVarInt(in);
+    if(n == 0)
+      return null;
+    else if(n == stringTable.size() + 1) {
+      final String s = in.readUTF();
+      stringTable.add(s);
+      return s;
+    }
+    else
+      return stringTable.get(n - 1);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int output = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readUnsignedByte();
+      output |= (b & 0x7F) << shift;
+      shift += 7;
+    } while((b & 0x80) != 0);
+    return output;
+  }
+
+  private static class FindingCleanUp implements ClassLoaderPreMortemCleanUp {
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      preventor.recordFinding("Thread", Thread.currentThread(), "threadsStopped");
+      preventor.recordFinding("MBean", "Foo", "a:name=\"quoted\"", "mBeansUnregistered");
+      preventor.recordFinding("Thread", null, "tab\there\u0001");
+    }
+  }
+}
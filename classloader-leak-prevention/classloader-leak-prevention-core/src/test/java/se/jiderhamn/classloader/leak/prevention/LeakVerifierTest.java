@@ -0,0 +1,119 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LeakVerifier}
+ */
+public class LeakVerifierTest {
+
+  @Test
+  public void collected() throws InterruptedException {
+    final LeakVerifier verifier = LeakVerifier.getInstance();
+    final long collectedBefore = verifier.getCollectedCount();
+    final RecordingLogger logger = new RecordingLogger();
+
+    URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    runCleanUps(classLoader, logger, 0, 60 * 1000);
+    assertEquals(1, verifier.getWatchedCount());
+    //noinspection UnusedAssignment
+    classLoader = null;
+
+    final long deadline = System.currentTimeMillis() + 10 * 1000;
+    while(verifier.getCollectedCount() == collectedBefore && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(collectedBefore + 1, verifier.getCollectedCount());
+    assertTrue(logger.warnings.isEmpty());
+    awaitWatcherTerminated();
+  }
+
+  @Test
+  public void leakAfterGcCycles() throws InterruptedException {
+    final LeakVerifier verifier = LeakVerifier.getInstance();
+    final long leaksBefore = verifier.getLeakCount();
+    final RecordingLogger logger = new RecordingLogger();
+
+    final URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    runCleanUps(classLoader, logger, 2, 0);
+
+    final long deadline = System.currentTimeMillis() + 10 * 1000;
+    while(verifier.getLeakCount() == leaksBefore && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(leaksBefore + 1, verifier.getLeakCount());
+    assertEquals(1, logger.warnings.size());
+    assertTrue(logger.warnings.get(0).contains("probably leaking"));
+    awaitWatcherTerminated();
+    assertEquals("Still reachable", 0, classLoader.getURLs().length);
+  }
+
+  @Test
+  public void leakAfterTimeout() throws InterruptedException {
+    final LeakVerifier verifier = LeakVerifier.getInstance();
+    final long leaksBefore = verifier.getLeakCount();
+    final RecordingLogger logger = new RecordingLogger();
+
+    final URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    runCleanUps(classLoader, logger, 0, 100);
+
+    final long deadline = System.currentTimeMillis() + 10 * 1000;
+    while(verifier.getLeakCount() == leaksBefore && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(leaksBefore + 1, verifier.getLeakCount());
+    assertEquals(1, logger.warnings.size());
+    awaitWatcherTerminated();
+    assertEquals("Still reachable", 0, classLoader.getURLs().length);
+  }
+
+  private static void runCleanUps(ClassLoader classLoader, Logger logger, int gcCycles, long timeoutMs) {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        classLoader, logger, Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.setLeakVerification(gcCycles, timeoutMs);
+    preventor.runCleanUps();
+  }
+
+  /** Wait for the watcher thread to terminate, since nothing is left to watch */
+  private static void awaitWatcherTerminated() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10 * 1000;
+    while(isWatcherRunning() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, LeakVerifier.getInstance().getWatchedCount());
+    assertTrue("Watcher terminated", ! isWatcherRunning());
+  }
+
+  private static boolean isWatcherRunning() {
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      if("ClassLoaderLeakPreventor leak verifier".equals(thread.getName()) && thread.isAlive())
+        return true;
+    }
+    return false;
+  }
+
+  /** Logger that records warnings */
+  private static class RecordingLogger extends StdLogger {
+
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void warn(String msg) {
+      warnings.add(msg);
+      super.warn(msg);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link MultiClassLoaderLeakPreventor}
+ */
+public class MultiClassLoaderLeakPreventorTest {
+
+  private final ClassLoader plugin1 = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  private final ClassLoader plugin2 = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+  private final ClassLoader plugin2Child = new URLClassLoader(new URL[0], plugin2);
+
+  @Test
+  public void membership() {
+    final MultiClassLoaderLeakPreventor preventor = newPreventor(Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    assertTrue(preventor.isClassLoaderOrChild(plugin1));
+    assertTrue(preventor.isClassLoaderOrChild(plugin2Child));
+    assertSame(plugin2, preventor.getProtectedClassLoader(plugin2Child));
+    assertFalse(preventor.isClassLoaderOrChild(getClass().getClassLoader()));
+    assertFalse(preventor.isClassLoaderOrChild(null));
+    assertNull(preventor.getProtectedClassLoader(new URLClassLoader(new URL[0], getClass().getClassLoader())));
+    assertEquals(Arrays.asList(plugin1, plugin2), preventor.getProtectedClassLoaders());
+  }
+
+  @Test
+  public void sweepsOnceAndPerClassLoaderCleanUpsOncePerClassLoader() {
+    final List<ClassLoader> sweeps = new ArrayList<ClassLoader>();
+    final List<ClassLoader> perClassLoader = new ArrayList<ClassLoader>();
+
+    final MultiClassLoaderLeakPreventor preventor = newPreventor(Arrays.asList(
+        new ClassLoaderPreMortemCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            sweeps.add(preventor.getClassLoader());
+          }
+        },
+        new PerClassLoaderCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            perClassLoader.add(preventor.getClassLoader());
+          }
+        }));
+    preventor.runCleanUps();
+
+    assertEquals(Collections.singletonList(plugin1), sweeps);
+    assertEquals(Arrays.asList(plugin1, plugin2), perClassLoader);
+  }
+
+  @Test
+  public void findingsAttributedToClassLoader() {
+    final Thread thread = new Thread();
+    thread.setContextClassLoader(plugin2Child);
+
+    final MultiClassLoaderLeakPreventor preventor = newPreventor(Collections.<ClassLoaderPreMortemCleanUp>singletonList(
+        new ClassLoaderPreMortemCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            preventor.recordFinding("Thread", thread, "threadsStopped");
+            preventor.recordFinding("ClassLoader", plugin1, "cleared");
+            preventor.recordFinding("MBean", "com.acme.Foo", "com.acme:type=Foo", "mBeansUnregistered");
+          }
+        }));
+    preventor.runCleanUps();
+
+    assertEquals(3, preventor.getLeakReport().getFindings().size());
+    assertEquals(1, preventor.getLeakReport(0).getFindings().size());
+    assertEquals("cleared", preventor.getLeakReport(0).getFindings().get(0).getAction());
+    assertEquals(1, preventor.getLeakReport(1).getFindings().size());
+    assertEquals("threadsStopped", preventor.getLeakReport(1).getFindings().get(0).getAction());
+    assertEquals(String.valueOf(plugin2), preventor.getLeakReports().get(1).getClassLoader());
+  }
+
+  @Test
+  public void classLoadersReleasedAfterCleanUp() {
+    ClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    final MultiClassLoaderLeakPreventor preventor = new MultiClassLoaderLeakPreventor(
+        ClassLoader.getSystemClassLoader(), Arrays.asList(plugin1, classLoader), new StdLogger(), 
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.runCleanUps();
+
+    final WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(classLoader);
+    //noinspection UnusedAssignment
+    classLoader = null;
+    for(int i = 0; i < 100 && reference.get() != null; i++) {
+      System.gc();
+    }
+    assertNull("Released after cleanup", reference.get());
+    assertEquals(Collections.singletonList(plugin1), preventor.getProtectedClassLoaders());
+    assertEquals(2, preventor.getLeakReports().size());
+    assertTrue("Membership kept while not garbage collected", preventor.isClassLoaderOrChild(plugin1));
+  }
+
+  @Test
+  public void resourcePresentInAnyClassLoader() {
+    final ClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader()) {
+      @Override
+      public URL findResource(String name) {
+        return "com/acme/Plugin.class".equals(name) ? 
+            MultiClassLoaderLeakPreventorTest.class.getResource("MultiClassLoaderLeakPreventorTest.class") : null;
+      }
+    };
+    final MultiClassLoaderLeakPreventor preventor = new MultiClassLoaderLeakPreventor(
+        ClassLoader.getSystemClassLoader(), Arrays.asList(plugin1, classLoader), new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    assertTrue(preventor.isResourcePresent("com/acme/Plugin.class"));
+    assertFalse(preventor.isResourcePresent("com/acme/Other.class"));
+  }
+
+  @Test
+  public void deferredPerClassLoaderCleanUpsAfterRelease() throws Exception {
+    final List<ClassLoader> inline = new ArrayList<ClassLoader>();
+    final List<ClassLoader> deferred = new ArrayList<ClassLoader>();
+    final List<Boolean> membership = new ArrayList<Boolean>();
+    final CountDownLatch released = new CountDownLatch(1);
+
+    final MultiClassLoaderLeakPreventor preventor = newPreventor(Arrays.<ClassLoaderPreMortemCleanUp>asList(
+        new PerClassLoaderCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            inline.add(preventor.getClassLoader());
+          }
+        },
+        new DeferredPerClassLoaderCleanUp() {
+          @Override
+          public void cleanUp(ClassLoaderLeakPreventor preventor) {
+            try {
+              released.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            deferred.add(preventor.getClassLoader());
+            membership.add(preventor.isClassLoaderOrChild(plugin2Child));
+          }
+        }));
+    final Future<LeakReport> future = preventor.runCleanUpsAsync();
+    released.countDown();
+    future.get(5, TimeUnit.SECONDS);
+
+    assertEquals(Arrays.asList(plugin1, plugin2), inline);
+    assertEquals(Arrays.asList(plugin1, plugin2), deferred);
+    assertEquals(Arrays.asList(true, true), membership);
+  }
+
+  @Test
+  public void classLoadersReleasedByAsyncCleanUp() throws Exception {
+    ClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    final MultiClassLoaderLeakPreventor preventor = new MultiClassLoaderLeakPreventor(
+        ClassLoader.getSystemClassLoader(), Arrays.asList(plugin1, classLoader), new StdLogger(), 
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.runCleanUpsAsync().get(5, TimeUnit.SECONDS);
+
+    final WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(classLoader);
+    //noinspection UnusedAssignment
+    classLoader = null;
+    for(int i = 0; i < 100 && reference.get() != null; i++) {
+      System.gc();
+    }
+    assertNull("Released after cleanup", reference.get());
+    assertEquals(Collections.singletonList(plugin1), preventor.getProtectedClassLoaders());
+  }
+
+  private MultiClassLoaderLeakPreventor newPreventor(List<ClassLoaderPreMortemCleanUp> cleanUps) {
+    final MultiClassLoaderLeakPreventor preventor = new MultiClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        Arrays.asList(plugin1, plugin2), new StdLogger(), Collections.<PreClassLoaderInitiator>emptyList(), cleanUps);
+    preventor.setMetricsHistorySize(0);
+    return preventor;
+  }
+
+  /** {@link PerClassLoaderCleanUp} deferred by {@link ClassLoaderLeakPreventor#runCleanUpsAsync()} */
+  private interface DeferredPerClassLoaderCleanUp extends PerClassLoaderCleanUp, DeferrableCleanUp {
+  }
+}
@@ -0,0 +1,108 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link OncePerJvmPreClassLoaderInitiator} and
+ * {@link ClassLoaderLeakPreventor#setSkipCompletedPreInitiators(boolean)}
+ */
+public class OncePerJvmPreClassLoaderInitiatorTest {
+
+  private static int onceInvocations;
+
+  private static int failingInvocations;
+
+  private static int everyTimeInvocations;
+
+  @Before
+  @After
+  public void clearRegistry() {
+    for(Class<?> clazz : Arrays.asList(OnceInitiator.class, FailingOnceInitiator.class, EveryTimeInitiator.class)) {
+      System.clearProperty(ClassLoaderLeakPreventor.COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX + clazz.getName());
+    }
+    onceInvocations = 0;
+    failingInvocations = 0;
+    everyTimeInvocations = 0;
+  }
+
+  @Test
+  public void skipCompletedInSubsequentDeployments() {
+    runPreClassLoaderInitiators(true);
+    assertNotNull(System.getProperty(ClassLoaderLeakPreventor.COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX +
+        OnceInitiator.class.getName()));
+    assertNull("Not completed", System.getProperty(ClassLoaderLeakPreventor.COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX +
+        FailingOnceInitiator.class.getName()));
+    assertNull("Not once per JVM", System.getProperty(ClassLoaderLeakPreventor.COMPLETED_PRE_INITIATOR_PROPERTY_PREFIX +
+        EveryTimeInitiator.class.getName()));
+
+    final List<StepMetrics> steps = runPreClassLoaderInitiators(true);
+    assertEquals(1, onceInvocations);
+    assertEquals(2, failingInvocations);
+    assertEquals(2, everyTimeInvocations);
+
+    assertEquals(3, steps.size());
+    assertEquals(OnceInitiator.class.getName(), steps.get(0).getName());
+    assertEquals(Collections.singletonMap("alreadyCompleted", 1), steps.get(0).getActions());
+    assertTrue(steps.get(1).getActions().isEmpty());
+    assertTrue(steps.get(2).getActions().isEmpty());
+  }
+
+  @Test
+  public void runEveryTimeIfDisabled() {
+    runPreClassLoaderInitiators(false);
+    runPreClassLoaderInitiators(false);
+    assertEquals(2, onceInvocations);
+    assertEquals(2, everyTimeInvocations);
+  }
+
+  /** Run the initiators of a new {@link ClassLoaderLeakPreventor}, simulating a deployment */
+  private List<StepMetrics> runPreClassLoaderInitiators(boolean skipCompletedPreInitiators) {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        getClass().getClassLoader(), new StdLogger(), new ArrayList<PreClassLoaderInitiator>(Arrays.asList(
+            new OnceInitiator(), new EveryTimeInitiator(), new FailingOnceInitiator())),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.setSkipCompletedPreInitiators(skipCompletedPreInitiators);
+    try {
+      preventor.runPreClassLoaderInitiators();
+    }
+    catch (IllegalStateException e) {
+      // Expected from FailingOnceInitiator
+    }
+    return preventor.getMetrics().getPreClassLoaderInitiators();
+  }
+
+  private static class OnceInitiator implements OncePerJvmPreClassLoaderInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      onceInvocations++;
+    }
+  }
+
+  private static class FailingOnceInitiator implements OncePerJvmPreClassLoaderInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      failingInvocations++;
+      throw new IllegalStateException("Simulated failure");
+    }
+  }
+
+  private static class EveryTimeInitiator implements PreClassLoaderInitiator {
+    @Override
+    public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+      everyTimeInvocations++;
+    }
+  }
+}
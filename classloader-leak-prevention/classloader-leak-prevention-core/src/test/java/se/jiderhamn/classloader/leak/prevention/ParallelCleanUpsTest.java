@@ -0,0 +1,217 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.StopThreadsCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadGroupCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for running {@link ClassLoaderPreMortemCleanUp}s in parallel, see
+ * {@link ClassLoaderLeakPreventor#setCleanUpThreads(int)}
+ */
+public class ParallelCleanUpsTest {
+
+  @Test
+  public void dependencies() {
+    final List<ClassLoaderPreMortemCleanUp> cleanUps = new ArrayList<ClassLoaderPreMortemCleanUp>();
+    cleanUps.add(new Foo(null, null));
+    cleanUps.add(new Bar(null, null));
+    cleanUps.add(new AfterFoo(null, null));
+    cleanUps.add(new AfterFooAndBar(null, null));
+
+    final int[][] dependencies = ParallelRunner.getDependencies(cleanUps);
+    assertArrayEquals(new int[0], dependencies[0]);
+    assertArrayEquals(new int[0], dependencies[1]);
+    assertArrayEquals(new int[] {0}, dependencies[2]);
+    assertArrayEquals(new int[] {0, 1}, dependencies[3]);
+  }
+
+  @Test
+  public void independentCleanUpsRunConcurrently() {
+    final List<ClassLoaderPreMortemCleanUp> executionOrder =
+        Collections.synchronizedList(new ArrayList<ClassLoaderPreMortemCleanUp>());
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+
+    final Foo foo = new Foo(executionOrder, bothStarted);
+    final Bar bar = new Bar(executionOrder, bothStarted);
+    final AfterFoo afterFoo = new AfterFoo(executionOrder, null);
+    final AfterFooAndBar afterFooAndBar = new AfterFooAndBar(executionOrder, null);
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        getClass().getClassLoader(), new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(),
+        Arrays.<ClassLoaderPreMortemCleanUp>asList(foo, bar, afterFoo, afterFooAndBar));
+    preventor.setCleanUpThreads(4);
+    preventor.runCleanUps();
+
+    assertEquals(4, executionOrder.size());
+    assertTrue(foo.concurrent); // Would have timed out unless Foo and Bar ran at the same time
+    assertTrue(bar.concurrent);
+    assertTrue(executionOrder.indexOf(afterFoo) > executionOrder.indexOf(foo));
+    assertTrue(executionOrder.indexOf(afterFooAndBar) > executionOrder.indexOf(foo));
+    assertTrue(executionOrder.indexOf(afterFooAndBar) > executionOrder.indexOf(bar));
+  }
+
+  /** As in serial mode, the first error thrown by a cleanup is propagated, and no more cleanups are started */
+  @Test
+  public void errorPropagated() {
+    final List<ClassLoaderPreMortemCleanUp> executionOrder =
+        Collections.synchronizedList(new ArrayList<ClassLoaderPreMortemCleanUp>());
+    final IllegalStateException error = new IllegalStateException("Simulated failure");
+    final Foo failingFoo = new Foo(executionOrder, null) {
+      @Override
+      public void cleanUp(ClassLoaderLeakPreventor preventor) {
+        super.cleanUp(preventor);
+        throw error;
+      }
+    };
+    final Bar bar = new Bar(executionOrder, null);
+    final AfterFoo afterFoo = new AfterFoo(executionOrder, null);
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        getClass().getClassLoader(), new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(),
+        Arrays.<ClassLoaderPreMortemCleanUp>asList(failingFoo, bar, afterFoo));
+    preventor.setMetricsHistorySize(0);
+    preventor.setCleanUpThreads(2);
+    try {
+      preventor.runCleanUps();
+      fail("Error should be propagated");
+    }
+    catch (IllegalStateException e) {
+      assertSame(error, e);
+    }
+
+    assertTrue(executionOrder.contains(failingFoo));
+    assertFalse("Dependent not started", executionOrder.contains(afterFoo));
+    for(StepMetrics step : preventor.getMetrics().getCleanUps()) {
+      assertEquals(step.getName() + " completed", ! step.getName().equals(failingFoo.getClass().getName()), 
+          step.isCompleted());
+    }
+  }
+
+  /** The default cleanups must keep the ordering the serial run gives for free, where it matters */
+  @Test
+  public void defaultCleanUpsInParallel() {
+    final ClassLoaderLeakPreventorFactory factory = new ClassLoaderLeakPreventorFactory();
+    final List<ClassLoaderPreMortemCleanUp> cleanUps = factory.cleanUpRegistry.getSnapshot().getEntries();
+    final int[][] dependencies = ParallelRunner.getDependencies(cleanUps);
+    assertDependsOn(cleanUps, dependencies, StopThreadsCleanUp.class, ShutdownHookCleanUp.class);
+    assertDependsOn(cleanUps, dependencies, ThreadGroupCleanUp.class, StopThreadsCleanUp.class);
+    assertDependsOn(cleanUps, dependencies, ThreadLocalCleanUp.class, StopThreadsCleanUp.class);
+
+    factory.setCleanUpThreads(4);
+    factory.setMetricsHistorySize(0);
+    final ClassLoaderLeakPreventor preventor = factory.newLeakPreventor(new URLClassLoader(new URL[0]));
+    preventor.runCleanUps();
+
+    final List<StepMetrics> steps = preventor.getMetrics().getCleanUps();
+    assertEquals(cleanUps.size(), steps.size());
+    for(StepMetrics step : steps) {
+      assertTrue(step.getName() + " completed", step.isCompleted());
+    }
+  }
+
+  private static void assertDependsOn(List<ClassLoaderPreMortemCleanUp> cleanUps, int[][] dependencies,
+                                      Class<?> dependent, Class<?> dependency) {
+    final int dependentIndex = indexOf(cleanUps, dependent);
+    final int dependencyIndex = indexOf(cleanUps, dependency);
+    for(int i : dependencies[dependentIndex]) {
+      if(i == dependencyIndex)
+        return;
+    }
+    fail(dependent.getName() + " should depend on " + dependency.getName());
+  }
+
+  private static int indexOf(List<ClassLoaderPreMortemCleanUp> cleanUps, Class<?> clazz) {
+    for(int i = 0; i < cleanUps.size(); i++) {
+      if(clazz.isInstance(cleanUps.get(i)))
+        return i;
+    }
+    throw new AssertionError(clazz.getName() + " not found");
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Base class for {@link ClassLoaderPreMortemCleanUp}s that will record their execution */
+  private abstract static class RecordingCleanUp implements ClassLoaderPreMortemCleanUp {
+
+    private final List<ClassLoaderPreMortemCleanUp> cleanUps;
+
+    /** If non-null, count down and wait for other {@link RecordingCleanUp}s to start */
+    private final CountDownLatch latch;
+
+    /** Did this cleanup run at the same time as the others sharing the {@link #latch}? */
+    volatile boolean concurrent;
+
+    RecordingCleanUp(List<ClassLoaderPreMortemCleanUp> cleanUps, CountDownLatch latch) {
+      this.cleanUps = cleanUps;
+      this.latch = latch;
+    }
+
+    @Override
+    public void cleanUp(ClassLoaderLeakPreventor preventor) {
+      if(latch != null) {
+        latch.countDown();
+        try {
+          concurrent = latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      cleanUps.add(this);
+    }
+  }
+
+  private static class Foo extends RecordingCleanUp {
+    Foo(List<ClassLoaderPreMortemCleanUp> cleanUps, CountDownLatch latch) {
+      super(cleanUps, latch);
+    }
+  }
+
+  private static class Bar extends RecordingCleanUp {
+    Bar(List<ClassLoaderPreMortemCleanUp> cleanUps, CountDownLatch latch) {
+      super(cleanUps, latch);
+    }
+  }
+
+  private static class AfterFoo extends RecordingCleanUp implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    AfterFoo(List<ClassLoaderPreMortemCleanUp> cleanUps, CountDownLatch latch) {
+      super(cleanUps, latch);
+    }
+
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {Foo.class};
+    }
+  }
+
+  private static class AfterFooAndBar extends RecordingCleanUp implements MustBeAfter<ClassLoaderPreMortemCleanUp> {
+    AfterFooAndBar(List<ClassLoaderPreMortemCleanUp> cleanUps, CountDownLatch latch) {
+      super(cleanUps, latch);
+    }
+
+    @Override
+    public Class<? extends ClassLoaderPreMortemCleanUp>[] mustBeBeforeMe() {
+      return new Class[] {Foo.class, Bar.class};
+    }
+  }
+}
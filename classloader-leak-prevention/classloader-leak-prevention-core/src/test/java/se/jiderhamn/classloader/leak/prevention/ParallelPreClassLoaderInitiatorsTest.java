@@ -0,0 +1,134 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.AccessControlContext;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Test cases for running {@link PreClassLoaderInitiator}s in parallel, see
+ * {@link ClassLoaderLeakPreventor#setPreInitiatorThreads(int)}
+ */
+public class ParallelPreClassLoaderInitiatorsTest {
+
+  @Test
+  public void independentInitiatorsRunConcurrentlyInLeakSafeClassLoader() {
+    final List<PreClassLoaderInitiator> executionOrder =
+        Collections.synchronizedList(new ArrayList<PreClassLoaderInitiator>());
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+
+    final Foo foo = new Foo(executionOrder, bothStarted);
+    final Bar bar = new Bar(executionOrder, bothStarted);
+    final AfterFoo afterFoo = new AfterFoo(executionOrder, null);
+
+    final ClassLoader leakSafeClassLoader = ClassLoader.getSystemClassLoader();
+    final ClassLoader protectedClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(leakSafeClassLoader, protectedClassLoader,
+        new StdLogger(), Arrays.<PreClassLoaderInitiator>asList(foo, bar, afterFoo),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.setPreInitiatorThreads(3);
+    preventor.runPreClassLoaderInitiators();
+
+    assertEquals(3, executionOrder.size());
+    assertTrue(foo.concurrent); // Would have timed out unless Foo and Bar ran at the same time
+    assertTrue(bar.concurrent);
+    assertTrue(executionOrder.indexOf(afterFoo) > executionOrder.indexOf(foo));
+
+    for(RecordingInitiator initiator : Arrays.asList(foo, bar, afterFoo)) {
+      assertNotSame("Worker thread", Thread.currentThread(), initiator.thread);
+      assertSame(leakSafeClassLoader, initiator.contextClassLoader);
+    }
+    assertEquals(3, preventor.getMetrics().getPreClassLoaderInitiators().size());
+  }
+
+  @Test
+  public void workersDoNotInheritProtectedAccessControlContext() {
+    final Foo foo = new Foo(null, null);
+    final Bar bar = new Bar(null, null);
+
+    // Protect the ClassLoader of this test, so that its ProtectionDomain is on the stack of the initiators 
+    final ClassLoader protectedClassLoader = getClass().getClassLoader();
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(protectedClassLoader.getParent(),
+        protectedClassLoader, new StdLogger(), Arrays.<PreClassLoaderInitiator>asList(foo, bar),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.setPreInitiatorThreads(2);
+    preventor.runPreClassLoaderInitiators();
+
+    for(RecordingInitiator initiator : Arrays.asList(foo, bar)) {
+      assertNotSame("Worker thread", Thread.currentThread(), initiator.thread);
+      assumeNotNull(initiator.threadAccessControlContext); // Thread.inheritedAccessControlContext exists in this JVM
+      assertNoProtectedDomains(preventor, initiator.threadAccessControlContext);
+      assertNull("Combiner removed from worker thread",
+          preventor.getFieldValue(initiator.threadAccessControlContext, "combiner"));
+      assertNoProtectedDomains(preventor, initiator.spawnedAccessControlContext);
+    }
+  }
+
+  @Test
+  public void sequentialByDefault() {
+    final List<PreClassLoaderInitiator> executionOrder = new ArrayList<PreClassLoaderInitiator>();
+    final Foo foo = new Foo(executionOrder, null);
+    final Bar bar = new Bar(executionOrder, null);
+
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        getClass().getClassLoader(), new StdLogger(), Arrays.<PreClassLoaderInitiator>asList(foo, bar),
+        Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    preventor.setMetricsHistorySize(0);
+    preventor.runPreClassLoaderInitiators();
+
+    assertEquals(Arrays.<PreClassLoaderInitiator>asList(foo, bar), executionOrder);
+    assertSame(Thread.currentThread(), foo.thread);
+    assertSame(Thread.currentThread(), bar.thread);
+  }
+
+  private static class Foo extends RecordingInitiator {
+    Foo(List<PreClassLoaderInitiator> executionOrder, CountDownLatch started) {
+      super(executionOrder, started, 0);
+    }
+  }
+
+  private static class Bar extends RecordingInitiator {
+    Bar(List<PreClassLoaderInitiator> executionOrder, CountDownLatch started) {
+      super(executionOrder, started, 0);
+    }
+  }
+
+  private static class AfterFoo extends RecordingInitiator implements MustBeAfter<PreClassLoaderInitiator> {
+    AfterFoo(List<PreClassLoaderInitiator> executionOrder, CountDownLatch started) {
+      super(executionOrder, started, 0);
+    }
+
+    @Override
+    public Class<? extends PreClassLoaderInitiator>[] mustBeBeforeMe() {
+      return new Class[] {Foo.class};
+    }
+  }
+
+  /** Assert that the {@link AccessControlContext} holds no {@link ProtectionDomain} of the protected {@link ClassLoader} */
+  private static void assertNoProtectedDomains(ClassLoaderLeakPreventor preventor, AccessControlContext accessControlContext) {
+    final ProtectionDomain[] protectionDomains = preventor.getFieldValue(accessControlContext, "context");
+    if(protectionDomains != null) {
+      for(ProtectionDomain protectionDomain : protectionDomains) {
+        assertFalse("Protected domain " + protectionDomain.getCodeSource(), 
+            preventor.isClassLoaderOrChild(protectionDomain.getClassLoader()));
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.reflect.Field;
+import java.security.AccessControlContext;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PreClassLoaderInitiator} that records its invocation, for tests of how initiators are run. Optionally records
+ * its position in an execution order, waits for others to start and/or sleeps.
+ */
+class RecordingInitiator implements PreClassLoaderInitiator {
+
+  private final List<PreClassLoaderInitiator> executionOrder;
+
+  private final CountDownLatch started;
+
+  private final long sleepMs;
+
+  final CountDownLatch done = new CountDownLatch(1);
+
+  volatile boolean invoked;
+
+  volatile boolean concurrent;
+
+  volatile Thread thread;
+
+  volatile ClassLoader contextClassLoader;
+
+  /** The {@link AccessControlContext} inherited by the thread the initiator was invoked in */
+  volatile AccessControlContext threadAccessControlContext;
+
+  /** The {@link AccessControlContext} that a thread started by the initiator would inherit */
+  volatile AccessControlContext spawnedAccessControlContext;
+
+  /**
+   * @param executionOrder List to add this initiator to once done, or null
+   * @param started Latch to count down and then wait for, so that initiators can verify they run concurrently, or null
+   * @param sleepMs No of milliseconds to sleep when invoked
+   */
+  RecordingInitiator(List<PreClassLoaderInitiator> executionOrder, CountDownLatch started, long sleepMs) {
+    this.executionOrder = executionOrder;
+    this.started = started;
+    this.sleepMs = sleepMs;
+  }
+
+  @Override
+  public void doOutsideClassLoader(ClassLoaderLeakPreventor preventor) {
+    thread = Thread.currentThread();
+    contextClassLoader = thread.getContextClassLoader();
+    final Field inheritedAccessControlContext = preventor.findField(Thread.class, "inheritedAccessControlContext");
+    if(inheritedAccessControlContext != null) {
+      threadAccessControlContext = preventor.getFieldValue(inheritedAccessControlContext, thread);
+      spawnedAccessControlContext = preventor.getFieldValue(inheritedAccessControlContext, new Thread());
+    }
+    try {
+      if(started != null) {
+        started.countDown();
+        concurrent = started.await(5, TimeUnit.SECONDS);
+      }
+      Thread.sleep(sleepMs);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    if(executionOrder != null)
+      executionOrder.add(this);
+    invoked = true;
+    done.countDown();
+  }
+}
@@ -0,0 +1,77 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ReflectionCache}
+ */
+public class ReflectionCacheTest {
+
+  @Test
+  public void keys() {
+    final ReflectionCache cache = new ReflectionCache();
+    cache.put(ReflectionCache.fieldKey(Thread.class, "name"), "field");
+    cache.put(ReflectionCache.methodKey(Thread.class, "name", null), null);
+
+    assertEquals("field", cache.get(ReflectionCache.fieldKey(Thread.class, "name")));
+    assertSame(ReflectionCache.NOT_FOUND, cache.get(ReflectionCache.methodKey(Thread.class, "name", new Class[0])));
+    assertNull(cache.get(ReflectionCache.methodKey(Thread.class, "name", new Class[] {String.class})));
+    assertNull(cache.get(ReflectionCache.fieldKey(Object.class, "name")));
+    assertNull(cache.get(ReflectionCache.classKey("name", false)));
+    assertEquals(2, cache.getHits());
+    assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  public void preventorLookupsAreShared() {
+    final ClassLoaderLeakPreventor preventor1 = newPreventor(new URLClassLoader(new URL[0]));
+    final ClassLoaderLeakPreventor preventor2 = newPreventor(new URLClassLoader(new URL[0]));
+
+    final Field field = preventor1.findField(Thread.class, "contextClassLoader");
+    final Method method = preventor1.findMethod(Thread.class, "getContextClassLoader");
+    final Class<?> clazz = preventor1.findClass("java.lang.Thread");
+    assertNull(preventor1.findField(Thread.class, "noSuchField"));
+    assertNull(preventor1.findClass("no.such.Class"));
+
+    final long hits = preventor2.getReflectionCacheHits();
+    assertSame(field, preventor2.findField(Thread.class, "contextClassLoader"));
+    assertSame(method, preventor2.findMethod(Thread.class, "getContextClassLoader"));
+    assertSame(clazz, preventor2.findClass("java.lang.Thread"));
+    assertNull(preventor2.findField(Thread.class, "noSuchField"));
+    assertNull(preventor2.findClass("no.such.Class"));
+    assertEquals(hits + 5, preventor2.getReflectionCacheHits());
+  }
+
+  @Test
+  public void protectedClassesNotCached() {
+    final ClassLoaderLeakPreventor preventor = newPreventor(getClass().getClassLoader());
+    assertFalse(preventor.isReflectionCacheable(getClass()));
+    assertTrue(preventor.isReflectionCacheable(Thread.class));
+
+    final long hits = preventor.getReflectionCacheHits();
+    assertNotNull(preventor.findField(ReflectionCacheTest.class, "CONSTANT"));
+    assertNotNull(preventor.findField(ReflectionCacheTest.class, "CONSTANT"));
+    assertEquals(hits, preventor.getReflectionCacheHits());
+  }
+
+  @SuppressWarnings("unused")
+  private static final Object CONSTANT = new Object();
+
+  private static ClassLoaderLeakPreventor newPreventor(ClassLoader classLoader) {
+    return new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(), classLoader, new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+  }
+}
@@ -0,0 +1,95 @@
+package se.jiderhamn.classloader.leak.prevention;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for {@link ThreadSnapshot}
+ */
+public class ThreadSnapshotTest {
+
+  @Test
+  public void contextClassLoaderAndRunnable() throws InterruptedException {
+    final ClassLoader webAppClassLoader = new URLClassLoader(new URL[0]);
+    final CountDownLatch stop = new CountDownLatch(1);
+    final Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          stop.await();
+        }
+        catch (InterruptedException e) {
+          // Do nothing
+        }
+      }
+    };
+    final Thread thread = new Thread(runnable, "ThreadSnapshotTest");
+    thread.setContextClassLoader(new URLClassLoader(new URL[0], webAppClassLoader)); // Child of protected
+    thread.start();
+
+    try {
+      final ThreadSnapshot snapshot = newPreventor(webAppClassLoader, Collections.<ClassLoaderPreMortemCleanUp>emptyList())
+          .getThreadSnapshot();
+      for(int i = 0; i < snapshot.size(); i++) {
+        if(snapshot.getThread(i) == thread) {
+          assertTrue(snapshot.hasContextClassLoader(i));
+          assertTrue(snapshot.isThreadInClassLoader(i));
+          assertFalse(snapshot.isThreadLoadedByClassLoader(i));
+          assertFalse(snapshot.isRunnableLoadedByClassLoader(i));
+          assertSame(runnable, snapshot.getRunnable(i));
+          return;
+        }
+      }
+      fail("Thread not found in snapshot");
+    }
+    finally {
+      stop.countDown();
+      thread.join();
+    }
+  }
+
+  @Test
+  public void sharedDuringCleanUps() {
+    final List<ThreadSnapshot> snapshots = new ArrayList<ThreadSnapshot>();
+    final ClassLoaderPreMortemCleanUp recorder = new ClassLoaderPreMortemCleanUp() {
+      @Override
+      public void cleanUp(ClassLoaderLeakPreventor preventor) {
+        snapshots.add(preventor.getThreadSnapshot());
+      }
+    };
+    final ClassLoaderPreMortemCleanUp invalidator = new ClassLoaderPreMortemCleanUp() {
+      @Override
+      public void cleanUp(ClassLoaderLeakPreventor preventor) {
+        preventor.invalidateThreadSnapshot();
+      }
+    };
+
+    final ClassLoaderLeakPreventor preventor = newPreventor(new URLClassLoader(new URL[0]),
+        Arrays.asList(recorder, recorder, invalidator, recorder));
+    preventor.runCleanUps();
+
+    assertEquals(3, snapshots.size());
+    assertSame(snapshots.get(0), snapshots.get(1));
+    assertNotSame(snapshots.get(1), snapshots.get(2));
+    assertNotSame(preventor.getThreadSnapshot(), preventor.getThreadSnapshot()); // Not cached outside runCleanUps()
+  }
+
+  private static ClassLoaderLeakPreventor newPreventor(ClassLoader classLoader, List<ClassLoaderPreMortemCleanUp> cleanUps) {
+    return new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(), classLoader, new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(), cleanUps);
+  }
+}
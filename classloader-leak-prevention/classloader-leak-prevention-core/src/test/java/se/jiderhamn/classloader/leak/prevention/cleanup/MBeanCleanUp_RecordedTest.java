@@ -0,0 +1,109 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationRecorderInitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link MBeanCleanUp} with {@link MBeanRegistrationRecorderInitiator}
+ */
+public class MBeanCleanUp_RecordedTest {
+
+  private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+  private final ObjectName before = objectName("before");
+
+  private final ObjectName recorded = objectName("recorded");
+
+  private final ObjectName unregistered = objectName("unregistered");
+
+  @After
+  public void tearDown() throws Exception {
+    for(ObjectName objectName : new ObjectName[] {before, recorded, unregistered}) {
+      if(mBeanServer.isRegistered(objectName))
+        mBeanServer.unregisterMBean(objectName);
+    }
+  }
+
+  @Test
+  public void onlyRecordedMBeansAreUnregistered() throws Exception {
+    final MBeanRegistrationRecorderInitiator recorder = new MBeanRegistrationRecorderInitiator();
+    final ClassLoaderLeakPreventor preventor = newPreventor(recorder, new MBeanCleanUp(recorder));
+
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), before);
+    preventor.runPreClassLoaderInitiators();
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), recorded);
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), unregistered);
+    mBeanServer.unregisterMBean(unregistered);
+
+    preventor.runCleanUps();
+
+    assertTrue("Not recorded, since registered before initiator", mBeanServer.isRegistered(before));
+    assertFalse(mBeanServer.isRegistered(recorded));
+    assertEquals(Integer.valueOf(1), preventor.getMetrics().getCleanUps().get(0).getActions().get("mBeansUnregistered"));
+    assertNull("Recording stopped", recorder.stopRecording(preventor));
+  }
+
+  @Test
+  public void recorderKeepsTrackOfUnregistrations() throws Exception {
+    final MBeanRegistrationRecorderInitiator recorder = new MBeanRegistrationRecorderInitiator();
+    final ClassLoaderLeakPreventor preventor = newPreventor(recorder, new MBeanCleanUp(recorder));
+    preventor.runPreClassLoaderInitiators();
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), recorded);
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), unregistered);
+    mBeanServer.unregisterMBean(unregistered);
+
+    final Set<ObjectName> objectNames = recorder.stopRecording(preventor);
+    assertEquals(Collections.singleton(recorded), objectNames);
+  }
+
+  @Test
+  public void fullSweepFindsUnrecorded() throws Exception {
+    final MBeanRegistrationRecorderInitiator recorder = new MBeanRegistrationRecorderInitiator();
+    final MBeanCleanUp mBeanCleanUp = new MBeanCleanUp(recorder);
+    mBeanCleanUp.setFullSweep(true);
+    final ClassLoaderLeakPreventor preventor = newPreventor(recorder, mBeanCleanUp);
+
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), before);
+    preventor.runPreClassLoaderInitiators();
+    mBeanServer.registerMBean(new MBeanCleanUpTest.Custom(), recorded);
+
+    preventor.runCleanUps();
+
+    assertFalse(mBeanServer.isRegistered(before));
+    assertFalse(mBeanServer.isRegistered(recorded));
+  }
+
+  /** Create preventor protecting the classloader of the test */
+  private ClassLoaderLeakPreventor newPreventor(MBeanRegistrationRecorderInitiator recorder, MBeanCleanUp mBeanCleanUp) {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader().getParent(),
+        getClass().getClassLoader(), new StdLogger(), Collections.<PreClassLoaderInitiator>singletonList(recorder),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(mBeanCleanUp));
+    preventor.setMetricsHistorySize(0);
+    return preventor;
+  }
+
+  private static ObjectName objectName(String name) {
+    try {
+      return new ObjectName("se.jiderhamn:test=" + MBeanCleanUp_RecordedTest.class.getSimpleName() + ",name=" + name);
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that {@link StopThreadsCleanUp} waits for all threads using a single shared deadline, rather than waiting
+ * {@link StopThreadsCleanUp#threadWaitMs} for each thread.
+ */
+public class StopThreadsCleanUp_SharedDeadlineTest {
+
+  private static final int THREAD_WAIT_MS = 500;
+
+  @Test
+  public void sharedDeadline() {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader(),
+        new URLClassLoader(new URL[0]), new StdLogger(),
+        Collections.<PreClassLoaderInitiator>emptyList(), Collections.<ClassLoaderPreMortemCleanUp>emptyList());
+    final StopThreadsCleanUp stopThreadsCleanUp = new StopThreadsCleanUp();
+    stopThreadsCleanUp.setThreadWaitMs(THREAD_WAIT_MS);
+
+    final Thread interruptible = startThread(true);
+    final Map<Thread, Runnable> threadsToStop = new LinkedHashMap<Thread, Runnable>();
+    threadsToStop.put(interruptible, null);
+    for(int i = 0; i < 4; i++) {
+      final Thread uninterruptible = startThread(false);
+      threadsToStop.put(uninterruptible, null);
+    }
+
+    final long start = System.currentTimeMillis();
+    stopThreadsCleanUp.waitForAndStopThreads(preventor, Collections.<Thread, Runnable>emptyMap(), threadsToStop);
+    final long duration = System.currentTimeMillis() - start;
+
+    assertTrue("Waited " + duration + " ms", duration < 2 * THREAD_WAIT_MS); // Would be 4 * THREAD_WAIT_MS if waiting for each
+    for(Thread thread : threadsToStop.keySet()) {
+      waitForStop(thread);
+      assertFalse(thread.isAlive());
+    }
+  }
+
+  /** Start thread that sleeps for a long time, and that optionally terminates when interrupted */
+  private static Thread startThread(final boolean interruptible) {
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        final long end = System.currentTimeMillis() + 60000L;
+        while(System.currentTimeMillis() < end) {
+          try {
+            Thread.sleep(10L);
+          }
+          catch (InterruptedException e) {
+            if(interruptible)
+              return;
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /** Thread.stop() is asynchronous, so wait a little for it to take effect */
+  private static void waitForStop(Thread thread) {
+    try {
+      thread.join(THREAD_WAIT_MS);
+    }
+    catch (InterruptedException e) {
+      // Do nothing
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.LeakEvent;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that {@link ThreadLocalCleanUp} reports leaks as {@link LeakEvent}s, without building messages when the level
+ * is disabled.
+ */
+public class ThreadLocalCleanUp_LeakEventTest {
+
+  private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+
+  @Test
+  public void noMessageWhenInfoDisabled() throws Exception {
+    final RecordingLogger logger = new RecordingLogger(false);
+    final ToStringCounter value = new ToStringCounter();
+    runCleanUp(logger, value);
+    assertTrue(logger.events.isEmpty());
+    assertEquals("toString() not invoked", 0, value.invocations);
+  }
+
+  @Test
+  public void structuredEvent() throws Exception {
+    final RecordingLogger logger = new RecordingLogger(true);
+    final ToStringCounter value = new ToStringCounter();
+    final Thread thread = runCleanUp(logger, value);
+
+    final List<ThreadLocalCleanUp.ThreadLocalLeakEvent> leaks = new ArrayList<ThreadLocalCleanUp.ThreadLocalLeakEvent>();
+    for(LeakEvent event : logger.events) {
+      if(event.getThread() == thread)
+        leaks.add((ThreadLocalCleanUp.ThreadLocalLeakEvent) event);
+    }
+    assertEquals(1, leaks.size());
+    final ThreadLocalCleanUp.ThreadLocalLeakEvent leak = leaks.get(0);
+    assertEquals(LeakEvent.Level.INFO, leak.getLevel());
+    assertSame(threadLocal, leak.getThreadLocal());
+    assertSame(value, leak.getValue());
+    assertTrue(leak.isValueLoadedInWebApp());
+    assertFalse(leak.isCustomThreadLocal());
+    assertFalse(leak.isRemoved());
+    assertEquals(0, value.invocations);
+
+    assertTrue(leak.getMessage().contains("will be made stale"));
+    assertSame("Message cached", leak.getMessage(), leak.getMessage());
+    assertEquals(1, value.invocations);
+  }
+
+  /** Run {@link ThreadLocalCleanUp} with a thread that has the provided value in a ThreadLocal */
+  private Thread runCleanUp(RecordingLogger logger, final Object value) throws Exception {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader().getParent(),
+        getClass().getClassLoader(), logger, Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(new ThreadLocalCleanUp()));
+    preventor.setMetricsHistorySize(0);
+
+    final CountDownLatch valueSet = new CountDownLatch(1);
+    final CountDownLatch cleanedUp = new CountDownLatch(1);
+    final Thread thread = new Thread("ThreadLocalCleanUp_LeakEventTest") {
+      @Override
+      public void run() {
+        threadLocal.set(value);
+        valueSet.countDown();
+        try {
+          cleanedUp.await();
+        }
+        catch (InterruptedException e) {
+          // Do nothing
+        }
+      }
+    };
+    thread.start();
+    valueSet.await();
+    try {
+      preventor.runCleanUps();
+    }
+    finally {
+      cleanedUp.countDown();
+      thread.join();
+    }
+    return thread;
+  }
+
+  /** Logger that records events, and optionally has info level disabled */
+  private static class RecordingLogger extends StdLogger {
+
+    private final boolean infoEnabled;
+
+    private final List<LeakEvent> events = new ArrayList<LeakEvent>();
+
+    RecordingLogger(boolean infoEnabled) {
+      this.infoEnabled = infoEnabled;
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+      return false;
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+      return infoEnabled;
+    }
+
+    @Override
+    public void log(LeakEvent event) {
+      events.add(event);
+    }
+  }
+
+  /** Value that counts invocations of {@link #toString()} */
+  private static class ToStringCounter {
+
+    private int invocations;
+
+    @Override
+    public String toString() {
+      invocations++;
+      return "ToStringCounter";
+    }
+  }
+}
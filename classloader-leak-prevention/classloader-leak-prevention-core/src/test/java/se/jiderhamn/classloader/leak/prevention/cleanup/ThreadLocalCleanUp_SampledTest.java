@@ -0,0 +1,144 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+import se.jiderhamn.classloader.leak.prevention.preinit.ThreadLocalSamplerInitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ThreadLocalCleanUp} with {@link ThreadLocalSamplerInitiator}
+ */
+public class ThreadLocalCleanUp_SampledTest {
+
+  private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+
+  @Test
+  public void sampledEntriesAreCleared() throws Exception {
+    assertCleared(50);
+  }
+
+  @Test
+  public void threadsNotSampledAreInspected() throws Exception {
+    assertCleared(60 * 60 * 1000);
+  }
+
+  @Test
+  public void indexDoesNotKeepValues() throws Exception {
+    final ThreadLocalCleanUp threadLocalCleanUp = new ThreadLocalCleanUp();
+    final ThreadLocalSamplerInitiator sampler = new ThreadLocalSamplerInitiator(threadLocalCleanUp);
+    sampler.setSampleIntervalMs(10);
+    final ClassLoaderLeakPreventor preventor = newPreventor(threadLocalCleanUp, sampler);
+    preventor.runPreClassLoaderInitiators();
+
+    final WeakReference<?>[] value = new WeakReference<?>[1];
+    Thread worker = new Thread("ThreadLocalCleanUp_SampledTest") {
+      @Override
+      public void run() {
+        final ThreadBoundValue threadBoundValue = new ThreadBoundValue();
+        value[0] = new WeakReference<Object>(threadBoundValue);
+        threadLocal.set(threadBoundValue);
+        try {
+          Thread.sleep(200); // Allow for a few samples
+        }
+        catch (InterruptedException e) {
+          // Terminate
+        }
+      }
+    };
+    worker.start();
+    worker.join();
+    //noinspection UnusedAssignment
+    worker = null;
+
+    try {
+      for(int i = 0; i < 100 && value[0].get() != null; i++) {
+        System.gc();
+      }
+      assertNull("Value of terminated thread garbage collected while sampling", value[0].get());
+    }
+    finally {
+      preventor.runCleanUps();
+    }
+  }
+
+  private void assertCleared(long sampleIntervalMs) throws Exception {
+    final ThreadLocalCleanUp threadLocalCleanUp = new ThreadLocalCleanUp();
+    final ThreadLocalSamplerInitiator sampler = new ThreadLocalSamplerInitiator(threadLocalCleanUp);
+    sampler.setSampleIntervalMs(sampleIntervalMs);
+    final ClassLoaderLeakPreventor preventor = newPreventor(threadLocalCleanUp, sampler);
+
+    final CountDownLatch valueSet = new CountDownLatch(1);
+    final CountDownLatch cleanedUp = new CountDownLatch(1);
+    final Object[] valueAfterCleanUp = new Object[1];
+    final Thread worker = new Thread("ThreadLocalCleanUp_SampledTest") {
+      @Override
+      public void run() {
+        threadLocal.set(new Value());
+        valueSet.countDown();
+        try {
+          cleanedUp.await();
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        valueAfterCleanUp[0] = threadLocal.get();
+      }
+    };
+    worker.start();
+    valueSet.await();
+
+    preventor.runPreClassLoaderInitiators();
+    final Thread samplerThread = findThread("ClassLoaderLeakPreventor ThreadLocal sampler");
+    assertTrue(preventor.isCleanUpThread(samplerThread));
+
+    Thread.sleep(300); // Allow for a few samples
+
+    preventor.runCleanUps();
+    assertFalse("Sampler terminated", samplerThread.isAlive());
+    assertFalse(preventor.isCleanUpThread(samplerThread));
+    assertNull("Sampling stopped", sampler.stopSampling(preventor));
+
+    cleanedUp.countDown();
+    worker.join();
+    assertNull("ThreadLocal cleared", valueAfterCleanUp[0]);
+    assertTrue(preventor.getMetrics().getCleanUps().get(0).getActions().get("threadLocalsCleared") >= 1);
+  }
+
+  private ClassLoaderLeakPreventor newPreventor(ThreadLocalCleanUp threadLocalCleanUp, ThreadLocalSamplerInitiator sampler) {
+    threadLocalCleanUp.setSampler(sampler);
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader().getParent(),
+        getClass().getClassLoader(), new StdLogger(), Collections.<PreClassLoaderInitiator>singletonList(sampler),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(threadLocalCleanUp));
+    preventor.setMetricsHistorySize(0);
+    return preventor;
+  }
+
+  private static Thread findThread(String name) {
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      if(name.equals(thread.getName()) && thread.isAlive())
+        return thread;
+    }
+    throw new AssertionError("Thread " + name + " not found");
+  }
+
+  /** Value loaded by the protected ClassLoader */
+  private static class Value {
+  }
+
+  /** Value loaded by the protected ClassLoader, referring to the thread it was created in */
+  private static class ThreadBoundValue {
+    @SuppressWarnings("unused")
+    private final Thread thread = Thread.currentThread();
+  }
+}
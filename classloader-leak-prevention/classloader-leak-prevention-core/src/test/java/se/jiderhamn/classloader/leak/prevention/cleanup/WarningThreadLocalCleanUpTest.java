@@ -0,0 +1,112 @@
+package se.jiderhamn.classloader.leak.prevention.cleanup;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderLeakPreventor;
+import se.jiderhamn.classloader.leak.prevention.ClassLoaderPreMortemCleanUp;
+import se.jiderhamn.classloader.leak.prevention.PreClassLoaderInitiator;
+import se.jiderhamn.classloader.leak.prevention.StdLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link WarningThreadLocalCleanUp}, and subclasses of {@link ThreadLocalCleanUp} overriding the
+ * deprecated processLeak() taking a message
+ */
+public class WarningThreadLocalCleanUpTest {
+
+  private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>();
+
+  @Test
+  public void entryLeftInPlace() throws Exception {
+    final RecordingLogger logger = new RecordingLogger();
+    final Value value = new Value();
+    assertSame("Value not removed", value, runCleanUp(new WarningThreadLocalCleanUp(), logger, value));
+    assertEquals(1, logger.warnings.size());
+    assertTrue(logger.warnings.get(0).contains("with value Value of type " + Value.class.getName()));
+  }
+
+  @Test
+  public void legacyProcessLeakInvoked() throws Exception {
+    final List<String> messages = new ArrayList<String>();
+    final ThreadLocalCleanUp cleanUp = new ThreadLocalCleanUp() {
+      @SuppressWarnings("deprecation")
+      @Override
+      protected void processLeak(ClassLoaderLeakPreventor preventor, Thread thread, Reference<?> entry,
+                                 ThreadLocal<?> threadLocal, Object value, String message) {
+        messages.add(message);
+      }
+    };
+    final Value value = new Value();
+    assertSame("Value not removed", value, runCleanUp(cleanUp, new RecordingLogger(), value));
+    assertEquals(1, messages.size());
+    assertTrue(messages.get(0).startsWith("ThreadLocal of type java.lang.ThreadLocal"));
+  }
+
+  /**
+   * Run cleanup with a thread that has the provided value in a ThreadLocal
+   * @return The value of the ThreadLocal in the thread after the cleanup
+   */
+  private Object runCleanUp(ThreadLocalCleanUp cleanUp, RecordingLogger logger, final Object value) throws Exception {
+    final ClassLoaderLeakPreventor preventor = new ClassLoaderLeakPreventor(ClassLoader.getSystemClassLoader().getParent(),
+        getClass().getClassLoader(), logger, Collections.<PreClassLoaderInitiator>emptyList(),
+        Collections.<ClassLoaderPreMortemCleanUp>singletonList(cleanUp));
+    preventor.setMetricsHistorySize(0);
+
+    final CountDownLatch valueSet = new CountDownLatch(1);
+    final CountDownLatch cleanedUp = new CountDownLatch(1);
+    final Object[] valueAfterCleanUp = new Object[1];
+    final Thread thread = new Thread("WarningThreadLocalCleanUpTest") {
+      @Override
+      public void run() {
+        threadLocal.set(value);
+        valueSet.countDown();
+        try {
+          cleanedUp.await();
+        }
+        catch (InterruptedException e) {
+          // Do nothing
+        }
+        valueAfterCleanUp[0] = threadLocal.get();
+      }
+    };
+    thread.start();
+    valueSet.await();
+    try {
+      preventor.runCleanUps();
+    }
+    finally {
+      cleanedUp.countDown();
+      thread.join();
+    }
+    return valueAfterCleanUp[0];
+  }
+
+  /** Logger that records the warnings about ThreadLocals */
+  private static class RecordingLogger extends StdLogger {
+
+    private final List<String> warnings = new ArrayList<String>();
+
+    @Override
+    public void warn(String msg) {
+      if(msg.contains("ThreadLocal"))
+        warnings.add(msg);
+      super.warn(msg);
+    }
+  }
+
+  /** Value loaded by the protected ClassLoader */
+  private static class Value {
+    @Override
+    public String toString() {
+      return "Value";
+    }
+  }
+}
@@ -15,15 +15,22 @@
  */
 package se.jiderhamn.classloader.leak.prevention;
 
+import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import se.jiderhamn.classloader.leak.prevention.cleanup.MBeanCleanUp;
 import se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookCleanUp;
 import se.jiderhamn.classloader.leak.prevention.cleanup.StopThreadsCleanUp;
+import se.jiderhamn.classloader.leak.prevention.cleanup.ThreadLocalCleanUp;
+import se.jiderhamn.classloader.leak.prevention.preinit.MBeanRegistrationRecorderInitiator;
 import se.jiderhamn.classloader.leak.prevention.preinit.OracleJdbcThreadInitiator;
+import se.jiderhamn.classloader.leak.prevention.preinit.ThreadLocalSamplerInitiator;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
@@ -88,6 +95,117 @@ import static se.jiderhamn.classloader.leak.prevention.cleanup.ShutdownHookClean
  *       If set to -1 there will be no waiting at all, but Thread is allowed to run until finished.
  *     </td>
  *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.cleanUpThreads</code></td>
+ *     <td><code>1</code></td>
+ *     <td>
+ *       Max no of threads to use for running the cleanups at application shutdown. If greater than 1, independent 
+ *       cleanups will run in parallel.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.preInitiatorThreads</code></td>
+ *     <td><code>1</code></td>
+ *     <td>
+ *       Max no of threads to use for running the initiators at application startup. If greater than 1, independent 
+ *       initiators will run in parallel.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.metricsHistorySize</code></td>
+ *     <td><code>0</code></td>
+ *     <td>
+ *       No of redeploys for which timing and outcome of each initiator and cleanup is kept in the 
+ *       <code>se.jiderhamn.classloader.leak.prevention:type=LeakPreventionMetrics</code> MBean. 
+ *       If set to 0, no MBean will be registered, since the MBean is registered JVM wide and outlives the application.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.recordMBeanRegistrations</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should MBean registrations be recorded while the application is running, so that only those MBeans need to be 
+ *       inspected at application shutdown, instead of all MBeans in the server? MBeans registered before the listener
+ *       is initialized will not be recorded.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.mBeanFullSweep</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       If MBean registrations are recorded, should all MBeans in the server still be inspected at application
+ *       shutdown, to verify that no MBean loaded by the application was missed?
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.threadLocalSampleIntervalMs</code></td>
+ *     <td><code>0</code></td>
+ *     <td>
+ *       If greater than 0, the ThreadLocals of all threads are sampled in the background with this interval in 
+ *       milliseconds while the application is running, so that only the potential leaks found need to be visited at
+ *       application shutdown. ThreadLocals added to a thread after it was last sampled will not be cleared.
+ *       If 0, all ThreadLocals of all threads are inspected at application shutdown.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.leakReportDirectory</code></td>
+ *     <td>(none)</td>
+ *     <td>
+ *       Directory to write a report of the potential leaks found to at application shutdown, for aggregation by 
+ *       external tools. If not set, no report is written.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.leakReportFormat</code></td>
+ *     <td><code>json</code></td>
+ *     <td>Format of leak report; <code>json</code> or <code>binary</code></td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.asyncUndeploy</code></td>
+ *     <td><code>false</code></td>
+ *     <td>
+ *       Should the cleanups that may take considerable time, such as waiting for threads and shutdown hooks, continue
+ *       in a background thread after application shutdown, rather than delaying the undeploy of the application?
+ *       Requires this library to be outside the application, such as in the lib directory of the server, or the 
+ *       cleanups will run synchronously.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.leakVerificationGcCycles</code></td>
+ *     <td><code>0</code></td>
+ *     <td>
+ *       If greater than 0, the classloader is watched after application shutdown, and a warning is logged if it has 
+ *       not been garbage collected after this no of major garbage collections. No garbage collections are triggered.
+ *       Requires this library to be loaded outside the web app, i.e. in the application server classpath.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.leakVerificationTimeoutMs</code></td>
+ *     <td><code>0</code></td>
+ *     <td>
+ *       If greater than 0, the classloader is watched after application shutdown, and a warning is logged if it has 
+ *       not been garbage collected within this no of milliseconds.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.preInitiatorBudgetMs</code></td>
+ *     <td><code>0</code></td>
+ *     <td>
+ *       If greater than 0, initiators for optional subsystems that are not present, such as JAXB or the Oracle 
+ *       JDBC driver, are skipped at application startup, and once this no of milliseconds has been spent the 
+ *       remaining ones are deferred to a background thread. This shortens startup, at the risk of a leak if the 
+ *       application uses a subsystem before its deferred initiator has run. Initiators for parts of the JDK, such as 
+ *       AWT, always run at startup.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <td><code>ClassLoaderLeakPreventor.skipCompletedPreInitiators</code></td>
+ *     <td><code>true</code></td>
+ *     <td>
+ *       Should initiators of JVM wide state, such as AWT or the security policy, be skipped at application startup 
+ *       if they have already completed in this JVM, for example for a previous deployment?
+ *     </td>
+ *   </tr>
  * </table>
  * 
  * 
@@ -123,6 +241,9 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
 
   protected ClassLoaderLeakPreventor classLoaderLeakPreventor;
 
+  /** Should slow cleanups continue in the background after {@link #contextDestroyed(ServletContextEvent)} returns? */
+  protected boolean asyncUndeploy;
+
   /** Other {@link javax.servlet.ServletContextListener}s to use also */
   protected final List<ServletContextListener> otherListeners = new LinkedList<ServletContextListener>();
 
@@ -191,6 +312,45 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
      * If set to -1 there will be no waiting at all, but Thread is allowed to run until finished.
      */
     int shutdownHookWaitMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.shutdownHookWaitMs", SHUTDOWN_HOOK_WAIT_MS_DEFAULT);
+    
+    // Max no of threads to use for running the cleanups; if greater than 1, independent cleanups will run in parallel
+    int cleanUpThreads = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.cleanUpThreads", 1);
+    
+    // Max no of threads to use for running the initiators; if greater than 1, independent initiators will run in parallel
+    int preInitiatorThreads = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.preInitiatorThreads", 1);
+    
+    // No of redeploys to keep metrics for in JMX; 0 = no MBean
+    int metricsHistorySize = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.metricsHistorySize", 0);
+    
+    // Should MBean registrations be recorded, so that only those need to be inspected at application shutdown?
+    boolean recordMBeanRegistrations = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.recordMBeanRegistrations"));
+    
+    // Should all MBeans be inspected at application shutdown, even if registrations are recorded?
+    boolean mBeanFullSweep = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.mBeanFullSweep"));
+    
+    // No of milliseconds between background samples of ThreadLocals; 0 = inspect all ThreadLocals at shutdown
+    int threadLocalSampleIntervalMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.threadLocalSampleIntervalMs", 0);
+    
+    // Directory to write leak report to at application shutdown, if any
+    String leakReportDirectory = servletContext.getInitParameter("ClassLoaderLeakPreventor.leakReportDirectory");
+    
+    // Write leak report in binary format rather than JSON?
+    boolean binaryLeakReport = "binary".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.leakReportFormat"));
+    
+    // Should slow cleanups continue in a background thread after application shutdown?
+    asyncUndeploy = "true".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.asyncUndeploy"));
+    
+    // No of major GCs the classloader may survive after application shutdown before reported as leak; 0 = no limit
+    int leakVerificationGcCycles = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.leakVerificationGcCycles", 0);
+    
+    // No of milliseconds the classloader may survive after application shutdown before reported as leak; 0 = no limit
+    int leakVerificationTimeoutMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.leakVerificationTimeoutMs", 0);
+    
+    // No of milliseconds to spend on pre-initiators at startup before deferring the rest; 0 = run all eagerly
+    int preInitiatorBudgetMs = getIntInitParameter(servletContext, "ClassLoaderLeakPreventor.preInitiatorBudgetMs", 0);
+    
+    // Should initiators of JVM wide state be skipped if already completed in this JVM, i.e. by a previous deployment?
+    boolean skipCompletedPreInitiators = ! "false".equals(servletContext.getInitParameter("ClassLoaderLeakPreventor.skipCompletedPreInitiators"));
 
     final ClassLoader webAppClassLoader = Thread.currentThread().getContextClassLoader();
     info("Settings for " + this.getClass().getName() + " (CL: 0x" +
@@ -200,10 +360,33 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
     info("  executeShutdownHooks = " + executeShutdownHooks);
     info("  threadWaitMs = " + threadWaitMs + " ms");
     info("  shutdownHookWaitMs = " + shutdownHookWaitMs + " ms");
+    info("  cleanUpThreads = " + cleanUpThreads);
+    info("  preInitiatorThreads = " + preInitiatorThreads);
+    info("  metricsHistorySize = " + metricsHistorySize);
+    info("  recordMBeanRegistrations = " + recordMBeanRegistrations);
+    info("  mBeanFullSweep = " + mBeanFullSweep);
+    info("  threadLocalSampleIntervalMs = " + threadLocalSampleIntervalMs + " ms");
+    info("  leakReportDirectory = " + leakReportDirectory);
+    info("  leakReportFormat = " + (binaryLeakReport ? "binary" : "json"));
+    info("  asyncUndeploy = " + asyncUndeploy);
+    info("  leakVerificationGcCycles = " + leakVerificationGcCycles);
+    info("  leakVerificationTimeoutMs = " + leakVerificationTimeoutMs + " ms");
+    info("  preInitiatorBudgetMs = " + preInitiatorBudgetMs + " ms");
+    info("  skipCompletedPreInitiators = " + skipCompletedPreInitiators);
     
     // Create factory with default PreClassLoaderInitiators and ClassLoaderPreMortemCleanUps
     final ClassLoaderLeakPreventorFactory classLoaderLeakPreventorFactory = new ClassLoaderLeakPreventorFactory();
     
+    classLoaderLeakPreventorFactory.setCleanUpThreads(cleanUpThreads);
+    classLoaderLeakPreventorFactory.setPreInitiatorThreads(preInitiatorThreads);
+    classLoaderLeakPreventorFactory.setThreadWaitMs(threadWaitMs);
+    classLoaderLeakPreventorFactory.setMetricsHistorySize(metricsHistorySize);
+    if(leakReportDirectory != null)
+      classLoaderLeakPreventorFactory.setLeakReportDirectory(new File(leakReportDirectory), binaryLeakReport);
+    classLoaderLeakPreventorFactory.setLeakVerification(leakVerificationGcCycles, leakVerificationTimeoutMs);
+    classLoaderLeakPreventorFactory.setPreInitiatorBudgetMs(preInitiatorBudgetMs);
+    classLoaderLeakPreventorFactory.setSkipCompletedPreInitiators(skipCompletedPreInitiators);
+    
     // Configure default PreClassLoaderInitiators 
     if(! startOracleTimeoutThread)
       classLoaderLeakPreventorFactory.removePreInitiator(OracleJdbcThreadInitiator.class);
@@ -217,6 +400,22 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
     stopThreadsCleanUp.setStopThreads(stopThreads);
     stopThreadsCleanUp.setStopTimerThreads(stopTimerThreads);
     stopThreadsCleanUp.setThreadWaitMs(threadWaitMs);
+    
+    final MBeanCleanUp mBeanCleanUp = classLoaderLeakPreventorFactory.getCleanUp(MBeanCleanUp.class);
+    if(recordMBeanRegistrations) {
+      final MBeanRegistrationRecorderInitiator mBeanRegistrationRecorder = new MBeanRegistrationRecorderInitiator();
+      classLoaderLeakPreventorFactory.addPreInitiator(mBeanRegistrationRecorder);
+      mBeanCleanUp.setRegistrationRecorder(mBeanRegistrationRecorder);
+    }
+    mBeanCleanUp.setFullSweep(mBeanFullSweep);
+    
+    if(threadLocalSampleIntervalMs > 0) {
+      final ThreadLocalCleanUp threadLocalCleanUp = classLoaderLeakPreventorFactory.getCleanUp(ThreadLocalCleanUp.class);
+      final ThreadLocalSamplerInitiator threadLocalSampler = new ThreadLocalSamplerInitiator(threadLocalCleanUp);
+      threadLocalSampler.setSampleIntervalMs(threadLocalSampleIntervalMs);
+      classLoaderLeakPreventorFactory.addPreInitiator(threadLocalSampler);
+      threadLocalCleanUp.setSampler(threadLocalSampler);
+    }
 
 
     classLoaderLeakPreventor = classLoaderLeakPreventorFactory.newLeakPreventor(webAppClassLoader);
@@ -239,7 +438,24 @@ public class ClassLoaderLeakPreventorListener implements ServletContextListener
       }
     }
     
-    classLoaderLeakPreventor.runCleanUps();
+    if(asyncUndeploy) {
+      final Future<LeakReport> cleanUps = classLoaderLeakPreventor.runCleanUpsAsync();
+      if(cleanUps.isDone()) { // Cleanups were run synchronously
+        try {
+          cleanUps.get();
+        }
+        catch (ExecutionException e) {
+          classLoaderLeakPreventor.error(e.getCause());
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Restore interrupted status; cannot happen when done
+        }
+      }
+      else
+        info("Cleanups continuing in background; any errors will be logged when they occur");
+    }
+    else
+      classLoaderLeakPreventor.runCleanUps();
   }
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,220 @@
+package se.jiderhamn;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+/**
+ * Lightweight alternative to {@link HeapDumper}, that uses the <code>GC.class_histogram</code> diagnostic command to
+ * get the no of instances and bytes per class, without writing anything to disk. Requires a HotSpot JVM of Java 8 or
+ * later.
+ *
+ * When filtering by {@link ClassLoader}, only classes defined by that {@link ClassLoader} are included. However the
+ * histogram itself does not tell which {@link ClassLoader} defined a class, so the counts of such a class include
+ * instances of classes with the same name defined by other {@link ClassLoader}s.
+ */
+public class ClassHistogram {
+
+  /** The name of the DiagnosticCommand MBean */
+  private static final String DIAGNOSTIC_COMMAND_BEAN_NAME = "com.sun.management:type=DiagnosticCommand";
+
+  /** Histogram row, i.e. "   1:      12345     1234567  java.lang.String (java.base@11)" */
+  private static final Pattern ROW = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)");
+
+  /** Class names, sorted */
+  private final String[] classNames;
+
+  /** No of instances, per index in {@link #classNames} */
+  private final long[] instances;
+
+  /** No of bytes, per index in {@link #classNames} */
+  private final long[] bytes;
+
+  private ClassHistogram(String[] classNames, long[] instances, long[] bytes) {
+    this.classNames = classNames;
+    this.instances = instances;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Create histogram of the heap.
+   * @param live Include only live objects? If true, a full garbage collection is triggered.
+   */
+  public static ClassHistogram create(boolean live) {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final String[] arguments = live ? new String[0] : new String[] {"-all"};
+      return parse((String) server.invoke(new ObjectName(DIAGNOSTIC_COMMAND_BEAN_NAME), "gcClassHistogram",
+          new Object[] {arguments}, new String[] {String[].class.getName()}));
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Parse the output of the <code>GC.class_histogram</code> diagnostic command */
+  static ClassHistogram parse(String histogram) {
+    final List<String[]> rows = new ArrayList<String[]>();
+    for(String line : histogram.split("\n")) {
+      final Matcher matcher = ROW.matcher(line);
+      if(matcher.find())
+        rows.add(new String[] {matcher.group(3), matcher.group(1), matcher.group(2)});
+    }
+
+    final String[] classNames = new String[rows.size()];
+    for(int i = 0; i < classNames.length; i++) {
+      classNames[i] = rows.get(i)[0];
+    }
+    Arrays.sort(classNames);
+
+    // The same name may appear on multiple rows, if defined by multiple ClassLoaders
+    int size = 0;
+    for(int i = 0; i < classNames.length; i++) {
+      if(i == 0 || ! classNames[i].equals(classNames[i - 1]))
+        classNames[size++] = classNames[i];
+    }
+
+    final ClassHistogram output = new ClassHistogram(Arrays.copyOf(classNames, size), new long[size], new long[size]);
+    for(String[] row : rows) {
+      final int index = Arrays.binarySearch(output.classNames, row[0]);
+      output.instances[index] += Long.parseLong(row[1]);
+      output.bytes[index] += Long.parseLong(row[2]);
+    }
+    return output;
+  }
+
+  /** Get histogram of the classes with the provided names only */
+  public ClassHistogram filter(Collection<String> classNames) {
+    final Set<String> names = new HashSet<String>(classNames);
+    int size = 0;
+    for(String className : this.classNames) {
+      if(names.contains(className))
+        size++;
+    }
+
+    final ClassHistogram output = new ClassHistogram(new String[size], new long[size], new long[size]);
+    int j = 0;
+    for(int i = 0; i < this.classNames.length; i++) {
+      if(names.contains(this.classNames[i])) {
+        output.classNames[j] = this.classNames[i];
+        output.instances[j] = this.instances[i];
+        output.bytes[j] = this.bytes[i];
+        j++;
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Get histogram of the classes defined by the provided {@link ClassLoader} only, i.e. classes for which
+   * {@link Class#getClassLoader()} is the provided {@link ClassLoader}. Classes only loaded via delegation to a parent
+   * are not included. Unless it is a {@link RedefiningClassLoader}, the classes are read from the 
+   * {@link ClassLoader} using reflection, which only works up until Java 11, and on Java 9+ requires 
+   * <code>--add-opens java.base/java.lang=ALL-UNNAMED</code>.
+   */
+  public ClassHistogram filter(ClassLoader classLoader) {
+    final List<String> classNames = new ArrayList<String>();
+    for(Class<?> clazz : getClasses(classLoader)) {
+      if(clazz.getClassLoader() == classLoader)
+        classNames.add(clazz.getName());
+    }
+    return filter(classNames);
+  }
+
+  /** Get the classes loaded by the provided {@link ClassLoader} */
+  private static List<Class<?>> getClasses(ClassLoader classLoader) {
+    final List<Class<?>> output = new ArrayList<Class<?>>();
+    if(classLoader instanceof RedefiningClassLoader) {
+      for(String className : ((RedefiningClassLoader) classLoader).getDefinedClassNames()) {
+        try {
+          output.add(Class.forName(className, false, classLoader)); // Already loaded
+        }
+        catch (ClassNotFoundException e) {
+          // Definition failed; ignore
+        }
+        catch (LinkageError e) {
+          // Definition failed; ignore
+        }
+      }
+      return output;
+    }
+
+    final Object[] classes;
+    try {
+      final Field classesField = ClassLoader.class.getDeclaredField("classes");
+      classesField.setAccessible(true);
+      final Collection<?> classCollection = (Collection<?>) classesField.get(classLoader);
+      synchronized (classCollection) { // Same lock as ClassLoader uses
+        classes = classCollection.toArray();
+      }
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Unable to get classes of " + classLoader, e);
+    }
+
+    for(Object clazz : classes) {
+      output.add((Class<?>) clazz);
+    }
+    return output;
+  }
+
+  /** Get no of classes in histogram */
+  public int size() {
+    return classNames.length;
+  }
+
+  /** Get no of instances of the class with the provided name, or 0 if not found */
+  public long getInstances(String className) {
+    final int index = Arrays.binarySearch(classNames, className);
+    return (index >= 0) ? instances[index] : 0;
+  }
+
+  /** Get no of bytes used by instances of the class with the provided name, or 0 if not found */
+  public long getBytes(String className) {
+    final int index = Arrays.binarySearch(classNames, className);
+    return (index >= 0) ? bytes[index] : 0;
+  }
+
+  /** Get total no of instances */
+  public long getTotalInstances() {
+    long output = 0;
+    for(long i : instances) {
+      output += i;
+    }
+    return output;
+  }
+
+  /** Get total no of bytes */
+  public long getTotalBytes() {
+    long output = 0;
+    for(long b : bytes) {
+      output += b;
+    }
+    return output;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder output = new StringBuilder();
+    output.append(String.format("%15s %15s  %s%n", "#instances", "#bytes", "class name"));
+    for(int i = 0; i < classNames.length; i++) {
+      output.append(String.format("%15d %15d  %s%n", instances[i], bytes[i], classNames[i]));
+    }
+    output.append(String.format("%15d %15d  %s", getTotalInstances(), getTotalBytes(), "Total"));
+    return output.toString();
+  }
+}
@@ -0,0 +1,678 @@
+package se.jiderhamn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.jiderhamn.classloader.ZombieMarker;
+
+/**
+ * Finds the shortest paths from garbage collection roots to the leaked classloaders in a HPROF heap dump, such as
+ * the ones created by {@link HeapDumper}. Leaked classloaders are identified by referencing a {@link ZombieMarker}.
+ *
+ * The dump is memory mapped rather than read onto the heap, and only the positions of the object records are indexed,
+ * in primitive arrays, so that multi-GB dumps can be analyzed with a moderate heap. Primitive arrays are not indexed
+ * at all, since they cannot reference other objects. References from {@link java.lang.ref.Reference#referent} are
+ * ignored, since they do not prevent garbage collection.
+ *
+ * Only the HotSpot flavour of the format is supported, where class names (<code>LOAD CLASS</code> records) precede
+ * the heap dump.
+ */
+public class HeapDumpAnalyzer {
+
+  private static final String HEADER_PREFIX = "JAVA PROFILE ";
+
+  // Record tags
+  private static final int UTF8 = 0x01;
+  private static final int LOAD_CLASS = 0x02;
+  private static final int HEAP_DUMP = 0x0C;
+  private static final int HEAP_DUMP_SEGMENT = 0x1C;
+
+  // Heap dump sub-record tags
+  private static final int ROOT_UNKNOWN = 0xFF;
+  private static final int ROOT_JNI_GLOBAL = 0x01;
+  private static final int ROOT_JNI_LOCAL = 0x02;
+  private static final int ROOT_JAVA_FRAME = 0x03;
+  private static final int ROOT_NATIVE_STACK = 0x04;
+  private static final int ROOT_STICKY_CLASS = 0x05;
+  private static final int ROOT_THREAD_BLOCK = 0x06;
+  private static final int ROOT_MONITOR_USED = 0x07;
+  private static final int ROOT_THREAD_OBJECT = 0x08;
+  private static final int CLASS_DUMP = 0x20;
+  private static final int INSTANCE_DUMP = 0x21;
+  private static final int OBJ_ARRAY_DUMP = 0x22;
+  private static final int PRIM_ARRAY_DUMP = 0x23;
+
+  /** Basic type of object references */
+  private static final int OBJECT = 2;
+
+  // Kinds of references, see ReferenceVisitor
+  private static final int FIELD = 0;
+  private static final int STATIC_FIELD = 1;
+  private static final int ARRAY_ELEMENT = 2;
+  private static final int CLASS = 3;
+  private static final int SUPER_CLASS = 4;
+  private static final int CLASS_LOADER = 5;
+  private static final int SIGNERS = 6;
+  private static final int PROTECTION_DOMAIN = 7;
+  private static final int CONSTANT_POOL = 8;
+
+  /** parent value of objects not (yet) reached */
+  private static final int UNVISITED = -2;
+
+  /** parent value of GC roots */
+  private static final int ROOT = -1;
+
+  private final MappedFile file;
+
+  /** Size of object identifiers; 4 or 8 */
+  private int idSize;
+
+  /** Position of UTF8 record body per string id */
+  private final LongLongMap strings = new LongLongMap();
+
+  /** String id of the name per class object id */
+  private final LongLongMap classNames = new LongLongMap();
+
+  private final Map<Long, ClassInfo> classes = new HashMap<Long, ClassInfo>();
+
+  /** Object index per object id */
+  private final LongLongMap objectIndexes = new LongLongMap();
+
+  /** Position of sub-record per object index */
+  private long[] objectPositions = new long[1024];
+
+  private int noOfObjects;
+
+  /** Root type per object id */
+  private final LongLongMap roots = new LongLongMap();
+
+  /** Ids of the {@link ZombieMarker} classes */
+  private final LongLongMap zombieMarkerClasses = new LongLongMap();
+
+  /** Indexes of the {@link ZombieMarker} instances */
+  private final BitSet zombieMarkers = new BitSet();
+
+  /** Class id of {@link java.lang.ref.Reference}, or 0 */
+  private long referenceClassId;
+
+  public HeapDumpAnalyzer(File hprofFile) throws IOException {
+    this.file = new MappedFile(hprofFile);
+  }
+
+  /**
+   * Find the shortest path from a garbage collection root to each leaked classloader, as identified by
+   * {@link ZombieMarker}.
+   * @return One textual reference chain per leaked classloader, starting with the GC root and ending with the
+   *   classloader. Empty if there are no leaks.
+   */
+  public List<String> findZombieRootPaths() throws IOException {
+    index();
+
+    final int[] parents = findShortestPaths(zombieMarkers);
+    final List<String> output = new ArrayList<String>();
+    for(int marker = zombieMarkers.nextSetBit(0); marker >= 0; marker = zombieMarkers.nextSetBit(marker + 1)) {
+      if(parents[marker] != UNVISITED) {
+        final List<Integer> path = new ArrayList<Integer>();
+        for(int i = parents[marker]; i != ROOT; i = parents[i]) { // Skip the marker itself; end with the classloader
+          path.add(i);
+        }
+        Collections.reverse(path);
+        output.add(describePath(path));
+      }
+    }
+    return output;
+  }
+
+  /** Print the paths to leaked classloaders in the heap dump file provided as argument */
+  public static void main(String[] args) throws IOException {
+    if(args.length != 1) {
+      System.err.println("Usage: " + HeapDumpAnalyzer.class.getName() + " <file" + HeapDumper.HEAP_DUMP_EXTENSION + ">");
+      System.exit(1);
+    }
+
+    final long start = System.currentTimeMillis();
+    final List<String> paths = new HeapDumpAnalyzer(new File(args[0])).findZombieRootPaths();
+    System.out.println(paths.size() + " leaked classloader(s) found in " + (System.currentTimeMillis() - start) + " ms");
+    for(String path : paths) {
+      System.out.println();
+      System.out.println(path);
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  // Indexing
+
+  /** Scan the whole file, indexing strings, classes, objects and GC roots */
+  private void index() throws IOException {
+    long pos = 0;
+    while(file.get(pos) != 0) { // Null terminated format name, i.e. "JAVA PROFILE 1.0.2"
+      pos++;
+    }
+    final String format = file.getString(0, (int) pos);
+    if(! format.startsWith(HEADER_PREFIX))
+      throw new IOException("Not a HPROF file: " + format);
+    idSize = file.getInt(pos + 1);
+    pos += 1 + 4 + 8; // Terminator, id size, timestamp
+
+    while(pos < file.size) {
+      final int tag = file.get(pos) & 0xFF;
+      final long length = file.getInt(pos + 5) & 0xFFFFFFFFL; // After tag and timestamp
+      final long body = pos + 9;
+      switch(tag) {
+        case UTF8:
+          strings.put(getId(body), body);
+          break;
+        case LOAD_CLASS:
+          final long classId = getId(body + 4);
+          final long nameId = getId(body + 4 + idSize + 4);
+          classNames.put(classId, nameId);
+          final String className = getClassName(classId);
+          if(ZombieMarker.class.getName().equals(className))
+            zombieMarkerClasses.put(classId, 1);
+          else if("java.lang.ref.Reference".equals(className))
+            referenceClassId = classId;
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          indexHeapDump(body, body + length);
+          break;
+        default:
+          // Not needed
+      }
+      pos = body + length;
+    }
+  }
+
+  private void indexHeapDump(long pos, long end) throws IOException {
+    while(pos < end) {
+      final long record = pos;
+      final int type = file.get(pos++) & 0xFF;
+      switch(type) {
+        case ROOT_UNKNOWN:
+        case ROOT_STICKY_CLASS:
+        case ROOT_MONITOR_USED:
+          addRoot(getId(pos), type);
+          pos += idSize;
+          break;
+        case ROOT_JNI_GLOBAL:
+          addRoot(getId(pos), type);
+          pos += 2 * idSize;
+          break;
+        case ROOT_JNI_LOCAL:
+        case ROOT_JAVA_FRAME:
+        case ROOT_THREAD_OBJECT:
+          addRoot(getId(pos), type);
+          pos += idSize + 8;
+          break;
+        case ROOT_NATIVE_STACK:
+        case ROOT_THREAD_BLOCK:
+          addRoot(getId(pos), type);
+          pos += idSize + 4;
+          break;
+        case CLASS_DUMP:
+          addObject(getId(pos), record);
+          pos = indexClass(pos);
+          break;
+        case INSTANCE_DUMP:
+          final int index = addObject(getId(pos), record);
+          if(zombieMarkerClasses.get(getId(pos + idSize + 4)) > 0)
+            zombieMarkers.set(index);
+          pos += idSize + 4 + idSize + 4 + file.getInt(pos + idSize + 4 + idSize);
+          break;
+        case OBJ_ARRAY_DUMP:
+          addObject(getId(pos), record);
+          pos += idSize + 4 + 4 + idSize + (long) file.getInt(pos + idSize + 4) * idSize;
+          break;
+        case PRIM_ARRAY_DUMP: // Cannot reference other objects, so no need to index
+          final int count = file.getInt(pos + idSize + 4);
+          pos += idSize + 4 + 4 + 1 + (long) count * getSize(file.get(pos + idSize + 8));
+          break;
+        default:
+          throw new IOException("Unsupported heap dump sub-record 0x" + Integer.toHexString(type) + " at " + record);
+      }
+    }
+  }
+
+  /** Index class dump, starting after the sub-record tag, and return the position after it */
+  private long indexClass(long pos) throws IOException {
+    final ClassInfo classInfo = new ClassInfo(getId(pos + idSize + 4));
+    classes.put(getId(pos), classInfo);
+
+    pos += idSize + 4 + 6 * idSize + 4; // Class, stack trace, super, loader, signers, domain, 2 reserved, size
+    final int constantPoolSize = file.getShort(pos);
+    pos += 2;
+    for(int i = 0; i < constantPoolSize; i++) {
+      pos += 2 + 1 + getSize(file.get(pos + 2));
+    }
+    final int noOfStaticFields = file.getShort(pos);
+    pos += 2;
+    for(int i = 0; i < noOfStaticFields; i++) {
+      pos += idSize + 1 + getSize(file.get(pos + idSize));
+    }
+    final int noOfFields = file.getShort(pos);
+    pos += 2;
+    classInfo.fieldNames = new long[noOfFields];
+    classInfo.fieldTypes = new byte[noOfFields];
+    for(int i = 0; i < noOfFields; i++) {
+      classInfo.fieldNames[i] = getId(pos);
+      classInfo.fieldTypes[i] = file.get(pos + idSize);
+      pos += idSize + 1;
+    }
+    return pos;
+  }
+
+  private void addRoot(long id, int type) {
+    if(roots.get(id) < 0) // First type found wins
+      roots.put(id, type);
+  }
+
+  private int addObject(long id, long position) {
+    if(noOfObjects == objectPositions.length) {
+      final long[] newPositions = new long[objectPositions.length * 2];
+      System.arraycopy(objectPositions, 0, newPositions, 0, noOfObjects);
+      objectPositions = newPositions;
+    }
+    objectPositions[noOfObjects] = position;
+    objectIndexes.put(id, noOfObjects);
+    return noOfObjects++;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  // Analysis
+
+  /**
+   * Breadth first search from all GC roots, until all targets have been reached.
+   * @return The index of the object from which each object was first reached; {@link #ROOT} for GC roots and
+   *   {@link #UNVISITED} for objects not reached
+   */
+  private int[] findShortestPaths(final BitSet targets) throws IOException {
+    final int[] parents = new int[noOfObjects];
+    java.util.Arrays.fill(parents, UNVISITED);
+    final int[] queue = new int[noOfObjects];
+
+    int tail = 0;
+    for(LongLongMap.Iterator it = roots.iterator(); it.next(); ) {
+      final int index = (int) objectIndexes.get(it.key());
+      if(index >= 0 && parents[index] == UNVISITED) {
+        parents[index] = ROOT;
+        queue[tail++] = index;
+      }
+    }
+
+    final int[] remainingTargets = {targets.cardinality()};
+    for(int i = targets.nextSetBit(0); i >= 0; i = targets.nextSetBit(i + 1)) {
+      if(parents[i] == ROOT)
+        remainingTargets[0]--;
+    }
+
+    final int[] queueTail = {tail};
+    final int[] current = new int[1];
+    final ReferenceVisitor enqueuer = new ReferenceVisitor() {
+      @Override
+      public boolean visit(long targetId, int kind, long detail) {
+        final int target = (int) objectIndexes.get(targetId);
+        if(target >= 0 && parents[target] == UNVISITED) {
+          parents[target] = current[0];
+          queue[queueTail[0]++] = target;
+          if(targets.get(target))
+            remainingTargets[0]--;
+        }
+        return true;
+      }
+    };
+
+    for(int head = 0; head < queueTail[0] && remainingTargets[0] > 0; head++) {
+      current[0] = queue[head];
+      visitReferences(queue[head], enqueuer);
+    }
+    return parents;
+  }
+
+  /** Describe the path of object indexes, starting with a GC root */
+  private String describePath(List<Integer> path) throws IOException {
+    final StringBuilder output = new StringBuilder();
+    final int root = path.get(0);
+    output.append("GC root (").append(getRootType((int) roots.get(getId(objectPositions[root] + 1))))
+        .append("): ").append(describeObject(root));
+    for(int i = 1; i < path.size(); i++) {
+      final long targetId = getId(objectPositions[path.get(i)] + 1);
+      final String[] label = new String[1];
+      visitReferences(path.get(i - 1), new ReferenceVisitor() {
+        @Override
+        public boolean visit(long referencedId, int kind, long detail) throws IOException {
+          if(referencedId == targetId) {
+            label[0] = describeReference(kind, detail);
+            return false;
+          }
+          return true;
+        }
+      });
+      output.append("\n  ").append(label[0]).append(" -> ").append(describeObject(path.get(i)));
+    }
+    return output.toString();
+  }
+
+  private String describeReference(int kind, long detail) throws IOException {
+    switch(kind) {
+      case FIELD: return "." + getString(detail);
+      case STATIC_FIELD: return "static " + getString(detail);
+      case ARRAY_ELEMENT: return "[" + detail + "]";
+      case CLASS: return "<class>";
+      case SUPER_CLASS: return "<super>";
+      case CLASS_LOADER: return "<classloader>";
+      case SIGNERS: return "<signers>";
+      case PROTECTION_DOMAIN: return "<protection domain>";
+      case CONSTANT_POOL: return "<constant pool>";
+      default: return "?";
+    }
+  }
+
+  private String describeObject(int index) throws IOException {
+    final long position = objectPositions[index];
+    final long id = getId(position + 1);
+    final String className;
+    switch(file.get(position) & 0xFF) {
+      case CLASS_DUMP:
+        className = "class " + getClassName(id);
+        break;
+      case INSTANCE_DUMP:
+        className = getClassName(getId(position + 1 + idSize + 4));
+        break;
+      default: // OBJ_ARRAY_DUMP
+        className = getClassName(getId(position + 1 + idSize + 4 + 4));
+    }
+    return className + "@0x" + Long.toHexString(id);
+  }
+
+  private static String getRootType(int type) {
+    switch(type) {
+      case ROOT_JNI_GLOBAL: return "JNI global";
+      case ROOT_JNI_LOCAL: return "JNI local";
+      case ROOT_JAVA_FRAME: return "Java frame";
+      case ROOT_NATIVE_STACK: return "native stack";
+      case ROOT_STICKY_CLASS: return "system class";
+      case ROOT_THREAD_BLOCK: return "thread block";
+      case ROOT_MONITOR_USED: return "busy monitor";
+      case ROOT_THREAD_OBJECT: return "thread";
+      default: return "unknown";
+    }
+  }
+
+  /** Visit all outgoing references of the object with the provided index */
+  private void visitReferences(int index, ReferenceVisitor visitor) throws IOException {
+    long pos = objectPositions[index];
+    final int type = file.get(pos++) & 0xFF;
+    if(type == INSTANCE_DUMP) {
+      long classId = getId(pos + idSize + 4);
+      if(! visitor.visit(classId, CLASS, 0))
+        return;
+      pos += idSize + 4 + idSize + 4;
+      while(classId != 0) { // Fields of subclass first, then superclasses
+        final ClassInfo classInfo = classes.get(classId);
+        if(classInfo == null)
+          throw new IOException("Class dump missing for 0x" + Long.toHexString(classId));
+        for(int i = 0; i < classInfo.fieldTypes.length; i++) {
+          if(classInfo.fieldTypes[i] == OBJECT) {
+            final long referencedId = getId(pos);
+            if(referencedId != 0 && ! (classId == referenceClassId && isReferent(classInfo.fieldNames[i])) &&
+                ! visitor.visit(referencedId, FIELD, classInfo.fieldNames[i]))
+              return;
+          }
+          pos += getSize(classInfo.fieldTypes[i]);
+        }
+        classId = classInfo.superClassId;
+      }
+    }
+    else if(type == OBJ_ARRAY_DUMP) {
+      final int length = file.getInt(pos + idSize + 4);
+      if(! visitor.visit(getId(pos + idSize + 4 + 4), CLASS, 0))
+        return;
+      pos += idSize + 4 + 4 + idSize;
+      for(int i = 0; i < length; i++) {
+        final long referencedId = getId(pos);
+        if(referencedId != 0 && ! visitor.visit(referencedId, ARRAY_ELEMENT, i))
+          return;
+        pos += idSize;
+      }
+    }
+    else if(type == CLASS_DUMP) {
+      pos += idSize + 4;
+      final int[] kinds = {SUPER_CLASS, CLASS_LOADER, SIGNERS, PROTECTION_DOMAIN};
+      for(int kind : kinds) {
+        final long referencedId = getId(pos);
+        if(referencedId != 0 && ! visitor.visit(referencedId, kind, 0))
+          return;
+        pos += idSize;
+      }
+      pos += 2 * idSize + 4; // Reserved, instance size
+
+      final int constantPoolSize = file.getShort(pos);
+      pos += 2;
+      for(int i = 0; i < constantPoolSize; i++) {
+        final byte valueType = file.get(pos + 2);
+        if(valueType == OBJECT) {
+          final long referencedId = getId(pos + 3);
+          if(referencedId != 0 && ! visitor.visit(referencedId, CONSTANT_POOL, 0))
+            return;
+        }
+        pos += 2 + 1 + getSize(valueType);
+      }
+
+      final int noOfStaticFields = file.getShort(pos);
+      pos += 2;
+      for(int i = 0; i < noOfStaticFields; i++) {
+        final byte valueType = file.get(pos + idSize);
+        if(valueType == OBJECT) {
+          final long referencedId = getId(pos + idSize + 1);
+          if(referencedId != 0 && ! visitor.visit(referencedId, STATIC_FIELD, getId(pos)))
+            return;
+        }
+        pos += idSize + 1 + getSize(valueType);
+      }
+    }
+  }
+
+  private boolean isReferent(long nameId) throws IOException {
+    return "referent".equals(getString(nameId));
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  // Utility methods
+
+  private long getId(long pos) {
+    return (idSize == 4) ? file.getInt(pos) & 0xFFFFFFFFL : file.getLong(pos);
+  }
+
+  /** Get size of value of the provided basic type */
+  private int getSize(int basicType) throws IOException {
+    switch(basicType) {
+      case OBJECT: return idSize;
+      case 4: return 1; // boolean
+      case 5: return 2; // char
+      case 6: return 4; // float
+      case 7: return 8; // double
+      case 8: return 1; // byte
+      case 9: return 2; // short
+      case 10: return 4; // int
+      case 11: return 8; // long
+      default: throw new IOException("Unknown basic type " + basicType);
+    }
+  }
+
+  private String getString(long id) throws IOException {
+    final long body = strings.get(id);
+    if(body < 0)
+      return null;
+    final long length = (file.getInt(body - 4) & 0xFFFFFFFFL) - idSize; // Record length minus the id
+    return file.getString(body + idSize, (int) length);
+  }
+
+  /** Get name of class, in the same format as {@link Class#getName()} */
+  private String getClassName(long classId) throws IOException {
+    final String name = getString(classNames.get(classId));
+    return (name != null) ? name.replace('/', '.') : "0x" + Long.toHexString(classId);
+  }
+
+  /** Information about a class, needed to parse its instances */
+  private static class ClassInfo {
+
+    private final long superClassId;
+
+    /** String ids of the names of the instance fields declared by the class itself */
+    private long[] fieldNames;
+
+    /** Basic types of the instance fields declared by the class itself */
+    private byte[] fieldTypes;
+
+    ClassInfo(long superClassId) {
+      this.superClassId = superClassId;
+    }
+  }
+
+  /** Visitor of references from one object to another */
+  private interface ReferenceVisitor {
+    /**
+     * @param kind What kind of reference this is, i.e. {@link #FIELD}, {@link #ARRAY_ELEMENT} etc
+     * @param detail Field name string id or array index, depending on kind
+     * @return true to continue visiting references from the same object, false to stop
+     */
+    boolean visit(long targetId, int kind, long detail) throws IOException;
+  }
+
+  /** Read only memory mapping of a file of any size, in chunks of 1 GB that overlap so that no value spans chunks */
+  private static class MappedFile {
+
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /** The longest value read by a single method, except {@link #getString(long, int)} */
+    private static final int OVERLAP = 8;
+
+    private final ByteBuffer[] chunks;
+
+    private final long size;
+
+    MappedFile(File file) throws IOException {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+        this.chunks = new ByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+        for(int i = 0; i < chunks.length; i++) {
+          final long start = (long) i << CHUNK_BITS;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+              Math.min(size - start, CHUNK_MASK + 1 + OVERLAP)); // Mapping remains valid after close
+        }
+      }
+      finally {
+        randomAccessFile.close();
+      }
+    }
+
+    byte get(long pos) {
+      return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+    }
+
+    int getShort(long pos) {
+      return chunks[(int) (pos >>> CHUNK_BITS)].getShort((int) (pos & CHUNK_MASK)) & 0xFFFF;
+    }
+
+    int getInt(long pos) {
+      return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+    }
+
+    long getLong(long pos) {
+      return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+    }
+
+    /** Get modified UTF-8 string */
+    String getString(long pos, int length) throws IOException {
+      final byte[] bytes = new byte[length];
+      for(int i = 0; i < length; i++) {
+        bytes[i] = get(pos + i);
+      }
+      return new String(bytes, "UTF-8");
+    }
+  }
+
+  /** Open addressing hash map from long to non-negative long, returning -1 for missing keys. Key 0 is not allowed. */
+  private static class LongLongMap {
+
+    private long[] keys = new long[1024];
+
+    private long[] values = new long[1024];
+
+    private int size;
+
+    void put(long key, long value) {
+      if(size * 2 >= keys.length)
+        grow();
+      final int slot = findSlot(keys, key);
+      if(keys[slot] == 0) {
+        keys[slot] = key;
+        size++;
+      }
+      values[slot] = value;
+    }
+
+    long get(long key) {
+      final int slot = findSlot(keys, key);
+      return (keys[slot] == 0) ? -1 : values[slot];
+    }
+
+    private static int findSlot(long[] keys, long key) {
+      final int mask = keys.length - 1;
+      long hash = key * 0x9E3779B97F4A7C15L; // Ids are aligned addresses, so spread the bits
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while(keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void grow() {
+      final long[] oldKeys = keys;
+      final long[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new long[oldKeys.length * 2];
+      for(int i = 0; i < oldKeys.length; i++) {
+        if(oldKeys[i] != 0) {
+          final int slot = findSlot(keys, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+
+    Iterator iterator() {
+      return new Iterator();
+    }
+
+    /** Iterator over the keys; call {@link #next()} before each {@link #key()} */
+    class Iterator {
+      private int slot = -1;
+
+      boolean next() {
+        while(++slot < keys.length) {
+          if(keys[slot] != 0)
+            return true;
+        }
+        return false;
+      }
+
+      long key() {
+        return keys[slot];
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package se.jiderhamn.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JVM wide cache of class file bytes, so that classes redefined by one {@link RedefiningClassLoader} after another are
+ * only read once. Entries are keyed by the URL of the class file resource, and invalidated when the last modified
+ * timestamp of the file - or the jar containing it - changes. Classes in jar files are read via {@link JarIndex}.
+ * Only bytes are held, so that the cache cannot prevent any {@link ClassLoader} from being garbage collected.
+ */
+class ClassBytesCache {
+
+  private static final ConcurrentMap<String, CachedClass> cache = new ConcurrentHashMap<String, CachedClass>();
+
+  private static final AtomicLong hits = new AtomicLong();
+
+  private static final AtomicLong misses = new AtomicLong();
+
+  private ClassBytesCache() {
+  }
+
+  /**
+   * Get the bytes of the named class, as found by the provided {@link ClassLoader}.
+   * @return The class file bytes as a read only buffer - which must be {@link ByteBuffer#duplicate() duplicated} before
+   *   being read - or null if the class is not found or not located in a file or jar file.
+   */
+  static ByteBuffer getBytes(ClassLoader classLoader, String className) throws IOException {
+    final String resourceName = className.replace('.', '/') + ".class";
+    final URL url = classLoader.getResource(resourceName);
+    if(url == null)
+      return null;
+
+    final File file = getFile(url);
+    if(file == null)
+      return null;
+
+    final String key = url.toExternalForm();
+    final long lastModified = file.lastModified();
+    final CachedClass cached = cache.get(key);
+    if(cached != null && cached.lastModified == lastModified) {
+      hits.incrementAndGet();
+      return cached.bytes;
+    }
+
+    misses.incrementAndGet();
+    final ByteBuffer bytes = read(url, file, resourceName);
+    cache.put(key, new CachedClass(lastModified, bytes));
+    return bytes;
+  }
+
+  /** Get the no of classes served from the cache */
+  static long getHits() {
+    return hits.get();
+  }
+
+  /** Get the no of classes read, since they were not in the cache or modified */
+  static long getMisses() {
+    return misses.get();
+  }
+
+  /** Get the class file or jar file that the URL refers to, or null if neither */
+  private static File getFile(URL url) {
+    try {
+      if("file".equals(url.getProtocol()))
+        return new File(url.toURI());
+      else if("jar".equals(url.getProtocol())) { // jar:file:/path/to/file.jar!/path/to/Class.class
+        final String path = url.getPath();
+        final int separator = path.indexOf("!/");
+        if(separator > 0 && path.startsWith("file:"))
+          return new File(new URL(path.substring(0, separator)).toURI());
+      }
+    }
+    catch (URISyntaxException e) {
+      // Fall through
+    }
+    catch (IOException e) {
+      // Fall through
+    }
+    return null;
+  }
+
+  private static ByteBuffer read(URL url, File file, String resourceName) throws IOException {
+    if("jar".equals(url.getProtocol())) {
+      try {
+        final ByteBuffer entry = JarIndex.get(file).getEntry(resourceName);
+        if(entry != null)
+          return entry;
+      }
+      catch (IOException e) {
+        // Unsupported jar file format, fall back to reading stream
+      }
+    }
+
+    final InputStream is = url.openStream();
+    try {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while((read = is.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+      return ByteBuffer.wrap(output.toByteArray()).asReadOnlyBuffer();
+    }
+    finally {
+      is.close();
+    }
+  }
+
+  /** The bytes of a class file, and the timestamp of the file at the time it was read */
+  private static class CachedClass {
+
+    private final long lastModified;
+
+    private final ByteBuffer bytes;
+
+    CachedClass(long lastModified, ByteBuffer bytes) {
+      this.lastModified = lastModified;
+      this.bytes = bytes;
+    }
+  }
+}
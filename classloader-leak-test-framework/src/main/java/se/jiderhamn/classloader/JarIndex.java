@@ -0,0 +1,191 @@
+package se.jiderhamn.classloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Index of the entries of a memory mapped jar file, built once from the central directory, so that entries can be read
+ * without opening a {@link java.util.zip.ZipFile} or stream. Entry names are kept in an open addressing hash table of
+ * central directory offsets. Stored (uncompressed) entries are returned as slices of the mapping, i.e. without copying.
+ *
+ * ZIP64 and jar files of 2 GB or more are not supported.
+ */
+class JarIndex {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+  /** Size of end of central directory record, excluding comment */
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+
+  private static final int STORED = 0;
+
+  private static final int DEFLATED = 8;
+
+  /** Indexes per jar file path */
+  private static final ConcurrentMap<String, JarIndex> indexes = new ConcurrentHashMap<String, JarIndex>();
+
+  private final ByteBuffer mapping;
+
+  private final long lastModified;
+
+  /** Open addressing hash table of central directory header offset + 1 per entry; 0 for empty slots */
+  private final int[] table;
+
+  private JarIndex(ByteBuffer mapping, long lastModified) throws IOException {
+    this.mapping = mapping;
+    this.lastModified = lastModified;
+
+    final int endOfCentralDirectory = findEndOfCentralDirectory();
+    final int noOfEntries = mapping.getShort(endOfCentralDirectory + 10) & 0xFFFF;
+    if(noOfEntries == 0xFFFF)
+      throw new IOException("ZIP64 not supported");
+    int offset = mapping.getInt(endOfCentralDirectory + 16);
+
+    table = new int[Integer.highestOneBit(Math.max(noOfEntries, 8)) * 4]; // Load factor < 0.5
+    for(int i = 0; i < noOfEntries; i++) {
+      if(mapping.getInt(offset) != CENTRAL_DIRECTORY_SIGNATURE)
+        throw new IOException("Invalid central directory header at " + offset);
+      final int nameLength = mapping.getShort(offset + 28) & 0xFFFF;
+      int slot = hash(mapping, offset + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength) & (table.length - 1);
+      while(table[slot] != 0) {
+        slot = (slot + 1) & (table.length - 1);
+      }
+      table[slot] = offset + 1;
+      offset += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength +
+          (mapping.getShort(offset + 30) & 0xFFFF) + (mapping.getShort(offset + 32) & 0xFFFF); // Extra, comment
+    }
+  }
+
+  /** Get the index of the provided jar file, creating it if it does not exist or the file has been modified */
+  static JarIndex get(File jarFile) throws IOException {
+    final String key = jarFile.getAbsolutePath();
+    final long lastModified = jarFile.lastModified();
+    final JarIndex existing = indexes.get(key);
+    if(existing != null && existing.lastModified == lastModified)
+      return existing;
+
+    final JarIndex index = new JarIndex(map(jarFile), lastModified);
+    indexes.put(key, index);
+    return index;
+  }
+
+  /**
+   * Get the contents of the named entry as a read only buffer, or null if there is no such entry. Stored entries are
+   * slices of the mapped file, while deflated entries are inflated onto the heap.
+   */
+  ByteBuffer getEntry(String name) throws IOException {
+    final byte[] nameBytes = name.getBytes("UTF-8");
+    int slot = hash(ByteBuffer.wrap(nameBytes), 0, nameBytes.length) & (table.length - 1);
+    while(table[slot] != 0) {
+      final int offset = table[slot] - 1;
+      if(nameEquals(offset, nameBytes))
+        return read(offset);
+      slot = (slot + 1) & (table.length - 1);
+    }
+    return null;
+  }
+
+  /** Read the entry with central directory header at the provided offset */
+  private ByteBuffer read(int centralDirectoryOffset) throws IOException {
+    final int method = mapping.getShort(centralDirectoryOffset + 10) & 0xFFFF;
+    final int compressedSize = mapping.getInt(centralDirectoryOffset + 20);
+    final int size = mapping.getInt(centralDirectoryOffset + 24);
+    final int localHeader = mapping.getInt(centralDirectoryOffset + 42);
+    if(mapping.getInt(localHeader) != LOCAL_HEADER_SIGNATURE)
+      throw new IOException("Invalid local header at " + localHeader);
+    final int data = localHeader + LOCAL_HEADER_SIZE +
+        (mapping.getShort(localHeader + 26) & 0xFFFF) + (mapping.getShort(localHeader + 28) & 0xFFFF); // Name, extra
+
+    final ByteBuffer compressed = mapping.duplicate();
+    compressed.position(data);
+    compressed.limit(data + compressedSize);
+    if(method == STORED)
+      return compressed.slice().asReadOnlyBuffer();
+    else if(method == DEFLATED) {
+      final byte[] input = new byte[compressedSize];
+      compressed.get(input);
+      final Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(input);
+        final byte[] output = new byte[size];
+        int inflated = 0;
+        while(inflated < size && ! inflater.finished()) {
+          final int n = inflater.inflate(output, inflated, size - inflated);
+          if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            break;
+          inflated += n;
+        }
+        if(inflated != size)
+          throw new IOException("Unable to inflate entry at " + localHeader);
+        return ByteBuffer.wrap(output).asReadOnlyBuffer();
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Unable to inflate entry at " + localHeader + ": " + e.getMessage());
+      }
+      finally {
+        inflater.end();
+      }
+    }
+    else
+      throw new IOException("Unsupported compression method " + method + " of entry at " + localHeader);
+  }
+
+  private boolean nameEquals(int centralDirectoryOffset, byte[] name) {
+    if((mapping.getShort(centralDirectoryOffset + 28) & 0xFFFF) != name.length)
+      return false;
+    for(int i = 0; i < name.length; i++) {
+      if(mapping.get(centralDirectoryOffset + CENTRAL_DIRECTORY_HEADER_SIZE + i) != name[i])
+        return false;
+    }
+    return true;
+  }
+
+  /** Find the end of central directory record, which is followed by a comment of up to 64 kB */
+  private int findEndOfCentralDirectory() throws IOException {
+    final int last = mapping.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+    for(int offset = last; offset >= 0 && offset >= last - 0xFFFF; offset--) {
+      if(mapping.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+        return offset;
+    }
+    throw new IOException("End of central directory not found");
+  }
+
+  /** FNV-1a hash of the bytes */
+  private static int hash(ByteBuffer buffer, int offset, int length) {
+    int hash = 0x811C9DC5;
+    for(int i = 0; i < length; i++) {
+      hash = (hash ^ (buffer.get(offset + i) & 0xFF)) * 0x01000193;
+    }
+    return hash;
+  }
+
+  private static ByteBuffer map(File jarFile) throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(jarFile, "r");
+    try {
+      final FileChannel channel = randomAccessFile.getChannel();
+      if(channel.size() >= Integer.MAX_VALUE)
+        throw new IOException("Jar file too large: " + jarFile);
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) // Mapping remains valid after close
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+}
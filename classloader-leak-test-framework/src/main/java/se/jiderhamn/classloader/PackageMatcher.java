@@ -0,0 +1,150 @@
+package se.jiderhamn.classloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches class names against package patterns, as used for {@link PackagesLoadedOutsideClassLoader#packages()}.
+ * The patterns are compiled into a prefix trie once per set of patterns, so that matching a class name is a single
+ * walk over its characters regardless of the no of patterns.
+ *
+ * A pattern is a prefix of the class name, such as <code>"org.foo."</code>. <code>*</code> matches any characters
+ * except dot, i.e. part of a single package name, such as <code>"org.*.impl."</code>. A pattern starting with
+ * <code>!</code> excludes matching classes, such as <code>"!org.foo.impl."</code>. When multiple patterns match, the
+ * one matching the longest prefix of the class name wins, and on ties exclusion wins.
+ */
+class PackageMatcher {
+
+  private static final char WILDCARD = '*';
+
+  private static final char NEGATION = '!';
+
+  private static final int NO_MATCH = 0;
+
+  private static final int INCLUDE = 1;
+
+  private static final int EXCLUDE = 2;
+
+  /** Compiled matchers per set of patterns */
+  private static final ConcurrentMap<List<String>, PackageMatcher> matchers =
+      new ConcurrentHashMap<List<String>, PackageMatcher>();
+
+  private final Node root = new Node();
+
+  private PackageMatcher(List<String> patterns) {
+    for(String pattern : patterns) {
+      final boolean negated = pattern.length() > 0 && pattern.charAt(0) == NEGATION;
+      Node node = root;
+      for(int i = negated ? 1 : 0; i < pattern.length(); i++) {
+        node = node.getOrAddChild(pattern.charAt(i));
+      }
+      node.verdict = Math.max(node.verdict, negated ? EXCLUDE : INCLUDE);
+    }
+    root.compile();
+  }
+
+  /** Get matcher of the provided patterns, compiling it unless already compiled */
+  static PackageMatcher getInstance(String[] patterns) {
+    final List<String> key = Arrays.asList(patterns.clone());
+    PackageMatcher matcher = matchers.get(key);
+    if(matcher == null) {
+      matcher = new PackageMatcher(key);
+      final PackageMatcher existing = matchers.putIfAbsent(key, matcher);
+      if(existing != null)
+        matcher = existing;
+    }
+    return matcher;
+  }
+
+  /** Does the class name match any of the patterns, without being excluded? */
+  boolean matches(String className) {
+    final long best = match(root, className, 0, 0L);
+    return (int) best == INCLUDE;
+  }
+
+  /**
+   * Find the best match of the class name from the provided node and position onwards.
+   * @param best The best match so far, as length << 32 | verdict
+   * @return The best match, as length << 32 | verdict
+   */
+  private static long match(Node node, String className, int position, long best) {
+    while(true) {
+      if(node.verdict != NO_MATCH) {
+        final long candidate = ((long) position << 32) | node.verdict;
+        if(candidate > best) // Longer wins, and on ties EXCLUDE (which is greater) wins
+          best = candidate;
+      }
+
+      if(node.wildcard != null) {
+        for(int end = position; ; end++) { // Wildcard matching [position, end)
+          best = match(node.wildcard, className, end, best);
+          if(end == className.length() || className.charAt(end) == '.')
+            break;
+        }
+      }
+
+      if(position == className.length())
+        return best;
+      final int index = Arrays.binarySearch(node.keys, className.charAt(position));
+      if(index < 0)
+        return best;
+      node = node.children[index];
+      position++;
+    }
+  }
+
+  /** Node of the trie */
+  private static class Node {
+
+    /** Sorted characters of the children, once compiled */
+    private char[] keys = new char[0];
+
+    private Node[] children = new Node[0];
+
+    /** Child for {@link #WILDCARD}, if any */
+    private Node wildcard;
+
+    /** Verdict for class names that match up to this node; {@link #NO_MATCH}, {@link #INCLUDE} or {@link #EXCLUDE} */
+    private int verdict = NO_MATCH;
+
+    private final List<Character> keyList = new ArrayList<Character>();
+
+    private final List<Node> childList = new ArrayList<Node>();
+
+    Node getOrAddChild(char c) {
+      if(c == WILDCARD) {
+        if(wildcard == null)
+          wildcard = new Node();
+        return wildcard;
+      }
+
+      final int index = keyList.indexOf(c);
+      if(index >= 0)
+        return childList.get(index);
+      final Node child = new Node();
+      keyList.add(c);
+      childList.add(child);
+      return child;
+    }
+
+    /** Convert children into sorted arrays, for binary search */
+    void compile() {
+      final Character[] sortedKeys = keyList.toArray(new Character[keyList.size()]);
+      Arrays.sort(sortedKeys);
+      keys = new char[sortedKeys.length];
+      children = new Node[sortedKeys.length];
+      for(int i = 0; i < sortedKeys.length; i++) {
+        keys[i] = sortedKeys[i];
+        children[i] = childList.get(keyList.indexOf(sortedKeys[i]));
+        children[i].compile();
+      }
+      if(wildcard != null)
+        wildcard.compile();
+      keyList.clear();
+      childList.clear();
+    }
+  }
+}
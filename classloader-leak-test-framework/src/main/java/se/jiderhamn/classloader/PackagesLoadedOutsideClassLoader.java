@@ -13,7 +13,11 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface PackagesLoadedOutsideClassLoader {
   
-  /** Packages to be ignored by {@link RedefiningClassLoader}, on the form "foo.bar." (note the ending dot!) */
+  /** 
+   * Packages to be ignored by {@link RedefiningClassLoader}, on the form "foo.bar." (note the ending dot!).
+   * <code>*</code> matches part of a package name, as in "foo.*.bar.", and a leading <code>!</code> excludes a package
+   * that would otherwise be ignored, as in "!foo.bar.impl.". The pattern matching the longest part of the class name wins.
+   */
   String[] packages();
   
   /** 
@@ -1,5 +1,10 @@
 package se.jiderhamn.classloader;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.apache.bcel.classfile.ClassFormatException;
 import org.apache.bcel.classfile.JavaClass;
 
@@ -17,6 +22,24 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
   
   private final String name;
 
+  /**
+   * The {@link ClassLoader} classes are redefined from. Not the same as {@link #getParent()}, since the BCEL
+   * {@link org.apache.bcel.util.ClassLoader} constructors always use the system {@link ClassLoader} as parent.
+   */
+  private final ClassLoader parent;
+
+  /** Packages loaded by the parent, rather than redefined. See {@link PackageMatcher} for the pattern syntax. */
+  private final PackageMatcher ignoredPackages;
+
+  /**
+   * Define classes from {@link ClassBytesCache}, rather than parsing them with BCEL? Only if {@link #modifyClass} is
+   * not overridden, since the classes will not be passed through it.
+   */
+  private final boolean useClassBytesCache;
+
+  /** Names of the classes defined by this classloader. Guarded by itself. */
+  private final Set<String> definedClassNames = new HashSet<String>();
+
   public RedefiningClassLoader(ClassLoader parent) {
     this(parent, null);
   }
@@ -34,21 +57,34 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
   }
 
   public RedefiningClassLoader(ClassLoader parent, String name, String[] ignoredPackages) {
-    super(parent, ignoredPackages);
+    super(parent, new String[0]); // Ignored packages are handled by this class
     this.name = name;
+    this.parent = parent;
+    this.ignoredPackages = PackageMatcher.getInstance(ignoredPackages);
+    this.useClassBytesCache = ! isModifyClassOverridden();
   }
 
   RedefiningClassLoader(String name, String[] ignoredPackages) {
-    super(ignoredPackages);
+    super(new String[0]); // Ignored packages are handled by this class
     this.name = name;
+    this.parent = ClassLoader.getSystemClassLoader(); // Same class path as the BCEL SyntheticRepository
+    this.ignoredPackages = PackageMatcher.getInstance(ignoredPackages);
+    this.useClassBytesCache = ! isModifyClassOverridden();
   }
 
   @Override
   protected JavaClass modifyClass(JavaClass clazz) {
-    System.out.println("Loading " + clazz.getClassName() + " in " + this); // TODO: turn debugging on/off
+    classDefined(clazz.getClassName());
     return super.modifyClass(clazz);
   }
   
+  /** Get the names of the classes defined - i.e. redefined - by this classloader */
+  public Set<String> getDefinedClassNames() {
+    synchronized (definedClassNames) {
+      return new HashSet<String>(definedClassNames);
+    }
+  }
+
   /** Mark this class loader as being ready for garbage collection */
   public void markAsZombie() {
     this.zombieMarker = new ZombieMarker();
@@ -69,6 +105,21 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
 
   @Override
   protected Class<?> loadClass(String class_name, boolean resolve) throws ClassNotFoundException {
+    if(ignoredPackages.matches(class_name)) {
+      final Class<?> clazz = getParent().loadClass(class_name);
+      if(resolve)
+        resolveClass(clazz);
+      return clazz;
+    }
+    else if(useClassBytesCache && ! class_name.contains("$$BCEL$$")) { // Let BCEL handle its synthetic classes
+      final Class<?> clazz = defineFromCache(class_name);
+      if(clazz != null) {
+        if(resolve)
+          resolveClass(clazz);
+        return clazz;
+      }
+    }
+
     try {
       return super.loadClass(class_name, resolve);
     }
@@ -76,4 +127,43 @@ public class RedefiningClassLoader extends org.apache.bcel.util.ClassLoader {
       throw new RuntimeException("Unable to load class " + class_name, e);
     }
   }
+
+  /** Define class from {@link ClassBytesCache}, unless already defined. Returns null if not found in cache. */
+  private synchronized Class<?> defineFromCache(String className) throws ClassNotFoundException {
+    final Class<?> alreadyDefined = findLoadedClass(className);
+    if(alreadyDefined != null)
+      return alreadyDefined;
+
+    try {
+      final ByteBuffer bytes = ClassBytesCache.getBytes(parent, className);
+      if(bytes == null)
+        return null; // Let BCEL handle it
+
+      classDefined(className);
+      return defineClass(className, bytes.duplicate(), null);
+    }
+    catch (IOException e) {
+      throw new ClassNotFoundException("Unable to read class " + className, e);
+    }
+  }
+
+  private void classDefined(String className) {
+    synchronized (definedClassNames) {
+      definedClassNames.add(className);
+    }
+  }
+
+  /** Is {@link #modifyClass(JavaClass)} overridden by a subclass? */
+  private boolean isModifyClassOverridden() {
+    for(Class<?> clazz = getClass(); clazz != RedefiningClassLoader.class; clazz = clazz.getSuperclass()) {
+      try {
+        clazz.getDeclaredMethod("modifyClass", JavaClass.class);
+        return true;
+      }
+      catch (NoSuchMethodException e) {
+        // Check superclass
+      }
+    }
+    return false;
+  }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.Statement;
 import org.junit.runners.model.TestClass;
+import se.jiderhamn.HeapDumpAnalyzer;
 import se.jiderhamn.HeapDumper;
 import se.jiderhamn.classloader.PackagesLoadedOutsideClassLoader;
 import se.jiderhamn.classloader.RedefiningClassLoader;
@@ -131,7 +132,7 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
         myClassLoader.markAsZombie();
         myClassLoader = null; // Make available to garbage collector
         
-        forceGc(3);
+        gcAfterTest();
 
         if(expectedLeak) { // We expect this test to leak classloaders
           RedefiningClassLoader redefiningClassLoader = weak.get();
@@ -153,7 +154,7 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
               redefiningClassLoader = null;
               Thread.currentThread().setContextClassLoader(clBefore);
               
-              forceGc(3);
+              gcAfterTest();
 
               final boolean leak = (weak.get() != null); // Still not garbage collected
               if(leak) {
@@ -208,6 +209,11 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
     }
   }
 
+  /** Make sure enough Garbage Collection has been run after a test, for the test classloader to be collected */
+  protected void gcAfterTest() throws InterruptedException {
+    forceGc(3);
+  }
+
   /** Make sure Garbage Collection has been run N no of times */
   public static void forceGc(int n) {
     for(int i = 0; i < n; i++) {
@@ -237,12 +243,26 @@ public class JUnitClassloaderRunner extends BlockJUnit4ClassRunner {
           new File(testName + HEAP_DUMP_EXTENSION);
       HeapDumper.dumpHeap(heapDump, false);
       System.out.println("Heaped dumped to " + heapDump.getAbsolutePath());
+      printZombieRootPaths(heapDump);
     }
     catch (ClassNotFoundException e) {
       System.out.println("Unable to dump heap - not Sun/Oracle JVM?");
     }
   }
 
+  /** Print the shortest path(s) from GC roots to the leaked classloader(s) in the heap dump */
+  private static void printZombieRootPaths(File heapDump) {
+    try {
+      for(String path : new HeapDumpAnalyzer(heapDump).findZombieRootPaths()) {
+        System.out.println("Leaked classloader is reachable via");
+        System.out.println(path);
+      }
+    }
+    catch (Exception e) {
+      System.out.println("Unable to analyze heap dump: " + e);
+    }
+  }
+
   /** 
    * Try to find "target/surefire-reports" directory, assuming this is a Maven build. Returns null it not found,
    * not writable or other error. */
@@ -0,0 +1,143 @@
+package se.jiderhamn.classloader.leak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerScheduler;
+
+/**
+ * Variant of {@link JUnitClassloaderRunner} that runs the tests of a class concurrently, on a pool of
+ * {@link #getThreadCount()} threads. Instead of each test forcing Garbage Collection on its own, tests waiting for
+ * Garbage Collection are batched, so that a single round of Garbage Collection verifies all of them.
+ *
+ * Only use this runner for tests that are isolated from each other, i.e. do not modify JVM global state that other
+ * tests in the same class depend on.
+ */
+public class ParallelJUnitClassloaderRunner extends JUnitClassloaderRunner {
+
+  /** Shared by all test classes, so that tests of classes run in parallel are also batched */
+  private static final BatchedGc batchedGc = new BatchedGc(3);
+
+  public ParallelJUnitClassloaderRunner(Class<?> klass) throws InitializationError {
+    super(klass);
+    setScheduler(new ExecutorScheduler(klass.getSimpleName(), getThreadCount()));
+  }
+
+  /** Get the no of tests to run concurrently. Defaults to the no of processors. */
+  protected int getThreadCount() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  @Override
+  protected void gcAfterTest() throws InterruptedException {
+    batchedGc.await();
+  }
+
+  /** {@link RunnerScheduler} that runs the tests on a thread pool */
+  private static class ExecutorScheduler implements RunnerScheduler {
+
+    private final ExecutorService executor;
+
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    ExecutorScheduler(final String name, int threads) {
+      this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    @Override
+    public void schedule(Runnable childStatement) {
+      futures.add(executor.submit(childStatement));
+    }
+
+    @Override
+    public void finished() {
+      try {
+        for(Future<?> future : futures) {
+          future.get(); // Test failures are reported to the RunNotifier by the test itself
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Lets any number of threads wait for Garbage Collection, while only one of them at a time actually forces it.
+   * A thread waits for a round that starts after it started waiting, since a round in progress may have started before
+   * the thread released its references.
+   */
+  static class BatchedGc {
+
+    /** No of Garbage Collections per round */
+    private final int cycles;
+
+    /** No of rounds completed. Guarded by this. */
+    private long completedRounds;
+
+    /** Is there a round in progress? Guarded by this. */
+    private boolean running;
+
+    BatchedGc(int cycles) {
+      this.cycles = cycles;
+    }
+
+    /** Wait for - and if needed, perform - a complete round of Garbage Collection */
+    void await() throws InterruptedException {
+      final long targetRound;
+      synchronized (this) {
+        targetRound = completedRounds + (running ? 2 : 1);
+      }
+      while(true) {
+        synchronized (this) {
+          if(completedRounds >= targetRound)
+            return;
+          else if(running) {
+            this.wait();
+            continue;
+          }
+          else
+            running = true;
+        }
+
+        try {
+          JUnitClassloaderRunner.forceGc(cycles); // Other threads may join the next round meanwhile
+        }
+        finally {
+          synchronized (this) {
+            completedRounds++;
+            running = false;
+            this.notifyAll();
+          }
+        }
+      }
+    }
+
+    /** Get the no of rounds of Garbage Collection completed */
+    synchronized long getCompletedRounds() {
+      return completedRounds;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package se.jiderhamn;
+
+import java.lang.reflect.Array;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassHistogram}
+ */
+public class ClassHistogramTest {
+
+  @Test
+  public void parse() {
+    final ClassHistogram histogram = ClassHistogram.parse(
+        " num     #instances         #bytes  class name (module)\n" +
+        "-------------------------------------------------------\n" +
+        "   1:         12345        1234560  [B (java.base@17.0.9)\n" +
+        "   2:           100           2400  java.lang.String (java.base@17.0.9)\n" +
+        "   3:             3             48  com.acme.Foo\n" +
+        "   4:             2             32  com.acme.Foo\n" +
+        "Total         12450        1237040\n");
+
+    assertEquals(3, histogram.size());
+    assertEquals(12345, histogram.getInstances("[B"));
+    assertEquals(2400, histogram.getBytes("java.lang.String"));
+    assertEquals("Rows with same name summed", 5, histogram.getInstances("com.acme.Foo"));
+    assertEquals(0, histogram.getInstances("com.acme.Bar"));
+    assertEquals(12450, histogram.getTotalInstances());
+    assertEquals(1237040, histogram.getTotalBytes());
+  }
+
+  @Test
+  public void filterByClassLoader() throws Exception {
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(ClassHistogramTest.class.getClassLoader());
+    final Class<?> fooClass = classLoader.loadClass(Foo.class.getName());
+    final Object foos = Array.newInstance(fooClass, 3);
+    for(int i = 0; i < 3; i++) {
+      Array.set(foos, i, fooClass.newInstance());
+    }
+
+    final ClassHistogram histogram = ClassHistogram.create(true).filter(classLoader);
+    assertEquals(histogram.toString(), 1, histogram.size());
+    assertEquals(3, histogram.getInstances(Foo.class.getName()));
+    assertTrue(histogram.getBytes(Foo.class.getName()) > 0);
+    assertEquals("Still reachable", 3, Array.getLength(foos));
+  }
+
+  public static class Foo {
+  }
+}
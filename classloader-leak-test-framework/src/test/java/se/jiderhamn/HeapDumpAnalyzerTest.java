@@ -0,0 +1,66 @@
+package se.jiderhamn;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+import se.jiderhamn.classloader.RedefiningClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link HeapDumpAnalyzer}
+ */
+public class HeapDumpAnalyzerTest {
+
+  /** Simulates a leak */
+  private static Object leakedClassLoaderHolder;
+
+  @Test
+  public void pathToLeakedClassLoader() throws Exception {
+    leak(); // Not in this method, since a local variable would be a GC root
+
+    final File heapDump = File.createTempFile(HeapDumpAnalyzerTest.class.getSimpleName(),
+        HeapDumper.HEAP_DUMP_EXTENSION);
+    try {
+      assertTrue(heapDump.delete()); // Cannot dump to existing file
+      HeapDumper.dumpHeap(heapDump, true);
+
+      final List<String> paths = new HeapDumpAnalyzer(heapDump).findZombieRootPaths();
+      assertEquals(1, paths.size());
+      final String path = paths.get(0);
+      assertTrue(path, path.startsWith("GC root ("));
+      assertTrue(path, path.contains("static leakedClassLoaderHolder -> " + Object[].class.getName() + "@0x"));
+      final String lastStep = path.substring(path.lastIndexOf('\n') + 1);
+      assertTrue(path, lastStep.startsWith("  [1] -> " + RedefiningClassLoader.class.getName() + "@0x"));
+    }
+    finally {
+      leakedClassLoaderHolder = null;
+      heapDump.delete();
+    }
+  }
+
+  private static void leak() {
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(HeapDumpAnalyzerTest.class.getClassLoader());
+    classLoader.markAsZombie();
+    leakedClassLoaderHolder = new Object[] {"foo", classLoader};
+  }
+
+  @Test
+  public void noLeak() throws Exception {
+    new RedefiningClassLoader(HeapDumpAnalyzerTest.class.getClassLoader()).markAsZombie(); // Unreachable
+
+    final File heapDump = File.createTempFile(HeapDumpAnalyzerTest.class.getSimpleName(),
+        HeapDumper.HEAP_DUMP_EXTENSION);
+    try {
+      assertTrue(heapDump.delete());
+      HeapDumper.dumpHeap(heapDump, false); // Includes unreachable objects
+
+      assertTrue(new HeapDumpAnalyzer(heapDump).findZombieRootPaths().isEmpty());
+    }
+    finally {
+      heapDump.delete();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package se.jiderhamn.classloader;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.ClassGen;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ClassBytesCache} as used by {@link RedefiningClassLoader}
+ */
+public class ClassBytesCacheTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void classRedefinedFromCache() throws Exception {
+    final ClassLoader parent = ClassBytesCacheTest.class.getClassLoader();
+    final RedefiningClassLoader first = new RedefiningClassLoader(parent);
+    final Class<?> firstFoo = first.loadClass(Foo.class.getName());
+
+    final long hitsBefore = ClassBytesCache.getHits();
+    final long missesBefore = ClassBytesCache.getMisses();
+    final RedefiningClassLoader second = new RedefiningClassLoader(parent);
+    final Class<?> secondFoo = second.loadClass(Foo.class.getName());
+    assertEquals(hitsBefore + 1, ClassBytesCache.getHits());
+    assertEquals(missesBefore, ClassBytesCache.getMisses());
+
+    assertSame(first, firstFoo.getClassLoader());
+    assertSame(second, secondFoo.getClassLoader());
+    assertNotSame(firstFoo, secondFoo);
+    assertSame("Loaded once per classloader", secondFoo, second.loadClass(Foo.class.getName()));
+    assertEquals("bar", secondFoo.newInstance().toString());
+    assertTrue(second.getDefinedClassNames().contains(Foo.class.getName()));
+  }
+
+  @Test
+  public void cacheBypassedWhenModifyClassOverridden() throws Exception {
+    final ModifyingClassLoader classLoader = new ModifyingClassLoader(ClassBytesCacheTest.class.getClassLoader());
+    final Class<?> foo = classLoader.loadClass(Foo.class.getName());
+    assertSame(classLoader, foo.getClassLoader());
+    assertEquals(1, classLoader.modified);
+  }
+
+  @Test
+  public void classReadFromProvidedParent() throws Exception {
+    final File directory = temporaryFolder.newFolder();
+    final String className = "se.jiderhamn.classloader.Generated";
+    final ClassGen classGen = new ClassGen(className, Object.class.getName(), "<generated>",
+        Const.ACC_PUBLIC | Const.ACC_SUPER, null);
+    classGen.addEmptyConstructor(Const.ACC_PUBLIC);
+    final File classFile = new File(directory, className.replace('.', '/') + ".class");
+    assertTrue(classFile.getParentFile().mkdirs());
+    classGen.getJavaClass().dump(classFile);
+
+    // Only visible through the parent, not the system ClassLoader
+    final ClassLoader parent = new URLClassLoader(new URL[] {directory.toURI().toURL()},
+        ClassBytesCacheTest.class.getClassLoader());
+    final long missesBefore = ClassBytesCache.getMisses();
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(parent);
+    final Class<?> generated = classLoader.loadClass(className);
+    assertSame(classLoader, generated.getClassLoader());
+    assertEquals("Read via cache", missesBefore + 1, ClassBytesCache.getMisses());
+  }
+
+  public static class Foo {
+    @Override
+    public String toString() {
+      return "bar";
+    }
+  }
+
+  private static class ModifyingClassLoader extends RedefiningClassLoader {
+
+    private int modified;
+
+    ModifyingClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    @Override
+    protected JavaClass modifyClass(JavaClass clazz) {
+      modified++;
+      return super.modifyClass(clazz);
+    }
+  }
+}
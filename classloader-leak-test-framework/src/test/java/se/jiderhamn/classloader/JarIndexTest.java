@@ -0,0 +1,86 @@
+package se.jiderhamn.classloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link JarIndex}
+ */
+public class JarIndexTest {
+
+  @Test
+  public void storedAndDeflatedEntries() throws Exception {
+    final File jar = createJar();
+    try {
+      final JarIndex index = JarIndex.get(jar);
+      assertEquals("stored", toString(index.getEntry("com/acme/Stored.class")));
+      assertEquals("deflated deflated deflated", toString(index.getEntry("com/acme/Deflated.class")));
+      assertNull(index.getEntry("com/acme/Missing.class"));
+      assertTrue("Index reused", index == JarIndex.get(jar));
+    }
+    finally {
+      jar.delete();
+    }
+  }
+
+  @Test
+  public void classBytesCacheReadsFromJar() throws Exception {
+    final File jar = createJar();
+    try {
+      final ClassLoader classLoader = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+      assertEquals("deflated deflated deflated",
+          toString(ClassBytesCache.getBytes(classLoader, "com.acme.Deflated").duplicate()));
+
+      final long hitsBefore = ClassBytesCache.getHits();
+      assertEquals("stored", toString(ClassBytesCache.getBytes(classLoader, "com.acme.Stored").duplicate()));
+      assertEquals("stored", toString(ClassBytesCache.getBytes(classLoader, "com.acme.Stored").duplicate()));
+      assertEquals(hitsBefore + 1, ClassBytesCache.getHits());
+    }
+    finally {
+      jar.delete();
+    }
+  }
+
+  private static File createJar() throws Exception {
+    final File jar = File.createTempFile(JarIndexTest.class.getSimpleName(), ".jar");
+    final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      final byte[] stored = "stored".getBytes("UTF-8");
+      final CRC32 crc = new CRC32();
+      crc.update(stored);
+      final ZipEntry storedEntry = new ZipEntry("com/acme/Stored.class");
+      storedEntry.setMethod(ZipEntry.STORED);
+      storedEntry.setSize(stored.length);
+      storedEntry.setCrc(crc.getValue());
+      zos.putNextEntry(storedEntry);
+      zos.write(stored);
+      zos.closeEntry();
+
+      zos.putNextEntry(new ZipEntry("com/acme/Deflated.class"));
+      zos.write("deflated deflated deflated".getBytes("UTF-8"));
+      zos.closeEntry();
+    }
+    finally {
+      zos.close();
+    }
+    return jar;
+  }
+
+  private static String toString(ByteBuffer buffer) throws Exception {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
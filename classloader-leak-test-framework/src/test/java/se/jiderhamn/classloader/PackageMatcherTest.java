@@ -0,0 +1,67 @@
+package se.jiderhamn.classloader;
+
+import org.junit.Test;
+import se.jiderhamn.HeapDumper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link PackageMatcher}
+ */
+public class PackageMatcherTest {
+
+  @Test
+  public void prefixes() {
+    final PackageMatcher matcher = PackageMatcher.getInstance(RedefiningClassLoader.DEFAULT_IGNORED_PACKAGES);
+    assertTrue(matcher.matches("java.lang.String"));
+    assertTrue(matcher.matches("org.w3c.dom.Node"));
+    assertTrue(matcher.matches("org.junit.Test"));
+    assertFalse(matcher.matches("javassist.ClassPool"));
+    assertFalse(matcher.matches("org.junitx.Foo"));
+    assertFalse(matcher.matches("se.jiderhamn.Foo"));
+    assertFalse(matcher.matches(""));
+  }
+
+  @Test
+  public void negation() {
+    final PackageMatcher matcher = PackageMatcher.getInstance(new String[] {"org.foo.", "!org.foo.impl.", "org.foo.impl.api."});
+    assertTrue(matcher.matches("org.foo.Bar"));
+    assertTrue(matcher.matches("org.foo.bar.Baz"));
+    assertFalse(matcher.matches("org.foo.impl.Bar"));
+    assertTrue("Longest match wins", matcher.matches("org.foo.impl.api.Bar"));
+    assertFalse(matcher.matches("org.bar.Foo"));
+
+    assertFalse("Exclusion wins ties", PackageMatcher.getInstance(new String[] {"org.foo.", "!org.foo."}).matches("org.foo.Bar"));
+  }
+
+  @Test
+  public void wildcard() {
+    final PackageMatcher matcher = PackageMatcher.getInstance(new String[] {"org.*.api.", "com.acme*.", "!org.bar.api.internal."});
+    assertTrue(matcher.matches("org.foo.api.Foo"));
+    assertTrue(matcher.matches("org.bar.api.Foo"));
+    assertFalse("Wildcard does not span packages", matcher.matches("org.foo.bar.api.Foo"));
+    assertFalse(matcher.matches("org.foo.impl.Foo"));
+    assertFalse(matcher.matches("org.bar.api.internal.Foo"));
+    assertTrue(matcher.matches("com.acme.Foo"));
+    assertTrue(matcher.matches("com.acmesoft.Foo"));
+    assertFalse(matcher.matches("com.acm.Foo"));
+  }
+
+  @Test
+  public void compiledOnce() {
+    assertSame(PackageMatcher.getInstance(new String[] {"foo.", "bar."}),
+        PackageMatcher.getInstance(new String[] {"foo.", "bar."}));
+  }
+
+  @Test
+  public void redefiningClassLoaderExcludesPackage() throws Exception {
+    final String testPackage = PackageMatcherTest.class.getPackage().getName() + '.';
+    final RedefiningClassLoader classLoader = new RedefiningClassLoader(PackageMatcherTest.class.getClassLoader(), null,
+        new String[] {"java.", "org.junit.", "se.", "!" + testPackage});
+    assertSame("Ignored", HeapDumper.class, classLoader.loadClass(HeapDumper.class.getName()));
+    assertSame("Excluded from ignore, i.e. redefined", classLoader,
+        classLoader.loadClass(PackageMatcherTest.class.getName()).getClassLoader());
+  }
+}
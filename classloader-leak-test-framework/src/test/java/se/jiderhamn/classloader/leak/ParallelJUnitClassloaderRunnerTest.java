@@ -0,0 +1,101 @@
+package se.jiderhamn.classloader.leak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runners.model.InitializationError;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link ParallelJUnitClassloaderRunner}
+ */
+public class ParallelJUnitClassloaderRunnerTest {
+
+  @Test
+  public void testsRunConcurrently() {
+    final long start = System.currentTimeMillis();
+    final Result result = JUnitCore.runClasses(SlowNonLeakingTests.class);
+    final long duration = System.currentTimeMillis() - start;
+
+    assertEquals(4, result.getRunCount());
+    assertTrue(result.getFailures().toString(), result.wasSuccessful());
+    assertTrue("Took " + duration + " ms", duration < 4 * SlowNonLeakingTests.SLEEP_MS);
+  }
+
+  @Test
+  public void gcIsBatched() throws Exception {
+    final ParallelJUnitClassloaderRunner.BatchedGc batchedGc = new ParallelJUnitClassloaderRunner.BatchedGc(1);
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for(int i = 0; i < 8; i++) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startSignal.await();
+            batchedGc.await();
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+
+    startSignal.countDown();
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(batchedGc.getCompletedRounds() + " rounds", batchedGc.getCompletedRounds() < threads.size());
+  }
+
+  @RunWith(FourThreadsRunner.class)
+  public static class SlowNonLeakingTests {
+
+    static final long SLEEP_MS = 1000;
+
+    @Test
+    @Leaks(false)
+    public void first() throws InterruptedException {
+      Thread.sleep(SLEEP_MS);
+    }
+
+    @Test
+    @Leaks(false)
+    public void second() throws InterruptedException {
+      Thread.sleep(SLEEP_MS);
+    }
+
+    @Test
+    @Leaks(false)
+    public void third() throws InterruptedException {
+      Thread.sleep(SLEEP_MS);
+    }
+
+    @Test
+    @Leaks(false)
+    public void fourth() throws InterruptedException {
+      Thread.sleep(SLEEP_MS);
+    }
+  }
+
+  public static class FourThreadsRunner extends ParallelJUnitClassloaderRunner {
+    public FourThreadsRunner(Class<?> klass) throws InitializationError {
+      super(klass);
+    }
+
+    @Override
+    protected int getThreadCount() {
+      return 4;
+    }
+  }
+}